@@ -0,0 +1,166 @@
+package com.example.Server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a request costs with and without a connection of its own, against an in-process server:
+ * a bare connect, a {@code HELLO} and a {@code STAT} each on a new connection, and a {@code STAT}
+ * on a persistent {@code SESSION}. The difference is the connection setup the session pool saves.
+ * Run with {@code -t <n>} to see how accepting scales with concurrent clients.
+ * <p>
+ * Clients close with a reset once the server is done, so no connection lingers in TIME_WAIT and
+ * long runs do not exhaust the loopback's ephemeral ports.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionSetupBenchmark {
+
+    private static final String PROBE = "probe.txt";
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({"blocking", "nio"})
+        String engine;
+
+        FileServerCore core;
+        Path root;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            // Each trial runs in a fresh fork, so the server reads the property when it is loaded
+            System.setProperty("fileserver.engine", engine);
+            System.setProperty("fileserver.log.rate", "10");
+            root = Files.createTempDirectory("connection-benchmark");
+            Files.writeString(root.resolve(PROBE), "probe");
+            core = new FileServerCore(root);
+            core.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            core.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SessionConnection {
+
+        private Socket socket;
+        private DataOutputStream out;
+        private DataInputStream in;
+        private int requestId;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws IOException {
+            socket = open(server);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeUTF("SESSION");
+            out.writeUTF("benchmark");
+            out.flush();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public void connect(Server server) throws IOException {
+        Socket socket = open(server);
+        socket.setSoLinger(true, 0);
+        socket.close();
+    }
+
+    @Benchmark
+    public int helloNewConnection(Server server) throws IOException {
+        try (Socket socket = open(server)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF("HELLO");
+            out.writeUTF(Integer.toString(FileServerCore.PROTOCOL_VERSION));
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            in.readUTF();
+            int version = in.readInt();
+            closeAfterServer(socket);
+            return version;
+        }
+    }
+
+    @Benchmark
+    public long statNewConnection(Server server) throws IOException {
+        try (Socket socket = open(server)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF("STAT");
+            out.writeUTF(PROBE);
+            out.writeBoolean(false);
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            in.readBoolean();
+            long size = in.readLong();
+            in.readNBytes(32);
+            in.readUTF();
+            closeAfterServer(socket);
+            return size;
+        }
+    }
+
+    @Benchmark
+    public long statOnSession(SessionConnection session) throws IOException {
+        int requestId = session.requestId++;
+        session.out.writeInt(requestId);
+        session.out.writeUTF("STAT");
+        session.out.writeUTF(PROBE);
+        session.out.writeUTF("false");
+        session.out.writeLong(0);
+        session.out.flush();
+        if (session.in.readInt() != requestId || session.in.readByte() != 0) {
+            throw new IOException("Unexpected reply to request " + requestId);
+        }
+        long length = session.in.readLong();
+        session.in.readNBytes((int) length);
+        return length;
+    }
+
+    private static Socket open(Server server) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.core.port());
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    /**
+     * Waits for the server to close its end, then resets ours instead of leaving it in TIME_WAIT.
+     */
+    private static void closeAfterServer(Socket socket) throws IOException {
+        socket.getInputStream().read();
+        socket.setSoLinger(true, 0);
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.Server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copy loops behind {@code DOWNLOAD} and {@code UPLOAD}, over a loopback socket: a stream
+ * loop through a {@code byte[]} (what the server did originally), a channel loop through a direct
+ * buffer (what uploads use now) and {@code transferTo}/{@code transferFrom} ({@code transferTo} is
+ * what downloads use), each swept over the buffer size. For the transfer methods the buffer size is the most bytes handed to one call.
+ * {@code -p socketBufferSize=...} compares fixed socket buffers with the OS's automatic tuning.
+ * <p>
+ * Each operation moves one file of {@code fileSize} bytes; throughput is {@code fileSize} divided
+ * by the reported time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyLoopBenchmark {
+
+    @Param({"4096", "16384", "65536", "262144", "1048576"})
+    int bufferSize;
+
+    @Param({"67108864"})
+    long fileSize;
+
+    /** SO_RCVBUF and SO_SNDBUF of both ends; 0 leaves them to the OS, which tunes them as needed. */
+    @Param({"0"})
+    int socketBufferSize;
+
+    private Path source;
+    private Path target;
+    private Loopback download;
+    private Loopback upload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = Files.createTempFile("copy-source", ".bin");
+        target = Files.createTempFile("copy-target", ".bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(source)) {
+            for (long written = 0; written < fileSize; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, fileSize - written));
+            }
+        }
+        download = Loopback.draining(socketBufferSize);
+        upload = Loopback.filling(socketBufferSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        download.close();
+        upload.close();
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(target);
+    }
+
+    @Benchmark
+    public long downloadStream() throws IOException {
+        OutputStream out = download.near.socket().getOutputStream();
+        byte[] buffer = new byte[bufferSize];
+        long sent = 0;
+        try (InputStream in = new FileInputStream(source.toFile())) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+                sent += bytesRead;
+            }
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public long downloadChannel() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        long sent = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            while (in.read(buffer.clear()) != -1) {
+                buffer.flip();
+                sent += buffer.remaining();
+                Transfers.sendBuffer(buffer, download.near);
+            }
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public long downloadTransferTo() throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long sent = 0;
+            while (sent < fileSize) {
+                sent += in.transferTo(sent, Math.min(bufferSize, fileSize - sent), download.near);
+            }
+            return sent;
+        }
+    }
+
+    @Benchmark
+    public long uploadStream() throws IOException {
+        InputStream in = upload.near.socket().getInputStream();
+        byte[] buffer = new byte[bufferSize];
+        long received = 0;
+        try (OutputStream out = new FileOutputStream(target.toFile())) {
+            while (received < fileSize) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, fileSize - received));
+                if (bytesRead < 0) {
+                    throw new EOFException();
+                }
+                out.write(buffer, 0, bytesRead);
+                received += bytesRead;
+            }
+        }
+        return received;
+    }
+
+    @Benchmark
+    public long uploadChannel() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        long received = 0;
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (received < fileSize) {
+                buffer.clear().limit((int) Math.min(bufferSize, fileSize - received));
+                if (upload.near.read(buffer) < 0) {
+                    throw new EOFException();
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    received += out.write(buffer);
+                }
+            }
+        }
+        return received;
+    }
+
+    @Benchmark
+    public long uploadTransferFrom() throws IOException {
+        long received = 0;
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (received < fileSize) {
+                long transferred = out.transferFrom(upload.near, received, Math.min(bufferSize, fileSize - received));
+                if (transferred <= 0) {
+                    throw new EOFException();
+                }
+                received += transferred;
+            }
+        }
+        return received;
+    }
+}
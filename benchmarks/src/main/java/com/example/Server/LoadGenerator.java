@@ -0,0 +1,250 @@
+package com.example.Server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load against a file server over loopback. A number of clients run a weighted mix of
+ * {@code UPLOAD}, {@code DOWNLOAD} and {@code DELETE} requests on a fixed set of file names, each
+ * on a connection of its own as the UI sends them, and the generator reports throughput and
+ * latency percentiles per command.
+ * <p>
+ * Usage: {@code java -cp target/benchmarks.jar com.example.Server.LoadGenerator [--option=value...]}
+ * <table>
+ *     <caption>Options</caption>
+ *     <tr><td>{@code port}</td><td>port of a running server; without it a server is started in process</td></tr>
+ *     <tr><td>{@code engine}</td><td>{@code blocking} or {@code nio}, for the in-process server</td></tr>
+ *     <tr><td>{@code clients}</td><td>concurrent clients, default 16</td></tr>
+ *     <tr><td>{@code warmup}</td><td>seconds of load before measuring, default 5</td></tr>
+ *     <tr><td>{@code duration}</td><td>seconds measured, default 30</td></tr>
+ *     <tr><td>{@code mix}</td><td>command weights, default {@code upload:30,download:60,delete:10}</td></tr>
+ *     <tr><td>{@code size}</td><td>bytes per uploaded file, default 65536</td></tr>
+ *     <tr><td>{@code files}</td><td>distinct file names, default 1000</td></tr>
+ * </table>
+ * A download or delete of a name that is not stored at that moment counts as a miss, not an error.
+ */
+public final class LoadGenerator {
+
+    private enum Command { UPLOAD, DOWNLOAD, DELETE }
+
+    private static final class Results {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    private final int port;
+    private final int clients;
+    private final Command[] mix;
+    private final int size;
+    private final int files;
+    private final byte[] payload;
+    private final Map<Command, Results> results = new EnumMap<>(Command.class);
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    private LoadGenerator(int port, int clients, Command[] mix, int size, int files) {
+        this.port = port;
+        this.clients = clients;
+        this.mix = mix;
+        this.size = size;
+        this.files = files;
+        this.payload = new byte[size];
+        new Random(42).nextBytes(payload);
+        for (Command command : Command.values()) {
+            results.put(command, new Results());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        FileServerCore server = null;
+        int port;
+        if (options.containsKey("port")) {
+            port = Integer.parseInt(options.get("port"));
+        } else {
+            System.setProperty("fileserver.engine", options.getOrDefault("engine", "blocking"));
+            System.setProperty("fileserver.log.rate", "10");
+            server = new FileServerCore(Files.createTempDirectory("load-generator"));
+            server.start();
+            port = server.port();
+        }
+
+        LoadGenerator generator = new LoadGenerator(port,
+                Integer.parseInt(options.getOrDefault("clients", "16")),
+                parseMix(options.getOrDefault("mix", "upload:30,download:60,delete:10")),
+                Integer.parseInt(options.getOrDefault("size", "65536")),
+                Integer.parseInt(options.getOrDefault("files", "1000")));
+        try {
+            generator.run(Integer.parseInt(options.getOrDefault("warmup", "5")),
+                    Integer.parseInt(options.getOrDefault("duration", "30")));
+        } finally {
+            if (server != null) {
+                server.stop();
+                deleteTree(server.root());
+            }
+        }
+    }
+
+    /**
+     * @param mix weights such as {@code upload:30,download:60,delete:10}
+     * @return a table to draw commands from uniformly, each repeated by its weight
+     */
+    private static Command[] parseMix(String mix) {
+        List<Command> table = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split(":");
+            Command command = Command.valueOf(parts[0].trim().toUpperCase());
+            for (int i = Integer.parseInt(parts[1].trim()); i > 0; i--) {
+                table.add(command);
+            }
+        }
+        if (table.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix: " + mix);
+        }
+        return table.toArray(new Command[0]);
+    }
+
+    private void run(int warmupSeconds, int durationSeconds) throws InterruptedException {
+        System.out.printf("Seeding %d files of %d bytes on port %d%n", files, size, port);
+        for (int i = 0; i < files; i++) {
+            execute(Command.UPLOAD, name(i));
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            threads.add(Thread.ofPlatform().name("load-client-" + i).start(this::client));
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        measuring = true;
+        long started = System.nanoTime();
+        Thread.sleep(durationSeconds * 1000L);
+        measuring = false;
+        double seconds = (System.nanoTime() - started) / 1e9;
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report(seconds);
+    }
+
+    private void client() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            Command command = mix[random.nextInt(mix.length)];
+            execute(command, name(random.nextInt(files)));
+        }
+    }
+
+    private void execute(Command command, String fileName) {
+        boolean record = measuring;
+        Results result = results.get(command);
+        long started = System.nanoTime();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            out.writeUTF(command.name());
+            out.writeUTF(fileName);
+            long bytes = 0;
+            boolean found = true;
+            switch (command) {
+                case UPLOAD -> {
+                    out.write(payload);
+                    socket.shutdownOutput();
+                    bytes = payload.length;
+                }
+                case DOWNLOAD -> {
+                    out.flush();
+                    DataInputStream data = new DataInputStream(in);
+                    try {
+                        long length = data.readLong();
+                        data.skipNBytes(length);
+                        bytes = length;
+                    } catch (EOFException e) {
+                        // The server closes without a reply when the file is not stored
+                        found = false;
+                    }
+                }
+                case DELETE -> socket.shutdownOutput();
+            }
+            // The request is complete once the server has closed its end
+            while (in.read() >= 0) {
+                // Nothing else is expected
+            }
+            socket.setSoLinger(true, 0);
+            if (record) {
+                result.latency.record(System.nanoTime() - started);
+                result.bytes.add(bytes);
+                if (!found) {
+                    result.misses.increment();
+                }
+            }
+        } catch (IOException e) {
+            if (record) {
+                result.errors.increment();
+            }
+        }
+    }
+
+    private void report(double seconds) {
+        System.out.printf("%d clients, %.1f s measured%n", clients, seconds);
+        System.out.printf("%-9s %10s %10s %8s %8s %9s %9s %9s %9s %9s%n",
+                "command", "ops", "ops/s", "errors", "misses", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (Command command : Command.values()) {
+            Results result = results.get(command);
+            long count = result.latency.count();
+            totalOps += count;
+            totalBytes += result.bytes.sum();
+            System.out.printf("%-9s %10d %10.0f %8d %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    command, count, count / seconds, result.errors.sum(), result.misses.sum(),
+                    millis(result.latency.percentile(50)), millis(result.latency.percentile(90)),
+                    millis(result.latency.percentile(99)), millis(result.latency.percentile(99.9)),
+                    millis(result.latency.max()));
+        }
+        System.out.printf("total     %10d %10.0f ops/s, %.1f MB/s%n", totalOps, totalOps / seconds,
+                totalBytes / seconds / 1_000_000);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static String name(int i) {
+        return "load-" + i + ".bin";
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (var paths = Files.walk(root)) {
+            for (Path path : paths.sorted((a, b) -> b.getNameCount() - a.getNameCount()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
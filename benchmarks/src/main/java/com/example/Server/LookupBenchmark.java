@@ -0,0 +1,106 @@
+package com.example.Server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PathIndex} lookups, the replacement for {@code findFileRecursively}, over synthetic trees
+ * of 10k to 1M files (add {@code -p files=10000000} for 10M; that tree needs a few minutes and
+ * several GB of inodes to create the first time). Lookups cycle through a fixed random sample of
+ * stored files, by bare name as the UI sends them and by relative path.
+ * <p>
+ * {@link #buildIndex} times the startup walk over the same trees. {@link RecursiveLookupBenchmark}
+ * measures the old recursive scan for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class LookupBenchmark {
+
+    private static final int SAMPLE_SIZE = 4096;
+
+    @State(Scope.Benchmark)
+    public static class Tree {
+
+        @Param({"10000", "100000", "1000000"})
+        int files;
+
+        Path root;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            root = SyntheticTree.of(files);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Index {
+
+        PathIndex index;
+        final String[] names = new String[SAMPLE_SIZE];
+        final String[] paths = new String[SAMPLE_SIZE];
+
+        @Setup(Level.Trial)
+        public void setUp(Tree tree) throws IOException {
+            index = PathIndex.build(tree.root);
+            Random random = new Random(42);
+            for (int i = 0; i < SAMPLE_SIZE; i++) {
+                int file = random.nextInt(tree.files);
+                names[i] = SyntheticTree.name(file);
+                paths[i] = SyntheticTree.relativePath(file);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            index.close();
+        }
+    }
+
+    private int next;
+
+    @Benchmark
+    public Path lookupByName(Index index) {
+        return index.index.lookup(index.names[next++ & (SAMPLE_SIZE - 1)]);
+    }
+
+    @Benchmark
+    public Path lookupByPath(Index index) {
+        return index.index.lookup(index.paths[next++ & (SAMPLE_SIZE - 1)]);
+    }
+
+    @Benchmark
+    public Path lookupMissingName(Index index) {
+        return index.index.lookup("missing.dat");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public int buildIndex(Tree tree) throws IOException {
+        try (PathIndex index = PathIndex.build(tree.root)) {
+            return index.size();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connected pair of loopback sockets with a background thread keeping the far end busy, so a
+ * benchmark measures one side of a transfer: {@link #draining(int)} swallows everything written to
+ * {@link #near}, {@link #filling(int)} keeps {@link #near} supplied with bytes to read.
+ */
+final class Loopback implements Closeable {
+
+    private static final int PEER_BUFFER_SIZE = 1024 * 1024;
+
+    /** The end the benchmark reads from or writes to. */
+    final SocketChannel near;
+    private final SocketChannel far;
+    private final Thread peer;
+
+    private Loopback(SocketChannel near, SocketChannel far, boolean drain) {
+        this.near = near;
+        this.far = far;
+        this.peer = new Thread(drain ? this::drain : this::fill, drain ? "loopback-drain" : "loopback-fill");
+        peer.setDaemon(true);
+        peer.start();
+    }
+
+    /**
+     * @param socketBufferSize SO_RCVBUF and SO_SNDBUF for both ends, 0 to leave them to the OS
+     * @return a pair whose far end reads and discards everything
+     * @throws IOException if the sockets cannot be connected
+     */
+    static Loopback draining(int socketBufferSize) throws IOException {
+        SocketChannel[] pair = connect(socketBufferSize);
+        return new Loopback(pair[0], pair[1], true);
+    }
+
+    /**
+     * @param socketBufferSize SO_RCVBUF and SO_SNDBUF for both ends, 0 to leave them to the OS
+     * @return a pair whose far end writes zeros for as long as the near end reads
+     * @throws IOException if the sockets cannot be connected
+     */
+    static Loopback filling(int socketBufferSize) throws IOException {
+        SocketChannel[] pair = connect(socketBufferSize);
+        return new Loopback(pair[0], pair[1], false);
+    }
+
+    private static SocketChannel[] connect(int socketBufferSize) throws IOException {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            if (socketBufferSize > 0) {
+                // Set before the handshake so the window scale is negotiated for it
+                listener.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferSize);
+            }
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketChannel near = SocketChannel.open();
+            if (socketBufferSize > 0) {
+                near.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferSize);
+                near.setOption(StandardSocketOptions.SO_SNDBUF, socketBufferSize);
+            }
+            near.connect(listener.getLocalAddress());
+            SocketChannel far = listener.accept();
+            if (socketBufferSize > 0) {
+                far.setOption(StandardSocketOptions.SO_SNDBUF, socketBufferSize);
+            }
+            return new SocketChannel[]{near, far};
+        }
+    }
+
+    private void drain() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(PEER_BUFFER_SIZE);
+        try {
+            while (far.read(buffer.clear()) >= 0) {
+                // Discard
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    private void fill() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(PEER_BUFFER_SIZE);
+        try {
+            while (true) {
+                far.write(buffer.clear());
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        near.close();
+        far.close();
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.Server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The recursive directory scan the server used before {@link PathIndex}, as a baseline for
+ * {@link LookupBenchmark}. Every lookup lists directories until it meets the file, so its cost
+ * grows with the tree; larger trees than the defaults take seconds per lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class RecursiveLookupBenchmark {
+
+    @Param({"10000", "100000"})
+    int files;
+
+    private File root;
+    private String[] names;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = SyntheticTree.of(files).toFile();
+        Random random = new Random(42);
+        names = new String[256];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = SyntheticTree.name(random.nextInt(files));
+        }
+    }
+
+    @Benchmark
+    public File findFileRecursively() {
+        return findFileRecursively(root, names[next++ & (names.length - 1)]);
+    }
+
+    private static File findFileRecursively(File directory, String fileName) {
+        if (directory.isDirectory()) {
+            for (File file : directory.listFiles()) {
+                if (file.isDirectory()) {
+                    File found = findFileRecursively(file, fileName);
+                    if (found != null) {
+                        return found;
+                    }
+                } else if (file.getName().equals(fileName)) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Directory trees of empty files for the lookup benchmarks. File {@code i} is
+ * {@code t<i / 10000>/l<i / 100 % 100>/file-<i>.dat}, so every leaf directory holds 100 files
+ * and every top-level directory 100 leaves. Trees are kept under {@code target/trees} and reused
+ * by later runs, since creating millions of files takes minutes.
+ */
+final class SyntheticTree {
+
+    private static final Path TREES = Paths.get("target", "trees");
+
+    private SyntheticTree() {
+    }
+
+    /**
+     * @param files the number of files in the tree
+     * @return the root of a complete tree with that many files, created if necessary
+     * @throws IOException if the tree cannot be created
+     */
+    static Path of(int files) throws IOException {
+        Path root = TREES.resolve(Integer.toString(files)).toAbsolutePath();
+        // The marker sits outside the tree so the index never sees it
+        Path complete = TREES.resolve(files + ".complete");
+        if (Files.exists(complete)) {
+            return root;
+        }
+        Files.createDirectories(root);
+        for (int i = 0; i < files; i++) {
+            Path file = root.resolve(relativePath(i));
+            if (i % 100 == 0) {
+                Files.createDirectories(file.getParent());
+            }
+            if (!Files.exists(file)) {
+                Files.createFile(file);
+            }
+        }
+        Files.createFile(complete);
+        return root;
+    }
+
+    /**
+     * @param i the file number
+     * @return the bare name of file {@code i}
+     */
+    static String name(int i) {
+        return "file-" + i + ".dat";
+    }
+
+    /**
+     * @param i the file number
+     * @return the path of file {@code i} relative to the tree root, with forward slashes
+     */
+    static String relativePath(int i) {
+        return "t" + i / 10_000 + "/l" + i / 100 % 100 + "/" + name(i);
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.Server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One upload through {@link UploadPipeline}, from a loopback socket into a new file, as the
+ * server receives it: with the reading thread writing every buffer itself ({@code depth=0}) or
+ * with buffers written behind by the writer threads, and forced to disk before the file would be
+ * committed or not. {@code -p directory=...} picks the file system the file is written to, for
+ * comparing a disk with tmpfs ({@code /dev/shm}); empty means the default temporary directory.
+ * <p>
+ * Throughput is {@code fileSize} divided by the reported time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadPipelineBenchmark {
+
+    @Param({""})
+    String directory;
+
+    @Param({"0", "4", "16"})
+    int depth;
+
+    @Param({"none", "close", "periodic"})
+    String fsync;
+
+    @Param({"268435456"})
+    long fileSize;
+
+    private Loopback upload;
+    private UploadPipeline pipeline;
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        upload = Loopback.filling(0);
+        pipeline = new UploadPipeline(depth, 4, UploadPipeline.Fsync.named(fsync), 100);
+        Path parent = directory.isEmpty() ? Paths.get(System.getProperty("java.io.tmpdir")) : Paths.get(directory);
+        target = Files.createTempFile(parent, "upload-target", ".bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pipeline.close();
+        upload.close();
+        Files.deleteIfExists(target);
+    }
+
+    @Benchmark
+    public long receive() throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            pipeline.receive(upload.near, out, 0, fileSize, null);
+            if (pipeline.forcesOnClose()) {
+                out.force(false);
+            }
+        }
+        return fileSize;
+    }
+}
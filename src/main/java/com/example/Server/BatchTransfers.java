@@ -0,0 +1,466 @@
+package com.example.Server;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many files, or a whole directory tree, moved as one stream of entries instead of one connection
+ * per file. Used in both directions: BATCH_UPLOAD sends entries from the client to the server,
+ * BATCH_DOWNLOAD from the server to the client.
+ * <p>
+ * Entry: {@code UTF} path relative to the batch's directory with '/' separators, {@code long}
+ * size, that many bytes. An entry with an empty path ends the stream.
+ * <p>
+ * The sending side walks the tree on several threads and reads small files ahead while earlier
+ * entries are still on the wire; small entries are coalesced into large writes, larger ones go
+ * out with {@code transferTo}. The receiving side reads the stream in order but leaves creating,
+ * writing and committing small files to several writer threads, so one slow {@code fsync} or
+ * directory creation does not hold up the stream. Entries whose path would leave the batch's
+ * directory are skipped and reported as failed.
+ */
+final class BatchTransfers {
+
+    /** Threads walking the tree when sending, and writing entries when receiving. */
+    private static final int PARALLELISM = 8;
+    /** Entries up to this size are read into memory; larger ones are streamed to and from disk. */
+    static final int BUFFERED_ENTRY_SIZE = 1024 * 1024;
+    /** Bytes of small entries held in memory at once, read ahead or waiting for a writer. */
+    private static final int MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+    private static final int QUEUED_ENTRIES = 1024;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private BatchTransfers() {
+    }
+
+    /**
+     * Where received entries are stored.
+     */
+    interface EntryTarget {
+
+        /**
+         * @return a new empty file to receive an entry into
+         * @throws IOException if the file cannot be created
+         */
+        Path newTemporaryFile() throws IOException;
+
+        /**
+         * Moves a completely received entry into place.
+         *
+         * @param temporaryFile the file holding the entry
+         * @param path          the entry's path, already checked to stay inside the batch's directory
+         * @param checksum      the entry's checksums if {@link #newChecksums()} asked for them, else null
+         * @throws IOException if the entry cannot be stored
+         */
+        void commit(Path temporaryFile, String path, Checksum checksum) throws IOException;
+
+        /**
+         * @return an accumulator for the checksums of the next entry, computed on the way in, or
+         * null if entries need none
+         */
+        Checksum.Accumulator newChecksums();
+    }
+
+    /**
+     * The outcome of a batch.
+     *
+     * @param stored   the number of entries stored
+     * @param failures the entries that were not stored and why
+     */
+    record Result(int stored, List<Failure> failures) {
+    }
+
+    /**
+     * @param path    the entry's path
+     * @param message why it was not stored
+     */
+    record Failure(String path, String message) {
+    }
+
+    /**
+     * Sends a file or every file below a directory, then the end of the stream.
+     *
+     * @param source       the file or directory to send
+     * @param outputStream the stream entry headers and small files are written to
+     * @param channel      the channel under that stream, which large files are sent to directly
+     * @param pool         the pool of buffers for the copies
+     * @return the number of bytes of file data sent
+     * @throws IOException if the connection fails
+     */
+    static long send(Path source, DataOutputStream outputStream, WritableByteChannel channel,
+                     BufferPool pool) throws IOException {
+        long sent = 0;
+        if (Files.isRegularFile(source)) {
+            sent += sendFile(source.getFileName().toString(), source, outputStream, channel, pool);
+        } else {
+            try (TreeWalker walker = new TreeWalker(source)) {
+                Entry entry;
+                while ((entry = walker.next()) != null) {
+                    if (entry.content != null) {
+                        outputStream.writeUTF(entry.path);
+                        outputStream.writeLong(entry.content.length);
+                        outputStream.write(entry.content);
+                        sent += entry.content.length;
+                        walker.release(entry);
+                    } else {
+                        sent += sendFile(entry.path, entry.file, outputStream, channel, pool);
+                    }
+                }
+            }
+        }
+        outputStream.writeUTF("");
+        outputStream.flush();
+        return sent;
+    }
+
+    private static long sendFile(String path, Path file, DataOutputStream outputStream,
+                                 WritableByteChannel channel, BufferPool pool) throws IOException {
+        FileChannel fileChannel;
+        try {
+            fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Removed since it was listed
+            Log.warn("Skipping " + file + ": " + e.getMessage());
+            return 0;
+        }
+        try (fileChannel) {
+            long size = fileChannel.size();
+            outputStream.writeUTF(path);
+            outputStream.writeLong(size);
+            outputStream.flush();
+            Transfers.sendFile(fileChannel, 0, size, channel, pool);
+            return size;
+        }
+    }
+
+    /**
+     * Receives entries until the end of the stream and stores them.
+     *
+     * @param reader the stream of entries
+     * @param target where entries are stored
+     * @return the outcome; entries that could not be stored do not stop the batch
+     * @throws IOException if the connection fails; entries received completely until then are
+     *                     still stored
+     */
+    static Result receive(EntryReader reader, EntryTarget target) throws IOException {
+        AtomicInteger stored = new AtomicInteger();
+        Queue<Failure> failures = new ConcurrentLinkedQueue<>();
+        Semaphore bufferedBytes = new Semaphore(MAX_BUFFERED_BYTES);
+        try (ExecutorService writers = Executors.newFixedThreadPool(PARALLELISM, Thread.ofVirtual().factory())) {
+            String path;
+            while (!(path = reader.readUTF()).isEmpty()) {
+                long size = reader.readLong();
+                String invalid = checkPath(path);
+                if (invalid != null || size < 0) {
+                    failures.add(new Failure(path, invalid != null ? invalid : "Invalid size " + size));
+                    reader.skip(Math.max(size, 0));
+                    continue;
+                }
+                String entryPath = path;
+                if (size <= BUFFERED_ENTRY_SIZE) {
+                    byte[] content = new byte[(int) size];
+                    reader.readFully(content);
+                    bufferedBytes.acquireUninterruptibly(Math.max(content.length, 1));
+                    writers.execute(() -> {
+                        try {
+                            store(target, entryPath, content);
+                            stored.incrementAndGet();
+                        } catch (IOException | RuntimeException e) {
+                            failures.add(new Failure(entryPath, String.valueOf(e.getMessage())));
+                        } finally {
+                            bufferedBytes.release(Math.max(content.length, 1));
+                        }
+                    });
+                } else {
+                    // Too large to hold; received here, in stream order, and committed by a writer
+                    Path temporaryFile = target.newTemporaryFile();
+                    Checksum.Accumulator checksums = target.newChecksums();
+                    try (FileChannel fileChannel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+                        reader.readTo(fileChannel, size, checksums);
+                    } catch (IOException e) {
+                        Files.deleteIfExists(temporaryFile);
+                        throw e;
+                    }
+                    writers.execute(() -> {
+                        try {
+                            target.commit(temporaryFile, entryPath, checksums == null ? null : checksums.finish());
+                            stored.incrementAndGet();
+                        } catch (IOException | RuntimeException e) {
+                            deleteQuietly(temporaryFile);
+                            failures.add(new Failure(entryPath, String.valueOf(e.getMessage())));
+                        }
+                    });
+                }
+            }
+        }
+        return new Result(stored.get(), new ArrayList<>(failures));
+    }
+
+    private static void store(EntryTarget target, String path, byte[] content) throws IOException {
+        Path temporaryFile = target.newTemporaryFile();
+        try {
+            Files.write(temporaryFile, content);
+            Checksum.Accumulator checksums = target.newChecksums();
+            if (checksums != null) {
+                checksums.update(content, 0, content.length);
+            }
+            target.commit(temporaryFile, path, checksums == null ? null : checksums.finish());
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(temporaryFile);
+            throw e;
+        }
+    }
+
+    /**
+     * @param path an entry path as received
+     * @return why the path is not acceptable, or null if it stays inside the batch's directory
+     */
+    static String checkPath(String path) {
+        try {
+            Path relative = Paths.get(path).normalize();
+            if (relative.isAbsolute() || relative.getRoot() != null || relative.startsWith("..")
+                    || relative.toString().isEmpty()) {
+                return "Path outside the batch's directory";
+            }
+            return null;
+        } catch (RuntimeException e) {
+            return "Invalid path";
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            Log.warn("Unable to delete " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads entry headers and contents from a channel through one buffer. Headers are parsed
+     * from the buffer; file data is taken from what the buffer already holds and then read from
+     * the channel straight into the file.
+     */
+    static final class EntryReader {
+
+        private final ReadableByteChannel channel;
+        private final BufferPool pool;
+        // Holds up to a whole header, whose path may be 65535 bytes long
+        private final ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE + Short.BYTES);
+
+        EntryReader(ReadableByteChannel channel, BufferPool pool) {
+            this.channel = channel;
+            this.pool = pool;
+            buffer.flip();
+        }
+
+        private void require(int count) throws IOException {
+            if (buffer.remaining() >= count) {
+                return;
+            }
+            buffer.compact();
+            try {
+                while (buffer.position() < count) {
+                    if (channel.read(buffer) < 0) {
+                        throw new EOFException("Batch ended without its last entry");
+                    }
+                }
+            } finally {
+                buffer.flip();
+            }
+        }
+
+        String readUTF() throws IOException {
+            require(Short.BYTES);
+            int length = buffer.getShort() & 0xFFFF;
+            require(length);
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return ModifiedUtf8.decode(bytes, length);
+        }
+
+        long readLong() throws IOException {
+            require(Long.BYTES);
+            return buffer.getLong();
+        }
+
+        boolean readBoolean() throws IOException {
+            require(1);
+            return buffer.get() != 0;
+        }
+
+        int readInt() throws IOException {
+            require(Integer.BYTES);
+            return buffer.getInt();
+        }
+
+        void readFully(byte[] target) throws IOException {
+            int buffered = Math.min(buffer.remaining(), target.length);
+            buffer.get(target, 0, buffered);
+            ByteBuffer rest = ByteBuffer.wrap(target, buffered, target.length - buffered);
+            while (rest.hasRemaining()) {
+                if (channel.read(rest) < 0) {
+                    throw new EOFException("Batch ended inside an entry");
+                }
+            }
+        }
+
+        /**
+         * Writes the next {@code count} bytes into a file.
+         *
+         * @param file      the file to write, from position 0
+         * @param count     the entry's size
+         * @param checksums updated with every byte of the entry, or null
+         * @throws IOException if the stream ends early or writing fails
+         */
+        void readTo(FileChannel file, long count, Checksum.Accumulator checksums) throws IOException {
+            ByteBuffer buffered = buffer.slice(buffer.position(), (int) Math.min(buffer.remaining(), count));
+            buffer.position(buffer.position() + buffered.remaining());
+            long position = 0;
+            if (checksums != null) {
+                checksums.update(buffered);
+            }
+            while (buffered.hasRemaining()) {
+                position += file.write(buffered, position);
+            }
+            Transfers.receive(channel, file, position, count - position, checksums, pool);
+        }
+
+        void skip(long count) throws IOException {
+            long remaining = count;
+            while (remaining > 0) {
+                if (!buffer.hasRemaining()) {
+                    require(1);
+                }
+                int skipped = (int) Math.min(buffer.remaining(), remaining);
+                buffer.position(buffer.position() + skipped);
+                remaining -= skipped;
+            }
+        }
+    }
+
+    /**
+     * @param path    the path relative to the walked directory
+     * @param content the file's bytes if it is small enough to read ahead, else null
+     * @param file    the file, for entries sent from disk
+     */
+    private record Entry(String path, byte[] content, Path file) {
+    }
+
+    /**
+     * Lists a directory tree on several threads and reads small files ahead, handing entries to
+     * the single thread that writes them to the connection.
+     */
+    private static final class TreeWalker implements AutoCloseable {
+
+        private static final Entry END = new Entry("", null, null);
+
+        private final Path root;
+        private final ExecutorService walkers = Executors.newFixedThreadPool(PARALLELISM, Thread.ofVirtual().factory());
+        private final BlockingQueue<Entry> entries = new ArrayBlockingQueue<>(QUEUED_ENTRIES);
+        private final Semaphore bufferedBytes = new Semaphore(MAX_BUFFERED_BYTES);
+        // Directories listed or waiting to be; the walk is over when it drops to 0
+        private final AtomicInteger pendingDirectories = new AtomicInteger(1);
+
+        TreeWalker(Path root) {
+            this.root = root;
+            walkers.execute(() -> walk(root));
+        }
+
+        /**
+         * @return the next entry, or null once the whole tree has been returned
+         * @throws IOException if interrupted
+         */
+        Entry next() throws IOException {
+            try {
+                Entry entry = entries.take();
+                return entry == END ? null : entry;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+
+        void release(Entry entry) {
+            bufferedBytes.release(Math.max(entry.content.length, 1));
+        }
+
+        private void walk(Path directory) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        pendingDirectories.incrementAndGet();
+                        walkers.execute(() -> walk(child));
+                    } else if (attributes.isRegularFile()) {
+                        entries.put(read(child, attributes.size()));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                Log.warn("Unable to list " + directory + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                // The batch was abandoned
+                return;
+            } finally {
+                if (pendingDirectories.decrementAndGet() == 0) {
+                    try {
+                        entries.put(END);
+                    } catch (InterruptedException e) {
+                        // Nobody is waiting for the end any more
+                    }
+                }
+            }
+        }
+
+        private Entry read(Path file, long size) throws InterruptedException {
+            String path = root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+            if (size > BUFFERED_ENTRY_SIZE) {
+                return new Entry(path, null, file);
+            }
+            bufferedBytes.acquire(Math.max((int) size, 1));
+            try {
+                byte[] content = Files.readAllBytes(file);
+                if (content.length <= BUFFERED_ENTRY_SIZE && content.length == size) {
+                    return new Entry(path, content, file);
+                }
+            } catch (IOException e) {
+                // Sent from disk, which reports the problem or skips the file
+            }
+            bufferedBytes.release(Math.max((int) size, 1));
+            return new Entry(path, null, file);
+        }
+
+        @Override
+        public void close() {
+            walkers.shutdownNow();
+            try {
+                walkers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
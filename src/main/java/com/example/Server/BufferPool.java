@@ -0,0 +1,97 @@
+package com.example.Server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reusable direct buffers for the copy loops in {@link Transfers}, so a transfer in the steady
+ * state allocates nothing and no transfer pays for zeroing a fresh megabyte of native memory.
+ * Each server has a pool of its own, sized by its configuration, and so does each client.
+ * The pool keeps at most its configured number of bytes; buffers returned beyond that are left to
+ * the garbage collector, and a transfer that finds the pool empty allocates a new buffer.
+ * <p>
+ * A transfer must hand back every buffer it takes to the pool it took it from, after its last
+ * use:
+ * <pre>{@code
+ * ByteBuffer buffer = pool.acquire();
+ * try {
+ *     ...
+ * } finally {
+ *     pool.release(buffer);
+ * }
+ * }</pre>
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final int capacity;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final LongAdder allocations = new LongAdder();
+
+    /**
+     * @param bufferSize the capacity of each buffer
+     * @param poolSize   the most bytes of free buffers kept for reuse
+     */
+    BufferPool(int bufferSize, long poolSize) {
+        this.bufferSize = bufferSize;
+        this.capacity = (int) Math.min(Integer.MAX_VALUE, poolSize / bufferSize);
+    }
+
+    /**
+     * @return a pool with the default buffer and pool sizes, for a client
+     */
+    static BufferPool withDefaults() {
+        return new BufferPool(ServerConfig.DEFAULT_IO_BUFFER_SIZE, ServerConfig.DEFAULT_BUFFER_POOL_SIZE);
+    }
+
+    /**
+     * @return a cleared buffer of {@link #bufferSize()} bytes, owned by the caller until released
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocations.increment();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        freeCount.decrementAndGet();
+        return buffer.clear();
+    }
+
+    /**
+     * Returns a buffer for reuse. The caller must not touch it afterwards.
+     *
+     * @param buffer a buffer obtained from {@link #acquire()} on this pool
+     */
+    void release(ByteBuffer buffer) {
+        if (freeCount.incrementAndGet() <= capacity) {
+            free.offer(buffer);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the capacity of each buffer
+     */
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of buffers allocated so far; flat once the pool has warmed up
+     */
+    long allocations() {
+        return allocations.sum();
+    }
+
+    /**
+     * @return the number of buffers ready for reuse
+     */
+    int available() {
+        return freeCount.get();
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.Server;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Coalescing stream of changes to the stored files. Handlers publish every change as it happens;
+ * subscribers receive them in batches at most once per interval, with repeated changes to the
+ * same path collapsed into the latest one. A thousand uploads a second therefore cost a user
+ * interface a handful of refreshes instead of a thousand.
+ * <p>
+ * If more distinct paths change within one interval than a batch holds, the details are dropped
+ * and subscribers get a single {@link Kind#OVERFLOW} change, telling them to reload everything.
+ */
+public final class ChangeEvents implements AutoCloseable {
+
+    private static final int MAX_BATCH = 10_000;
+
+    /**
+     * What happened to a path.
+     */
+    public enum Kind {
+        /** The file was stored, replaced or moved here. */
+        ADDED,
+        /** The file was deleted or moved away. */
+        REMOVED,
+        /** Too many changes to list; anything may have changed. */
+        OVERFLOW
+    }
+
+    /**
+     * One change to a stored file.
+     *
+     * @param kind what happened
+     * @param path the absolute path of the file, or null for {@link Kind#OVERFLOW}
+     */
+    public record Change(Kind kind, Path path) {
+    }
+
+    private final long intervalMillis;
+    private final List<Consumer<List<Change>>> subscribers = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "change-events");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Guarded by this
+    private Map<Path, Kind> pending = new LinkedHashMap<>();
+    private boolean overflowed;
+    private boolean flushScheduled;
+
+    /**
+     * @param intervalMillis the minimum time between two batches delivered to subscribers
+     */
+    ChangeEvents(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Registers a subscriber. Batches are delivered on a dedicated thread, one at a time and in
+     * order; a subscriber that updates a user interface has to hand them to its own thread.
+     *
+     * @param subscriber receives each batch of changes
+     * @return a handle that unsubscribes when closed
+     */
+    public AutoCloseable subscribe(Consumer<List<Change>> subscriber) {
+        subscribers.add(subscriber);
+        return () -> subscribers.remove(subscriber);
+    }
+
+    /**
+     * Records a change, to be delivered with the next batch.
+     *
+     * @param kind {@link Kind#ADDED} or {@link Kind#REMOVED}
+     * @param path the changed file
+     */
+    void publish(Kind kind, Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        synchronized (this) {
+            if (!overflowed) {
+                // Re-inserting moves the path to the end, so the batch keeps the order of last changes
+                pending.remove(key);
+                pending.put(key, kind);
+                if (pending.size() > MAX_BATCH) {
+                    pending = new LinkedHashMap<>();
+                    overflowed = true;
+                }
+            }
+            if (flushScheduled || scheduler.isShutdown()) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        scheduler.schedule(this::flush, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        List<Change> batch;
+        synchronized (this) {
+            if (overflowed) {
+                batch = List.of(new Change(Kind.OVERFLOW, null));
+            } else {
+                batch = new ArrayList<>(pending.size());
+                pending.forEach((path, kind) -> batch.add(new Change(kind, path)));
+            }
+            pending = new LinkedHashMap<>();
+            overflowed = false;
+            flushScheduled = false;
+        }
+        for (Consumer<List<Change>> subscriber : subscribers) {
+            try {
+                subscriber.accept(batch);
+            } catch (RuntimeException e) {
+                Log.warn("Change subscriber failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Stops delivering batches; changes still pending are dropped.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
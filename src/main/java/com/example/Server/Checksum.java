@@ -0,0 +1,77 @@
+package com.example.Server;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+/**
+ * The checksums of a file's content: always its CRC32C, which is cheap enough to compute on every
+ * transfer, and its SHA-256 when that was wanted as well, e.g. for deduplication.
+ *
+ * @param crc32c the CRC32C of the content
+ * @param sha256 the SHA-256 of the content as lower case hex, or null if it was not computed
+ */
+record Checksum(long crc32c, String sha256) {
+
+    /**
+     * @param withSha256 whether to compute the SHA-256 as well as the CRC32C
+     * @return an accumulator to feed the content to as it streams through a copy loop
+     */
+    static Accumulator accumulate(boolean withSha256) {
+        return new Accumulator(withSha256);
+    }
+
+    /**
+     * Checksums computed incrementally, one buffer at a time, so a transfer never has to read the
+     * data a second time to check or record it. Not thread safe.
+     */
+    static final class Accumulator {
+
+        private final CRC32C crc = new CRC32C();
+        private final MessageDigest digest;
+
+        private Accumulator(boolean withSha256) {
+            this.digest = withSha256 ? ContentStore.newDigest() : null;
+        }
+
+        /**
+         * Adds the remaining bytes of a buffer without moving its position.
+         *
+         * @param buffer the bytes that have just been read or are about to be written
+         */
+        void update(ByteBuffer buffer) {
+            crc.update(buffer.duplicate());
+            if (digest != null) {
+                digest.update(buffer.duplicate());
+            }
+        }
+
+        /**
+         * Adds bytes from an array.
+         *
+         * @param bytes  the array
+         * @param offset the index of the first byte
+         * @param count  the number of bytes
+         */
+        void update(byte[] bytes, int offset, int count) {
+            update(ByteBuffer.wrap(bytes, offset, count));
+        }
+
+        /**
+         * @return the CRC32C of everything added so far; more may still be added
+         */
+        long crc32c() {
+            return crc.getValue();
+        }
+
+        /**
+         * Completes the checksums. The accumulator must not be used afterwards.
+         *
+         * @return the checksums of everything added
+         */
+        Checksum finish() {
+            return new Checksum(crc.getValue(), digest == null ? null : HexFormat.of().formatHex(digest.digest()));
+        }
+    }
+}
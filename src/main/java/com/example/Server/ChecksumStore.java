@@ -0,0 +1,204 @@
+package com.example.Server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checksums of stored files, recorded while the server received or sent them, so STAT, VERIFY and
+ * downloads can answer without reading the file again. An entry is only trusted while the file's
+ * size and last modified time are still those it had when the entry was recorded, and the server
+ * drops the entry whenever it stores, moves or deletes the file.
+ * <p>
+ * Entries are kept in memory and in an append-only log next to the other server state, one line
+ * per change. The log is rewritten with just the live entries when the store is opened and once it
+ * has grown well past them. It is a cache: an entry lost in a crash only means the checksum is
+ * computed again the next time it is asked for.
+ */
+final class ChecksumStore implements Closeable {
+
+    /** Rewrite the log once it has twice as many lines as there are entries, and at least this many. */
+    private static final int MIN_COMPACTION_LINES = 10_000;
+
+    private final Path logFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private Writer log;
+    private int logLines;
+
+    /**
+     * Opens the store, loading and compacting the log left by earlier runs.
+     *
+     * @param logFile the log file, created if missing
+     * @throws IOException if the log cannot be read or written
+     */
+    ChecksumStore(Path logFile) throws IOException {
+        this.logFile = logFile;
+        Files.createDirectories(logFile.toAbsolutePath().getParent());
+        load();
+        compact();
+    }
+
+    /**
+     * @param file a stored file
+     * @return the checksums recorded for the file's current content, or null if there are none
+     */
+    Checksum get(Path file) {
+        String key = key(file);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            if (entry.matches(Files.readAttributes(file, BasicFileAttributes.class))) {
+                return entry.checksum();
+            }
+        } catch (IOException e) {
+            // Gone; the entry is as stale as one for changed content
+        }
+        entries.remove(key, entry);
+        return null;
+    }
+
+    /**
+     * Records the checksums of a file the server has just stored or read in full. Nothing is
+     * recorded if the file has changed since, so a checksum is never filed under the wrong
+     * version of the file.
+     *
+     * @param file       the stored file
+     * @param attributes the file's attributes before its content was checksummed
+     * @param checksum   the checksums of that content
+     */
+    void put(Path file, BasicFileAttributes attributes, Checksum checksum) {
+        Entry entry = new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), checksum);
+        try {
+            if (!entry.matches(Files.readAttributes(file, BasicFileAttributes.class))) {
+                return;
+            }
+        } catch (IOException e) {
+            return;
+        }
+        String key = key(file);
+        entries.put(key, entry);
+        append(entry.line(key));
+    }
+
+    /**
+     * Forgets a file's checksums, e.g. because it was deleted or is about to be replaced.
+     *
+     * @param file the stored file
+     */
+    void removed(Path file) {
+        String key = key(file);
+        if (entries.remove(key) != null) {
+            append("- " + encode(key));
+        }
+    }
+
+    /**
+     * @return the number of files with recorded checksums
+     */
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private synchronized void append(String line) {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.write(line);
+            log.write('\n');
+            log.flush();
+            logLines++;
+            if (logLines > Math.max(MIN_COMPACTION_LINES, 2L * entries.size())) {
+                compact();
+            }
+        } catch (IOException e) {
+            Log.warn("Unable to write the checksum log: " + e.getMessage());
+        }
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                try {
+                    if (fields.length == 2 && fields[0].equals("-")) {
+                        entries.remove(decode(fields[1]));
+                    } else if (fields.length == 6 && fields[0].equals("+")) {
+                        Checksum checksum = new Checksum(Long.parseUnsignedLong(fields[1], 16),
+                                fields[2].equals("-") ? null : fields[2]);
+                        entries.put(decode(fields[5]), new Entry(Long.parseLong(fields[3]), Long.parseLong(fields[4]), checksum));
+                    }
+                } catch (IllegalArgumentException e) {
+                    // A line torn by a crash; the checksum is computed again when needed
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // First run
+        }
+    }
+
+    /**
+     * Replaces the log with one line per live entry.
+     */
+    private synchronized void compact() throws IOException {
+        close();
+        Path temporaryFile = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writer.write(entry.getValue().line(entry.getKey()));
+                writer.newLine();
+            }
+        }
+        Files.move(temporaryFile, logFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        logLines = entries.size();
+        log = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private static String key(Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    private static String encode(String key) {
+        return URLEncoder.encode(key, StandardCharsets.UTF_8);
+    }
+
+    private static String decode(String field) {
+        return URLDecoder.decode(field, StandardCharsets.UTF_8);
+    }
+
+    private record Entry(long size, long lastModified, Checksum checksum) {
+
+        boolean matches(BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() == lastModified;
+        }
+
+        String line(String key) {
+            return "+ " + Long.toHexString(checksum.crc32c()) + " " + (checksum.sha256() == null ? "-" : checksum.sha256())
+                    + " " + size + " " + lastModified + " " + encode(key);
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package com.example.Server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This server's part in a cluster of file servers that share out the files between them. Every
+ * node is given the same member list ({@code fileserver.cluster.nodes}); the {@link ClusterRing}
+ * places each file on {@code fileserver.cluster.replicas} of them.
+ * <p>
+ * Clients may send any request to any node. A node stores an upload as usual, replies, and then
+ * copies the file to the file's other owners in the background, one queue per peer so each peer
+ * sees the changes in the order they happened here. A node that is not an owner itself deletes
+ * its copy once every owner has one. Moves and deletes are carried out by a node that holds the
+ * file and queued for its other owners the same way; a node that does not hold the file passes
+ * the request to one that does and answers with its outcome. Reads are served by whichever node
+ * is asked; {@code LOCATE} tells clients the owners of a file, least loaded first, so they can
+ * spread reads across the replicas. The commands nodes send each other are only accepted from the
+ * members' addresses.
+ * <p>
+ * Nodes ask each other for their load, the number of open connections, every second; a node that
+ * does not answer is listed last until it does again. Replication to a node that is down is
+ * retried for {@link #REPLICATION_DEADLINE_MILLIS} and then given up, leaving that replica stale:
+ * there is no repair of replicas that missed changes, and no rebalancing when the member list
+ * changes.
+ */
+final class Cluster implements AutoCloseable {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
+    private static final long REPLICATION_DEADLINE_MILLIS = 60_000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5000;
+
+    private final FileServerCore fileServer;
+    private final ClusterRing ring;
+    private final int replicas;
+    private final ClusterRing.Node self;
+    private final Set<InetAddress> memberAddresses;
+    private final Map<ClusterRing.Node, Peer> peers = new LinkedHashMap<>();
+    private final ScheduledExecutorService heartbeat;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong replicated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong handedOff = new AtomicLong();
+
+    /**
+     * Joins the cluster: finds this server in the member list by its port and starts asking the
+     * other members for their load.
+     *
+     * @param fileServer the local server
+     * @param ring       the placement of files on the members
+     * @param replicas   how many members hold each file
+     * @param port       the port this server is bound to
+     */
+    Cluster(FileServerCore fileServer, ClusterRing ring, int replicas, int port) {
+        this.fileServer = fileServer;
+        this.ring = ring;
+        this.replicas = replicas;
+        this.self = ring.nodes().stream().filter(node -> node.port() == port && isLocal(node.host())).findFirst().orElse(null);
+        this.memberAddresses = resolve(ring.nodes());
+        if (self == null) {
+            Log.warn("Port " + port + " is not in the cluster's member list; this server stores nothing for long"
+                    + " and hands every upload on to its owners");
+        }
+        for (ClusterRing.Node node : ring.nodes()) {
+            if (!node.equals(self)) {
+                peers.put(node, new Peer(node));
+            }
+        }
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::pingPeers, 0, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        Log.info("Cluster member " + (self == null ? "(none)" : self) + " of " + ring.nodes().size()
+                + " nodes, " + replicas + " replicas per file");
+    }
+
+    /**
+     * Returns the nodes holding a file, the ones answering first and among them the least
+     * loaded first.
+     *
+     * @param fileName the file's path relative to the server directory
+     * @return the file's owners
+     * @throws IOException if the path leads outside the server directory
+     */
+    List<ClusterRing.Node> locate(String fileName) throws IOException {
+        List<ClusterRing.Node> owners = new ArrayList<>(owners(key(fileServer.storedPath(fileName))));
+        owners.sort(Comparator.comparing((ClusterRing.Node node) -> !isAlive(node)).thenComparingInt(this::load));
+        return owners;
+    }
+
+    /**
+     * Tells whether a connection comes from a member, the only ones allowed to send the commands
+     * nodes send each other. Members are known by the addresses their host names resolved to
+     * when this server started.
+     *
+     * @param address the connection's remote address
+     * @return true if the address belongs to a node in the member list
+     */
+    boolean isMember(InetAddress address) {
+        return memberAddresses.contains(address);
+    }
+
+    /**
+     * @return this server's load as reported to the other nodes
+     */
+    int load() {
+        return fileServer.metrics().openConnections();
+    }
+
+    /**
+     * Copies a file a client has just stored here to its other owners, and hands it off if this
+     * node is not one of them.
+     *
+     * @param file the stored file
+     */
+    void stored(Path file) {
+        String key = key(file);
+        List<ClusterRing.Node> owners = owners(key);
+        Handoff handoff = owners.contains(self) ? null : new Handoff(file, owners.size());
+        for (ClusterRing.Node owner : owners) {
+            if (!owner.equals(self)) {
+                replicate(owner, "copy " + key, () -> sendFile(owner, key), handoff);
+            }
+        }
+    }
+
+    /**
+     * Moves a file on this node and on its replicas, or asks a node that holds it to.
+     *
+     * @param sourcePath      the file to move, relative to the server directory
+     * @param targetDirectory the directory to move it to, relative to the server directory (or
+     *                        absolute inside it, from older clients), or empty for the server
+     *                        directory itself; other nodes are sent it relative
+     * @param mayForward      whether a request for a file this node does not hold may be passed
+     *                        on to one that does; false for requests passed on by another node
+     * @return true if the file was moved
+     */
+    boolean move(String sourcePath, String targetDirectory, boolean mayForward) {
+        Path source;
+        String directoryKey;
+        try {
+            source = fileServer.storedPath(sourcePath);
+            // Other nodes have other roots, so an absolute directory from an older client is
+            // only meaningful here
+            directoryKey = targetDirectory.isEmpty() ? "" : key(fileServer.storedPath(targetDirectory));
+        } catch (IOException e) {
+            Log.warn("Failed to move " + sourcePath + ": " + e.getMessage());
+            return false;
+        }
+        String sourceKey = key(source);
+        if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+            return mayForward && forward(sourceKey, "CLUSTER_MOVE", sourceKey, directoryKey);
+        }
+        if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+            // Each node holds a different part of a directory, and its files would all be placed anew
+            Log.warn("Directories cannot be moved in a cluster: " + sourcePath);
+            return false;
+        }
+        Path target = fileServer.moveStoredFile(sourceKey, directoryKey);
+        if (target == null) {
+            return false;
+        }
+        String targetKey = key(target);
+        List<ClusterRing.Node> targetOwners = owners(targetKey);
+        Set<ClusterRing.Node> affected = new LinkedHashSet<>(owners(sourceKey));
+        affected.addAll(targetOwners);
+        Handoff handoff = targetOwners.contains(self) ? null : new Handoff(target, targetOwners.size());
+        for (ClusterRing.Node node : affected) {
+            if (node.equals(self)) {
+                continue;
+            }
+            if (targetOwners.contains(node)) {
+                // An owner of the target that could not move the source gets the content instead,
+                // and any replica of the source it does hold must not outlive the move
+                replicate(node, "move " + sourceKey, () -> {
+                    if (!call(node, "REPLICA_MOVE", sourceKey, directoryKey)) {
+                        sendFile(node, targetKey);
+                        call(node, "REPLICA_DELETE", sourceKey, null);
+                    }
+                }, handoff);
+            } else {
+                replicate(node, "delete " + sourceKey, () -> call(node, "REPLICA_DELETE", sourceKey, null), null);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes a file on this node and on its replicas, or asks a node that holds it to.
+     *
+     * @param fileName   the file to delete, relative to the server directory (or absolute inside
+     *                   it, from older clients); other nodes are sent it relative
+     * @param mayForward whether a request for a file this node does not hold may be passed on to
+     *                   one that does; false for requests passed on by another node
+     * @return true if the file was deleted
+     */
+    boolean delete(String fileName, boolean mayForward) {
+        Path file;
+        try {
+            file = fileServer.storedPath(fileName);
+        } catch (IOException e) {
+            Log.warn("Failed to delete " + fileName + ": " + e.getMessage());
+            return false;
+        }
+        String key = key(file);
+        if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+            return mayForward && forward(key, "CLUSTER_DELETE", key, null);
+        }
+        if (!fileServer.deleteStoredFile(fileName)) {
+            return false;
+        }
+        for (ClusterRing.Node owner : owners(key)) {
+            if (!owner.equals(self)) {
+                replicate(owner, "delete " + key, () -> call(owner, "REPLICA_DELETE", key, null), null);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return changes waiting to be sent to other nodes
+     */
+    int pendingReplications() {
+        return pending.get();
+    }
+
+    /**
+     * @return changes other nodes have applied
+     */
+    long replications() {
+        return replicated.get();
+    }
+
+    /**
+     * @return changes given up on after other nodes did not take them in time
+     */
+    long replicationFailures() {
+        return failed.get();
+    }
+
+    /**
+     * @return moves and deletes passed on to a node holding the file
+     */
+    long forwardedRequests() {
+        return forwarded.get();
+    }
+
+    /**
+     * @return uploads this node stopped holding once their owners had them
+     */
+    long handoffs() {
+        return handedOff.get();
+    }
+
+    /**
+     * @return the other nodes answering the heartbeat
+     */
+    int livePeers() {
+        return (int) peers.values().stream().filter(peer -> peer.alive).count();
+    }
+
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+        for (Peer peer : peers.values()) {
+            // Changes still queued are lost; the journal only covers this node's own tree
+            peer.replication.shutdownNow();
+        }
+    }
+
+    private List<ClusterRing.Node> owners(String key) {
+        return ring.owners(key, replicas);
+    }
+
+    private boolean isAlive(ClusterRing.Node node) {
+        Peer peer = peers.get(node);
+        return peer == null || peer.alive;
+    }
+
+    private int load(ClusterRing.Node node) {
+        Peer peer = peers.get(node);
+        return peer == null ? load() : peer.load;
+    }
+
+    /**
+     * @return the path relative to the storage root with {@code /} separators, the same on every node
+     */
+    private String key(Path file) {
+        Path storageRoot = fileServer.root().toAbsolutePath().normalize();
+        return storageRoot.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    /**
+     * Passes a move or delete to the first owner of the file that answers.
+     */
+    private boolean forward(String key, String command, String fileName, String argument) {
+        for (ClusterRing.Node owner : owners(key)) {
+            if (owner.equals(self)) {
+                continue;
+            }
+            try {
+                forwarded.incrementAndGet();
+                return call(owner, command, fileName, argument);
+            } catch (IOException e) {
+                Log.warn("Unable to pass " + command + " of " + fileName + " to " + owner + ": " + e.getMessage());
+            }
+        }
+        Log.info("File " + fileName + " not found in the cluster.");
+        return false;
+    }
+
+    /**
+     * Queues a change for another node, retrying until it is applied or the deadline passes.
+     */
+    private void replicate(ClusterRing.Node node, String description, PeerCall call, Handoff handoff) {
+        pending.incrementAndGet();
+        peers.get(node).replication.execute(() -> {
+            long deadline = System.currentTimeMillis() + REPLICATION_DEADLINE_MILLIS;
+            long delay = 100;
+            boolean applied = false;
+            try {
+                while (!applied) {
+                    try {
+                        call.call();
+                        applied = true;
+                    } catch (IOException e) {
+                        if (System.currentTimeMillis() + delay > deadline) {
+                            Log.warn("Gave up replicating " + description + " to " + node + ": " + e.getMessage());
+                            break;
+                        }
+                        Thread.sleep(delay);
+                        delay = Math.min(delay * 2, MAX_RETRY_DELAY_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pending.decrementAndGet();
+                (applied ? replicated : failed).incrementAndGet();
+                if (handoff != null) {
+                    handoff.done(applied);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a stored file to another node. A file that is gone by now is not sent; whatever
+     * removed it has queued its own change.
+     */
+    private void sendFile(ClusterRing.Node node, String key) throws IOException {
+        Path file = fileServer.root().resolve(key);
+        FileChannel fileChannel;
+        try {
+            fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            if (!Files.exists(file)) {
+                return;
+            }
+            throw e;
+        }
+        try (fileChannel; Socket socket = connect(node)) {
+            long size = fileChannel.size();
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            outputStream.writeUTF("REPLICA_UPLOAD");
+            outputStream.writeUTF(key);
+            outputStream.writeLong(size);
+            outputStream.flush();
+            Transfers.sendFile(fileChannel, 0, size, socket.getChannel(), fileServer.bufferPool());
+            if (!new DataInputStream(socket.getInputStream()).readBoolean()) {
+                throw new IOException(node + " did not store " + key);
+            }
+        }
+    }
+
+    /**
+     * Sends a request without payload to another node and returns its yes or no answer.
+     */
+    private boolean call(ClusterRing.Node node, String command, String fileName, String argument) throws IOException {
+        try (Socket socket = connect(node)) {
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            outputStream.writeUTF(command);
+            outputStream.writeUTF(fileName);
+            if (argument != null) {
+                outputStream.writeUTF(argument);
+            }
+            outputStream.flush();
+            return new DataInputStream(socket.getInputStream()).readBoolean();
+        }
+    }
+
+    private Socket connect(ClusterRing.Node node) throws IOException {
+        Socket socket = SocketChannel.open().socket();
+        try {
+            socket.connect(node.address(), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(ServerConfig.soTimeout(fileServer.config().readTimeoutMillis()));
+            socket.setTcpNoDelay(true);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void pingPeers() {
+        for (Peer peer : peers.values()) {
+            try (Socket socket = connect(peer.node)) {
+                socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+                outputStream.writeUTF("NODE_LOAD");
+                outputStream.writeUTF(self == null ? "" : self.toString());
+                outputStream.flush();
+                peer.load = new DataInputStream(socket.getInputStream()).readInt();
+                if (!peer.alive) {
+                    Log.info("Cluster node " + peer.node + " is up");
+                }
+                peer.alive = true;
+            } catch (IOException e) {
+                if (peer.alive) {
+                    Log.warn("Cluster node " + peer.node + " is down: " + e.getMessage());
+                }
+                peer.alive = false;
+            }
+        }
+    }
+
+    private static Set<InetAddress> resolve(List<ClusterRing.Node> nodes) {
+        Set<InetAddress> addresses = new HashSet<>();
+        for (ClusterRing.Node node : nodes) {
+            try {
+                addresses.addAll(List.of(InetAddress.getAllByName(node.host())));
+            } catch (IOException e) {
+                Log.warn("Unable to resolve cluster node " + node + ", its requests will be refused: " + e.getMessage());
+            }
+        }
+        return addresses;
+    }
+
+    private static boolean isLocal(String host) {
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            return address.isLoopbackAddress() || address.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(address) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** A request to another node. */
+    private interface PeerCall {
+        void call() throws IOException;
+    }
+
+    /** Another member, its last reported load and the changes queued for it. */
+    private static final class Peer {
+
+        final ClusterRing.Node node;
+        final ExecutorService replication;
+        volatile boolean alive;
+        volatile int load;
+
+        Peer(ClusterRing.Node node) {
+            this.node = node;
+            this.replication = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "replicate-" + node);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * A file stored on a node that does not own it, deleted there once every owner has a copy,
+     * unless it changed in the meantime.
+     */
+    private final class Handoff {
+
+        private final Path file;
+        private final BasicFileAttributes stored;
+        private final AtomicInteger remaining;
+        private volatile boolean incomplete;
+
+        Handoff(Path file, int owners) {
+            this.file = file;
+            this.remaining = new AtomicInteger(owners);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException e) {
+                attributes = null;
+            }
+            this.stored = attributes;
+        }
+
+        void done(boolean applied) {
+            if (!applied) {
+                incomplete = true;
+            }
+            if (remaining.decrementAndGet() > 0 || incomplete || stored == null) {
+                return;
+            }
+            try {
+                BasicFileAttributes current = Files.readAttributes(file, BasicFileAttributes.class);
+                if (current.size() == stored.size() && current.lastModifiedTime().equals(stored.lastModifiedTime())
+                        && fileServer.deleteStoredFile(key(file))) {
+                    handedOff.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // Gone or replaced since, which queued its own changes
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.Server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides which nodes of a cluster hold a file, by consistent hashing of its path. Every node
+ * is placed on a ring of 64-bit hashes at {@link #VIRTUAL_NODES} points; a file belongs to the
+ * first nodes met going clockwise from its own hash. Adding or removing a node only moves the
+ * files next to its points, about one in every N, and the many points per node even out the
+ * share each gets.
+ * <p>
+ * Every node computes the same placement from the same member list, so the list, in any order,
+ * is all the nodes have to agree on.
+ */
+final class ClusterRing {
+
+    /** Points per node on the ring. */
+    static final int VIRTUAL_NODES = 128;
+
+    /**
+     * A member of the cluster.
+     *
+     * @param host the host name or address other nodes and clients reach it at
+     * @param port its file server port
+     */
+    record Node(String host, int port) {
+
+        /**
+         * @param spec {@code host:port}
+         * @return the node
+         * @throws IllegalArgumentException if the port is missing or not a number
+         */
+        static Node parse(String spec) {
+            int colon = spec.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Expected host:port, got " + spec);
+            }
+            return new Node(spec.substring(0, colon).trim(), Integer.parseInt(spec.substring(colon + 1).trim()));
+        }
+
+        /**
+         * @return the socket address, resolved now
+         */
+        InetSocketAddress address() {
+            return new InetSocketAddress(host, port);
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final List<Node> nodes;
+    private final TreeMap<Long, Node> ring = new TreeMap<>();
+
+    /**
+     * @param nodes the members, each listed once
+     */
+    ClusterRing(List<Node> nodes) {
+        this.nodes = List.copyOf(nodes);
+        for (Node node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * @param spec comma separated {@code host:port} members, blank for none
+     * @return the ring
+     */
+    static ClusterRing parse(String spec) {
+        List<Node> nodes = new ArrayList<>();
+        for (String member : spec.split(",")) {
+            if (!member.isBlank()) {
+                Node node = Node.parse(member);
+                if (!nodes.contains(node)) {
+                    nodes.add(node);
+                }
+            }
+        }
+        return new ClusterRing(nodes);
+    }
+
+    /**
+     * @return every member
+     */
+    List<Node> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the nodes that hold a file, the first one being its primary.
+     *
+     * @param key      the file's path relative to the storage root, with {@code /} separators
+     * @param replicas how many nodes hold each file
+     * @return up to {@code replicas} distinct nodes, fewer only if the cluster is smaller
+     */
+    List<Node> owners(String key, int replicas) {
+        int wanted = Math.min(Math.max(1, replicas), nodes.size());
+        if (wanted == 0) {
+            return Collections.emptyList();
+        }
+        List<Node> owners = new ArrayList<>(wanted);
+        long hash = hash(key);
+        for (Map<Long, Node> part : List.of(ring.tailMap(hash), ring.headMap(hash))) {
+            for (Node node : part.values()) {
+                if (!owners.contains(node)) {
+                    owners.add(node);
+                    if (owners.size() == wanted) {
+                        return owners;
+                    }
+                }
+            }
+        }
+        return owners;
+    }
+
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
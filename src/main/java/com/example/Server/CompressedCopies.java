@@ -0,0 +1,89 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HexFormat;
+import java.util.UUID;
+
+/**
+ * Compressed copies of stored files kept at rest, so a file downloaded compressed again and again
+ * is compressed once and afterwards sent straight from disk. A copy's name carries a hash of the
+ * source path together with the source's size and last modified time, so a copy of an older
+ * version of the file is never served; the server also deletes the copies of a file whenever it
+ * stores, moves or deletes it.
+ */
+final class CompressedCopies {
+
+    private final Path directory;
+
+    /**
+     * @param directory the directory holding the copies
+     * @throws IOException if the directory cannot be created
+     */
+    CompressedCopies(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * @param source     the stored file
+     * @param attributes the stored file's current attributes
+     * @param codec      the codec of the copy
+     * @return the compressed copy of the current version of the file, or null if there is none
+     */
+    Path find(Path source, BasicFileAttributes attributes, byte codec) {
+        Path copy = directory.resolve(copyName(source, attributes, codec));
+        return Files.isRegularFile(copy) ? copy : null;
+    }
+
+    /**
+     * @return a new temporary file to compress a copy into
+     * @throws IOException if the file cannot be created
+     */
+    Path newTemporaryFile() throws IOException {
+        return Files.createFile(directory.resolve(UUID.randomUUID() + ".tmp"));
+    }
+
+    /**
+     * Makes a finished temporary file the compressed copy of a stored file.
+     *
+     * @param temporaryFile the finished copy
+     * @param source        the stored file
+     * @param attributes    the stored file's attributes when compression started
+     * @param codec         the codec of the copy
+     * @throws IOException if the rename fails
+     */
+    void commit(Path temporaryFile, Path source, BasicFileAttributes attributes, byte codec) throws IOException {
+        Files.move(temporaryFile, directory.resolve(copyName(source, attributes, codec)),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Deletes every copy of a stored file.
+     *
+     * @param source the stored file
+     */
+    void invalidate(Path source) {
+        try (DirectoryStream<Path> copies = Files.newDirectoryStream(directory, sourceKey(source) + "-*")) {
+            for (Path copy : copies) {
+                Files.deleteIfExists(copy);
+            }
+        } catch (IOException e) {
+            Log.warn("Unable to delete compressed copies of " + source + ": " + e.getMessage());
+        }
+    }
+
+    private static String copyName(Path source, BasicFileAttributes attributes, byte codec) {
+        return sourceKey(source) + "-" + attributes.size() + "-" + attributes.lastModifiedTime().toMillis() + "." + codec;
+    }
+
+    private static String sourceKey(Path source) {
+        byte[] path = source.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+        return HexFormat.of().formatHex(ContentStore.newDigest().digest(path), 0, 16);
+    }
+}
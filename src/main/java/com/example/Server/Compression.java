@@ -0,0 +1,303 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Codecs for the compressed transfer commands. The codec is chosen per transfer with a single
+ * byte on the wire; both sides stream through fixed-size buffers, and deflaters and inflaters
+ * are pooled since their native state is expensive to set up for every connection.
+ */
+final class Compression {
+
+    static final byte NONE = 0;
+    /** Deflate at level 1, cheap enough to keep up with a fast link. */
+    static final byte DEFLATE_FAST = 1;
+    /** Deflate at the default level, for slow links where every byte saved counts. */
+    static final byte DEFLATE = 2;
+
+    /** Buffer size of every compressing or decompressing stream. */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    private static final int SAMPLE_COUNT = 3;
+    /** Data above this many bits of entropy per byte is already compressed or random. */
+    private static final double ENTROPY_THRESHOLD = 7.5;
+    private static final int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final Queue<Deflater> FAST_DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final Queue<Deflater> DEFAULT_DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+    private static final LongAdder[] RAW_BYTES = {new LongAdder(), new LongAdder(), new LongAdder()};
+    private static final LongAdder[] WIRE_BYTES = {new LongAdder(), new LongAdder(), new LongAdder()};
+    private static final LongAdder[] NANOS = {new LongAdder(), new LongAdder(), new LongAdder()};
+
+    private Compression() {
+    }
+
+    /**
+     * @param codec a codec byte from the wire
+     * @return the codec, validated
+     * @throws IOException if the codec is unknown
+     */
+    static byte checkCodec(byte codec) throws IOException {
+        if (codec < NONE || codec > DEFLATE) {
+            throw new IOException("Unknown codec " + codec);
+        }
+        return codec;
+    }
+
+    /**
+     * Parses a codec name as used in system properties.
+     *
+     * @param name {@code none}, {@code fast} or {@code deflate}
+     * @return the codec byte
+     */
+    static byte codecNamed(String name) {
+        return switch (name == null ? "none" : name.toLowerCase()) {
+            case "fast" -> DEFLATE_FAST;
+            case "deflate" -> DEFLATE;
+            default -> NONE;
+        };
+    }
+
+    /**
+     * Estimates from a few samples whether the file would shrink. JPEGs, archives and other
+     * already compressed content are close to 8 bits of entropy per byte and are sent as is.
+     *
+     * @param file the file to sample
+     * @return true if compressing the file is likely to pay off
+     * @throws IOException if reading the file fails
+     */
+    static boolean isCompressible(FileChannel file) throws IOException {
+        long size = file.size();
+        if (size == 0) {
+            return false;
+        }
+        int[] histogram = new int[256];
+        ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+        long total = 0;
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            // Samples spread from the start to the end of the file
+            long position = Math.max(0, (size - SAMPLE_SIZE) * i / Math.max(1, SAMPLE_COUNT - 1));
+            sample.clear();
+            int bytesRead = file.read(sample, position);
+            for (int j = 0; j < bytesRead; j++) {
+                histogram[sample.get(j) & 0xFF]++;
+            }
+            total += Math.max(0, bytesRead);
+        }
+        double entropy = 0;
+        for (int count : histogram) {
+            if (count > 0) {
+                double p = (double) count / total;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy < ENTROPY_THRESHOLD;
+    }
+
+    /**
+     * Opens a compressing stream with a pooled deflater. {@link Encoder#finish} must be called to
+     * write the end of the stream and return the deflater to the pool; the target is not closed.
+     *
+     * @param codec  {@link #DEFLATE_FAST} or {@link #DEFLATE}
+     * @param target where the compressed bytes go
+     * @return the encoder
+     */
+    static Encoder encoder(byte codec, OutputStream target) {
+        Queue<Deflater> pool = codec == DEFLATE_FAST ? FAST_DEFLATERS : DEFAULT_DEFLATERS;
+        Deflater deflater = pool.poll();
+        if (deflater == null) {
+            deflater = new Deflater(codec == DEFLATE_FAST ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION);
+        }
+        return new Encoder(codec, target, deflater, pool);
+    }
+
+    /**
+     * Opens a decompressing stream with a pooled inflater. {@link Decoder#close} returns the
+     * inflater to the pool without closing the source.
+     *
+     * @param source the compressed bytes
+     * @return the decoder
+     */
+    static Decoder decoder(InputStream source) {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        return new Decoder(source, inflater);
+    }
+
+    /**
+     * Feeds a whole file through an encoder, reading it in buffer-sized pieces.
+     *
+     * @param source  the file to compress
+     * @param encoder the encoder to write to
+     * @throws IOException if reading the file or writing the encoder fails
+     */
+    static void compressFile(FileChannel source, Encoder encoder) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long position = 0;
+        int bytesRead;
+        while ((bytesRead = source.read(wrapped.clear(), position)) >= 0) {
+            encoder.write(buffer, 0, bytesRead);
+            position += bytesRead;
+        }
+    }
+
+    /**
+     * @return a stream writing everything to both targets, e.g. the client and a copy on disk
+     */
+    static OutputStream tee(OutputStream first, OutputStream second) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                first.write(b);
+                second.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                first.write(bytes, offset, length);
+                second.write(bytes, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                first.flush();
+                second.flush();
+            }
+        };
+    }
+
+    /**
+     * Records one finished transfer for the per-codec report.
+     *
+     * @param codec     the codec used
+     * @param rawBytes  the uncompressed size
+     * @param wireBytes the size on the wire
+     * @param nanos     the time spent
+     */
+    static void record(byte codec, long rawBytes, long wireBytes, long nanos) {
+        RAW_BYTES[codec].add(rawBytes);
+        WIRE_BYTES[codec].add(wireBytes);
+        NANOS[codec].add(nanos);
+    }
+
+    /**
+     * @return the compression ratio and throughput of each codec used so far
+     */
+    static String report() {
+        StringBuilder report = new StringBuilder();
+        String[] names = {"none", "deflate-fast", "deflate"};
+        for (int codec = NONE; codec <= DEFLATE; codec++) {
+            long raw = RAW_BYTES[codec].sum();
+            long wire = WIRE_BYTES[codec].sum();
+            long nanos = NANOS[codec].sum();
+            if (raw == 0) {
+                continue;
+            }
+            report.append(String.format("%s: %d bytes, ratio %.2f, %.1f MB/s; ", names[codec], raw,
+                    wire == 0 ? 0 : (double) raw / wire, nanos == 0 ? 0 : raw * 1000.0 / nanos));
+        }
+        return report.isEmpty() ? "no transfers" : report.substring(0, report.length() - 2);
+    }
+
+    private static <T> void release(Queue<T> pool, T codec, Runnable end) {
+        if (pool.size() < MAX_POOLED) {
+            pool.offer(codec);
+        } else {
+            end.run();
+        }
+    }
+
+    /**
+     * Compressing stream that counts the bytes it is given and the bytes it produces.
+     */
+    static final class Encoder extends DeflaterOutputStream {
+
+        private final byte codec;
+        private final Queue<Deflater> pool;
+        private final long started = System.nanoTime();
+        private boolean released;
+
+        private Encoder(byte codec, OutputStream target, Deflater deflater, Queue<Deflater> pool) {
+            super(target, deflater, BUFFER_SIZE);
+            this.codec = codec;
+            this.pool = pool;
+        }
+
+        /**
+         * Writes the end of the compressed stream, records the transfer and returns the deflater
+         * to the pool.
+         */
+        @Override
+        public void finish() throws IOException {
+            if (released) {
+                return;
+            }
+            super.finish();
+            out.flush();
+            released = true;
+            record(codec, def.getBytesRead(), def.getBytesWritten(), System.nanoTime() - started);
+            def.reset();
+            release(pool, def, def::end);
+        }
+
+        /**
+         * Finishes the stream without closing the target.
+         */
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+    }
+
+    /**
+     * Decompressing stream that leaves its source open.
+     */
+    static final class Decoder extends InflaterInputStream {
+
+        private final long started = System.nanoTime();
+        private boolean released;
+
+        private Decoder(InputStream source, Inflater inflater) {
+            super(source, inflater, BUFFER_SIZE);
+        }
+
+        /**
+         * Records the transfer under the given codec and returns the inflater to the pool.
+         */
+        void finish(byte codec) {
+            if (released) {
+                return;
+            }
+            released = true;
+            record(codec, inf.getBytesWritten(), inf.getBytesRead(), System.nanoTime() - started);
+            inf.reset();
+            release(INFLATERS, inf, inf::end);
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                inf.reset();
+                release(INFLATERS, inf, inf::end);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Runs accepted client connections on either a virtual thread per connection or a bounded
+ * platform thread pool with an admission queue. In both modes at most {@code maxInFlight}
+ * connections are admitted at once; anything beyond that is closed straight away instead of
+ * piling up threads until the JVM runs out of native memory.
+ */
+public final class ConnectionExecutor implements AutoCloseable {
+
+    private static final long SHUTDOWN_GRACE_SECONDS = 5;
+
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor pool;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final String description;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    // Admitted and not finished, closed on shutdown to free handlers blocked on the client
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    private ConnectionExecutor(ExecutorService executor, int maxInFlight, String description) {
+        this.executor = executor;
+        this.pool = executor instanceof ThreadPoolExecutor threadPool ? threadPool : null;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.description = description;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for every admitted connection.
+     *
+     * @param maxInFlight the maximum number of connections handled at the same time
+     * @return the connection executor
+     */
+    public static ConnectionExecutor virtualThreads(int maxInFlight) {
+        ExecutorService executor = Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name("client-", 0).factory());
+        return new ConnectionExecutor(executor, maxInFlight,
+                "virtual threads, max in-flight " + maxInFlight);
+    }
+
+    /**
+     * Creates an executor backed by a fixed pool of platform threads. Connections that arrive
+     * while all threads are busy wait in a bounded queue; once the queue is full they are rejected.
+     *
+     * @param threads       the number of worker threads
+     * @param queueCapacity the number of connections allowed to wait for a worker
+     * @param maxInFlight   the maximum number of connections admitted (running plus queued)
+     * @return the connection executor
+     */
+    public static ConnectionExecutor boundedPool(int threads, int queueCapacity, int maxInFlight) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "client-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return new ConnectionExecutor(executor, maxInFlight,
+                "pool of " + threads + " threads, queue " + queueCapacity + ", max in-flight " + maxInFlight);
+    }
+
+    /**
+     * Creates the executor selected by the configuration ({@code virtual} or {@code pool}).
+     *
+     * @param config the server configuration
+     * @return the configured connection executor
+     */
+    public static ConnectionExecutor create(ServerConfig config) {
+        if ("pool".equalsIgnoreCase(config.executor())) {
+            return boundedPool(config.poolThreads(), config.poolQueue(),
+                    Math.min(config.maxInFlight(), config.poolThreads() + config.poolQueue()));
+        }
+        return virtualThreads(config.maxInFlight());
+    }
+
+    /**
+     * Hands an accepted connection to the handler, or closes it if the server is at capacity.
+     *
+     * @param socket  the accepted client socket
+     * @param handler the code that serves the connection
+     * @return true if the connection was admitted, false if it was rejected
+     */
+    public boolean submit(Socket socket, Consumer<Socket> handler) {
+        if (!inFlight.tryAcquire()) {
+            reject(socket);
+            return false;
+        }
+        sockets.add(socket);
+        try {
+            executor.execute(() -> {
+                try {
+                    handler.accept(socket);
+                } finally {
+                    sockets.remove(socket);
+                    inFlight.release();
+                }
+            });
+            accepted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            sockets.remove(socket);
+            inFlight.release();
+            reject(socket);
+            return false;
+        }
+    }
+
+    private void reject(Socket socket) {
+        rejected.increment();
+        try {
+            // Reset instead of a graceful close so the client fails fast rather than waiting on a reply
+            socket.setSoLinger(true, 0);
+            socket.close();
+        } catch (IOException ignored) {
+            // The connection is being dropped anyway
+        }
+    }
+
+    /**
+     * @return the number of connections currently admitted
+     */
+    public int activeConnections() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * @return the number of admitted connections waiting for a worker thread, always 0 with
+     * virtual threads
+     */
+    public int queuedConnections() {
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    /**
+     * @return the number of connections admitted since startup
+     */
+    public long acceptedConnections() {
+        return accepted.sum();
+    }
+
+    /**
+     * @return the number of connections rejected because the server was at capacity
+     */
+    public long rejectedConnections() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    /**
+     * Stops admitting connections and closes the ones being served, so their handlers fail out
+     * of whatever read or write they are blocked in, then gives them a moment to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Closed by its handler meanwhile
+            }
+        }
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read and write timeouts for the blocking handlers. A socket's streams honour SO_TIMEOUT, but its
+ * channel, which carries the file data, blocks for as long as the client makes it. Handlers
+ * therefore move data through a {@link WatchedChannel} that notes when each read or write starts,
+ * and a single daemon thread closes the socket under any call that has been blocked for longer
+ * than its timeout. The call then fails with an {@code AsynchronousCloseException}.
+ */
+final class ConnectionWatchdog implements AutoCloseable {
+
+    /** How often blocked calls are checked, relative to the shortest timeout. */
+    private static final int CHECKS_PER_TIMEOUT = 4;
+    private static final long MIN_CHECK_INTERVAL_MILLIS = 100;
+
+    private final long readTimeoutNanos;
+    private final long writeTimeoutNanos;
+    private final Set<WatchedChannel> channels = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param readTimeoutMillis  the longest a read may block, 0 for no limit
+     * @param writeTimeoutMillis the longest a write may block, 0 for no limit
+     */
+    ConnectionWatchdog(long readTimeoutMillis, long writeTimeoutMillis) {
+        this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+        long shortest = Math.min(readTimeoutMillis > 0 ? readTimeoutMillis : Long.MAX_VALUE,
+                writeTimeoutMillis > 0 ? writeTimeoutMillis : Long.MAX_VALUE);
+        if (shortest == Long.MAX_VALUE) {
+            scheduler = null;
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(MIN_CHECK_INTERVAL_MILLIS, shortest / CHECKS_PER_TIMEOUT);
+        scheduler.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts watching a connection. Closing the returned channel stops watching it; the socket
+     * itself stays with its owner.
+     *
+     * @param socket the client socket, closed if a call times out
+     * @param input  where the connection's bytes are read from, the socket's channel or a channel
+     *               over bytes read ahead followed by it
+     * @param flow   the connection's share of the bandwidth, closed with the returned channel
+     * @return the channel the handlers read from and write to
+     */
+    WatchedChannel watch(Socket socket, ReadableByteChannel input, TransferScheduler.Flow flow) {
+        WatchedChannel channel = new WatchedChannel(socket, input, flow, channels::remove);
+        if (scheduler != null) {
+            channels.add(channel);
+        }
+        return channel;
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for (WatchedChannel channel : channels) {
+            long readingSince = channel.readingSince();
+            long writingSince = channel.writingSince();
+            if (expired(readingSince, readTimeoutNanos, now)) {
+                timedOut(channel, "read", now - readingSince);
+            } else if (expired(writingSince, writeTimeoutNanos, now)) {
+                timedOut(channel, "write", now - writingSince);
+            }
+        }
+    }
+
+    private static boolean expired(long since, long timeout, long now) {
+        return since != 0 && timeout > 0 && now - since > timeout;
+    }
+
+    private void timedOut(WatchedChannel channel, String call, long blockedNanos) {
+        Log.info("Closing " + channel.socket().getRemoteSocketAddress() + ": " + call + " blocked for "
+                + blockedNanos / 1_000_000 + " ms");
+        channels.remove(channel);
+        try {
+            channel.socket().close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        channels.clear();
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Deduplicating storage behind the flat directory layout. Every stored file's content is kept
+ * once under {@code cas/<first two hex digits>/<sha-256>} and the names in the storage tree are
+ * hard links to it, so the same artifact uploaded under forty names takes the disk space of one
+ * and everything that reads stored files by name keeps working unchanged. A client that already
+ * knows the hash of a file can have it stored under a new name without sending the data.
+ * <p>
+ * Because names share their content, stored files must never be modified in place; every write
+ * path goes through a temporary file that is committed here.
+ */
+final class ContentStore {
+
+    private static final Pattern SHA_256_HEX = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path casDirectory;
+    private final BufferPool pool;
+    private final LongAdder bytesDeduplicated = new LongAdder();
+    private volatile boolean linksUnsupported;
+
+    /**
+     * @param casDirectory the directory holding the content, on the same file system as the
+     *                     storage tree so names can be hard links
+     * @param pool         the pool of buffers files are hashed through
+     * @throws IOException if the directory cannot be created
+     */
+    ContentStore(Path casDirectory, BufferPool pool) throws IOException {
+        this.casDirectory = casDirectory;
+        this.pool = pool;
+        Files.createDirectories(casDirectory);
+    }
+
+    /**
+     * @return a new SHA-256 digest, the hash content is addressed by
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+        }
+    }
+
+    /**
+     * Computes the content address of a file.
+     *
+     * @param file the file to hash
+     * @param pool the pool the read buffer is taken from
+     * @return the file's SHA-256 as lower case hex
+     * @throws IOException if reading the file fails
+     */
+    static String sha256(Path file, BufferPool pool) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return HexFormat.of().formatHex(Transfers.digest(fileChannel, newDigest(), pool));
+        }
+    }
+
+    /**
+     * Computes the content address of a file with this store's buffers.
+     *
+     * @param file the file to hash
+     * @return the file's SHA-256 as lower case hex
+     * @throws IOException if reading the file fails
+     */
+    String sha256(Path file) throws IOException {
+        return sha256(file, pool);
+    }
+
+    /**
+     * Stores a finished temporary file under its content address and links the target name to
+     * it. If the content is already stored the temporary file is simply discarded.
+     *
+     * @param temporaryFile the finished temporary file, consumed by this call
+     * @param hash          the file's SHA-256 as lower case hex
+     * @param target        the name in the storage tree
+     * @return the target path
+     * @throws IOException if storing or linking fails
+     */
+    Path store(Path temporaryFile, String hash, Path target) throws IOException {
+        Path blob = blobPath(hash);
+        Files.createDirectories(blob.getParent());
+        if (Files.exists(blob)) {
+            bytesDeduplicated.add(Files.size(temporaryFile));
+            Files.delete(temporaryFile);
+        } else {
+            // A concurrent upload of the same content may win the race; either copy is identical
+            Files.move(temporaryFile, blob, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return link(blob, target);
+    }
+
+    /**
+     * Links the target name to content that is already stored.
+     *
+     * @param hash   the SHA-256 of the content as lower case hex
+     * @param target the name in the storage tree
+     * @return true if the content was known and linked, false if the client has to send it
+     * @throws IOException if the hash is malformed or linking fails
+     */
+    boolean linkExisting(String hash, Path target) throws IOException {
+        Path blob = blobPath(hash);
+        if (!Files.isRegularFile(blob)) {
+            return false;
+        }
+        bytesDeduplicated.add(Files.size(blob));
+        link(blob, target);
+        return true;
+    }
+
+    /**
+     * Deletes stored content no name links to any more. Only possible where the file system
+     * reports link counts; elsewhere nothing is removed.
+     *
+     * @return the number of files deleted
+     * @throws IOException if walking the store fails
+     */
+    int removeUnreferenced() throws IOException {
+        int removed = 0;
+        List<Path> blobs;
+        try (Stream<Path> walk = Files.walk(casDirectory)) {
+            blobs = walk.filter(path -> SHA_256_HEX.matcher(path.getFileName().toString()).matches()).toList();
+        }
+        for (Path blob : blobs) {
+            try {
+                if ((Integer) Files.getAttribute(blob, "unix:nlink") == 1) {
+                    Files.delete(blob);
+                    removed++;
+                }
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                return removed;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the number of bytes uploads did not have to store because the content was known
+     */
+    long bytesDeduplicated() {
+        return bytesDeduplicated.sum();
+    }
+
+    /**
+     * @param hash a content address received from a client
+     * @throws IOException if it is not a SHA-256 as lower case hex
+     */
+    static void checkHash(String hash) throws IOException {
+        if (!SHA_256_HEX.matcher(hash).matches()) {
+            throw new IOException("Not a SHA-256 hash: " + hash);
+        }
+    }
+
+    private Path blobPath(String hash) throws IOException {
+        checkHash(hash);
+        return casDirectory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private Path link(Path blob, Path target) throws IOException {
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        // Link under a temporary name first so the target is replaced atomically
+        Path link = casDirectory.resolve(UUID.randomUUID() + ".link");
+        if (!linksUnsupported) {
+            try {
+                Files.createLink(link, blob);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                Log.info("Hard links are not supported, storing copies instead: " + e.getMessage());
+                linksUnsupported = true;
+            }
+        }
+        if (linksUnsupported) {
+            Files.copy(blob, link);
+        }
+        return Files.move(link, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
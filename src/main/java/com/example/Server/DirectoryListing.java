@@ -0,0 +1,105 @@
+package com.example.Server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client side of one LIST request: a connection the server streams a directory's entries over,
+ * one page each time {@link #nextPage} is called. Entries come in the server's directory order,
+ * which is not sorted.
+ */
+final class DirectoryListing implements AutoCloseable {
+
+    /**
+     * One directory entry.
+     *
+     * @param name         the entry's file name
+     * @param directory    whether the entry is a directory
+     * @param size         the size in bytes
+     * @param lastModified the last modified time in milliseconds since the epoch
+     */
+    record Entry(String name, boolean directory, long size, long lastModified) {
+    }
+
+    private final Socket socket;
+    private final DataOutputStream outputStream;
+    private final DataInputStream inputStream;
+    private final int pageSize;
+    private boolean requested = true;
+    private boolean more = true;
+
+    /**
+     * Sends the LIST request; the server starts preparing the first page right away.
+     *
+     * @param socket    a fresh connection to the server, owned by the listing from now on
+     * @param directory the directory relative to the server directory, "" for the root
+     * @param pageSize  the number of entries per page
+     * @throws IOException if sending the request fails
+     */
+    DirectoryListing(Socket socket, String directory, int pageSize) throws IOException {
+        this.socket = socket;
+        this.pageSize = pageSize;
+        try {
+            outputStream = new DataOutputStream(socket.getOutputStream());
+            inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            outputStream.writeUTF("LIST");
+            outputStream.writeUTF(directory);
+            outputStream.writeInt(pageSize);
+            outputStream.flush();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the next page of entries.
+     *
+     * @return the entries, empty once the listing is exhausted
+     * @throws FileNotFoundException if the directory does not exist on the server
+     * @throws IOException           if the connection fails
+     */
+    synchronized List<Entry> nextPage() throws IOException {
+        if (!more) {
+            return List.of();
+        }
+        if (!requested) {
+            outputStream.writeInt(pageSize);
+            outputStream.flush();
+        }
+        requested = false;
+
+        int count = inputStream.readInt();
+        if (count < 0) {
+            more = false;
+            throw new FileNotFoundException("No such directory on the server");
+        }
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(new Entry(inputStream.readUTF(), inputStream.readBoolean(), inputStream.readLong(), inputStream.readLong()));
+        }
+        more = inputStream.readBoolean();
+        if (!more) {
+            socket.close();
+        }
+        return entries;
+    }
+
+    /**
+     * @return true until the last page has been read
+     */
+    synchronized boolean hasMore() {
+        return more;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
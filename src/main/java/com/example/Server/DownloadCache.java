@@ -0,0 +1,391 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the contents of frequently downloaded files in memory so a hot file is served without
+ * opening it again. Small files are copied into off-heap direct buffers; larger ones are mapped
+ * with {@link FileChannel#map}, so their pages stay in the page cache without being copied onto
+ * the heap. Each tier has its own byte budget and evicts least recently used entries.
+ * <p>
+ * A new file is only admitted if it is requested more often than the entries it would push out,
+ * as estimated by a small count-min sketch of recent requests (TinyLFU). A burst of one-off
+ * downloads therefore cannot flush the files that are requested all the time.
+ * <p>
+ * Callers that must not wait for the disk, such as the non-blocking engine's event loops, use
+ * {@link #peek}, which only serves entries already cached and loads a miss worth caching on
+ * another thread.
+ * <p>
+ * The server invalidates entries when it stores, moves or deletes a file, including a load still
+ * in progress, which then is not cached; as a safety net for changes made behind the server's
+ * back, an entry is also dropped when the file's size or last modified time no longer match.
+ */
+final class DownloadCache {
+
+    private final long maxDirectEntry;
+    private final Tier directTier;
+    private final Tier mappedTier;
+    private final FrequencySketch sketch = new FrequencySketch(4096);
+    private final Executor loader;
+    // Loads in progress, each with a token that invalidate() takes away. Guarded by this.
+    private final Map<Path, Object> loads = new HashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param directSize     bytes of off-heap memory for small files, 0 to disable the tier
+     * @param maxDirectEntry the largest file copied into the direct tier
+     * @param mappedSize     bytes of mapped file regions for larger files, 0 to disable the tier
+     */
+    DownloadCache(long directSize, long maxDirectEntry, long mappedSize) {
+        this(directSize, maxDirectEntry, mappedSize, task -> Thread.ofVirtual().name("cache-load").start(task));
+    }
+
+    /**
+     * @param directSize     bytes of off-heap memory for small files, 0 to disable the tier
+     * @param maxDirectEntry the largest file copied into the direct tier
+     * @param mappedSize     bytes of mapped file regions for larger files, 0 to disable the tier
+     * @param loader         runs the loads started by {@link #peek}
+     */
+    DownloadCache(long directSize, long maxDirectEntry, long mappedSize, Executor loader) {
+        this.maxDirectEntry = maxDirectEntry;
+        this.directTier = new Tier(directSize);
+        this.mappedTier = new Tier(mappedSize);
+        this.loader = loader;
+    }
+
+    /**
+     * Creates a cache with the direct tier size, largest direct entry and mapped tier size of the
+     * server configuration.
+     *
+     * @param config the server configuration
+     * @return the configured cache
+     */
+    static DownloadCache create(ServerConfig config) {
+        return new DownloadCache(config.cacheSize(), config.cacheMaxEntry(), config.cacheMappedSize());
+    }
+
+    /**
+     * Returns the cached contents of a file, loading them if the file is worth caching.
+     *
+     * @param file the stored file
+     * @return a read-only buffer over the whole file, positioned at 0, or null if the file is not
+     * cached and should be read from disk
+     * @throws IOException if the file's attributes cannot be read
+     */
+    ByteBuffer get(Path file) throws IOException {
+        return get(file, false);
+    }
+
+    /**
+     * Returns the cached contents of a file without reading the file itself. A miss worth
+     * caching is loaded on another thread, so a later request finds it.
+     *
+     * @param file the stored file
+     * @return a read-only buffer over the whole file, positioned at 0, or null if the file is not
+     * cached and should be read from disk
+     * @throws IOException if the file's attributes cannot be read
+     */
+    ByteBuffer peek(Path file) throws IOException {
+        return get(file, true);
+    }
+
+    private ByteBuffer get(Path file, boolean inBackground) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        Object token = new Object();
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Tier tier = size <= maxDirectEntry ? directTier : mappedTier;
+        if (size > tier.capacity || size > Integer.MAX_VALUE) {
+            // A single buffer or mapping cannot hold more than 2 GiB
+            return null;
+        }
+
+        synchronized (this) {
+            sketch.increment(key);
+            Entry entry = tier.entries.get(key);
+            if (entry != null) {
+                if (entry.size == size && entry.lastModified == lastModified) {
+                    hits.increment();
+                    return entry.content.duplicate();
+                }
+                tier.remove(key);
+            }
+            misses.increment();
+            if (!tier.admits(key, size)) {
+                rejections.increment();
+                return null;
+            }
+            if (loads.containsKey(key)) {
+                // Being loaded for another request, which caches it
+                return null;
+            }
+            loads.put(key, token);
+        }
+
+        if (inBackground) {
+            loader.execute(() -> {
+                try {
+                    admit(key, size, lastModified, tier, token);
+                } catch (IOException e) {
+                    Log.warn("Unable to cache " + key + ": " + e.getMessage());
+                }
+            });
+            return null;
+        }
+        return admit(key, size, lastModified, tier, token).duplicate();
+    }
+
+    /**
+     * Loads a file and caches it if it is still admitted and has not been invalidated meanwhile.
+     */
+    private ByteBuffer admit(Path key, long size, long lastModified, Tier tier, Object token) throws IOException {
+        // Load outside the lock so one slow read does not hold up every other download
+        ByteBuffer content;
+        try {
+            content = load(key, size, tier == directTier);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                loads.remove(key, token);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            if (!loads.remove(key, token)) {
+                // Changed while loading; the request that started it still gets what was read
+                return content;
+            }
+            if (!tier.admits(key, size)) {
+                rejections.increment();
+                return content;
+            }
+            tier.put(key, new Entry(content, size, lastModified));
+        }
+        return content;
+    }
+
+    /**
+     * Records bytes sent to a client from a buffer returned by {@link #get} or {@link #peek}.
+     *
+     * @param bytes the number of bytes sent
+     */
+    void served(long bytes) {
+        bytesServed.add(bytes);
+    }
+
+    /**
+     * Drops a file from the cache, called whenever the server changes or removes it.
+     *
+     * @param file the stored file
+     */
+    synchronized void invalidate(Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        directTier.remove(key);
+        mappedTier.remove(key);
+        loads.remove(key);
+    }
+
+    private static ByteBuffer load(Path file, long size, boolean direct) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (!direct) {
+                return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size).asReadOnlyBuffer();
+            }
+            ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+            while (content.hasRemaining()) {
+                if (fileChannel.read(content, content.position()) < 0) {
+                    throw new IOException("File truncated while caching " + file);
+                }
+            }
+            return content.flip().asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * @return the fraction of lookups answered from the cache
+     */
+    double hitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of bytes sent to clients from cached buffers
+     */
+    long bytesServed() {
+        return bytesServed.sum();
+    }
+
+    /**
+     * @return the number of entries pushed out to make room for more frequently used files
+     */
+    long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of files not cached because they were requested less often than the
+     * entries they would have replaced
+     */
+    long rejections() {
+        return rejections.sum();
+    }
+
+    synchronized long cachedBytes() {
+        return directTier.used + mappedTier.used;
+    }
+
+    synchronized int cachedFiles() {
+        return directTier.entries.size() + mappedTier.entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files, %d bytes cached, hit ratio %.2f, %d bytes served, %d evictions, %d rejections",
+                cachedFiles(), cachedBytes(), hitRatio(), bytesServed(), evictions(), rejections());
+    }
+
+    private record Entry(ByteBuffer content, long size, long lastModified) {
+    }
+
+    /**
+     * One byte budget with its entries in least recently used order. Guarded by the cache's lock.
+     */
+    private final class Tier {
+
+        private final long capacity;
+        private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long used;
+
+        Tier(long capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Decides whether a file of the given size may enter, comparing its request frequency
+         * with that of the least recently used entries it would displace.
+         */
+        boolean admits(Path key, long size) {
+            long needed = used + size - capacity;
+            if (needed <= 0) {
+                return true;
+            }
+            int candidateFrequency = sketch.frequency(key);
+            for (Map.Entry<Path, Entry> victim : entries.entrySet()) {
+                if (needed <= 0) {
+                    break;
+                }
+                if (sketch.frequency(victim.getKey()) >= candidateFrequency) {
+                    return false;
+                }
+                needed -= victim.getValue().size;
+            }
+            return needed <= 0;
+        }
+
+        void put(Path key, Entry entry) {
+            remove(key);
+            Iterator<Entry> victims = entries.values().iterator();
+            while (used + entry.size > capacity && victims.hasNext()) {
+                used -= victims.next().size;
+                victims.remove();
+                evictions.increment();
+            }
+            entries.put(key, entry);
+            used += entry.size;
+        }
+
+        void remove(Path key) {
+            Entry removed = entries.remove(key);
+            if (removed != null) {
+                used -= removed.size;
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters estimating how often each file was requested recently.
+     * All counters are halved once enough requests have been recorded, so old popularity fades.
+     */
+    private static final class FrequencySketch {
+
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int samples;
+
+        FrequencySketch(int width) {
+            int tableWidth = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+            this.counters = new byte[DEPTH][tableWidth];
+            this.mask = tableWidth - 1;
+            this.sampleSize = 10 * tableWidth;
+        }
+
+        void increment(Object key) {
+            int hash = key.hashCode();
+            boolean incremented = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(hash, row);
+                if (counters[row][index] < MAX_COUNT) {
+                    counters[row][index]++;
+                    incremented = true;
+                }
+            }
+            if (incremented && ++samples >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            samples /= 2;
+        }
+    }
+}
@@ -0,0 +1,1646 @@
+package com.example.Server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The file server itself: storage, listening socket and command handlers, without any user
+ * interface. It runs unchanged under the JavaFX window ({@link FileServer}) and without a
+ * display ({@link HeadlessServer}); a user interface learns about stored files through
+ * {@link #changeEvents()} instead of being called by the handlers.
+ */
+public class FileServerCore {
+
+    private static final int START_PORT = 5000;
+    private static final int MAX_PORT_ATTEMPTS = 100;
+    /** Largest page of directory entries a LIST request may ask for. */
+    private static final int MAX_LIST_PAGE = 10_000;
+    /** Most paths a BATCH_MOVE or BATCH_DELETE request may carry. */
+    private static final int MAX_BATCH_PATHS = 1_000_000;
+    /** Answered to HELLO so clients can tell this server apart from anything else on the port. */
+    static final String PROTOCOL_NAME = "FILESERVER";
+    static final int PROTOCOL_VERSION = 2;
+    /** Where the bound port is published for clients on the same machine. */
+    static final Path ENDPOINT_FILE = Paths.get(".fileserver", "endpoint");
+    private final Path root;
+    private final ServerConfig config;
+    private final ChangeEvents changeEvents;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final TransferScheduler scheduler;
+    private final BufferPool bufferPool;
+    private final UploadPipeline uploadPipeline;
+    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    private ConnectionExecutor connectionExecutor;
+    private NioServer nioServer;
+    private PathIndex pathIndex;
+    private PartialUploads partialUploads;
+    private DownloadCache downloadCache;
+    private CompressedCopies compressedCopies;
+    private ChecksumStore checksumStore;
+    private OperationJournal journal;
+    private FileChannel stateLock;
+    private ConnectionWatchdog watchdog;
+    private Cluster cluster;
+
+    /**
+     * Creates a server configured by the {@code fileserver.*} system properties.
+     *
+     * @param root the directory stored files live in, created if missing
+     */
+    public FileServerCore(Path root) {
+        this(root, ServerConfig.fromSystemProperties());
+    }
+
+    /**
+     * @param root   the directory stored files live in, created if missing
+     * @param config the server's settings
+     */
+    public FileServerCore(Path root, ServerConfig config) {
+        this.root = root;
+        this.config = config;
+        this.changeEvents = new ChangeEvents(config.eventIntervalMillis());
+        this.scheduler = new TransferScheduler(config.globalRate(), config.clientRate(), config.shapingBurst());
+        this.bufferPool = new BufferPool(config.ioBufferSize(), config.bufferPoolSize());
+        this.uploadPipeline = new UploadPipeline(config.writeBehind(), config.writerThreads(),
+                UploadPipeline.Fsync.named(config.uploadFsync()), config.fsyncIntervalMillis(), bufferPool);
+    }
+
+    /**
+     * Opens the storage and starts accepting connections. The storage tree is indexed in the
+     * background, so the port is open before a large tree has been walked; lookups that need the
+     * full index wait for it.
+     *
+     * @throws IOException if the storage cannot be opened or every port is busy
+     */
+    public void start() throws IOException {
+        long started = System.nanoTime();
+        if (!Files.isDirectory(root)) {
+            Files.createDirectories(root);
+            Log.info("Server directory created.");
+        }
+
+        Path stateDirectory = Paths.get(config.stateDirectory());
+        lockStateDirectory(stateDirectory);
+        Path uploadDirectory = stateDirectory.resolve("uploads");
+        Files.createDirectories(uploadDirectory);
+        journal = new OperationJournal(stateDirectory.resolve("journal"), config.journalSync(), uploadDirectory);
+        ContentStore contentStore = null;
+        if (config.dedup()) {
+            contentStore = new ContentStore(stateDirectory.resolve("cas"), bufferPool);
+        }
+        partialUploads = new PartialUploads(root, uploadDirectory, contentStore, journal, uploadPipeline.forcesOnClose());
+        checksumStore = new ChecksumStore(stateDirectory.resolve("checksums"));
+        // Finish what a crash interrupted before anything looks at the tree
+        recover(uploadDirectory);
+        if (contentStore != null) {
+            Log.info("Deduplicating uploads, removed " + contentStore.removeUnreferenced() + " unreferenced files");
+        }
+
+        // Index the stored files once so requests don't have to walk the tree
+        pathIndex = PathIndex.buildInBackground(root);
+        downloadCache = DownloadCache.create(config);
+        if (config.storeCompressedCopies()) {
+            compressedCopies = new CompressedCopies(stateDirectory.resolve("compressed"));
+        }
+
+        startServer();
+        registerMetrics();
+        Log.info("Server ready in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Takes the state directory for this server alone, for as long as it runs. Recovery replays
+     * the journal and deletes the temporary uploads it finds there, which would break another
+     * server working in the same directory.
+     *
+     * @param stateDirectory the directory, created if missing
+     * @throws IOException if another server holds it or it cannot be locked
+     */
+    private void lockStateDirectory(Path stateDirectory) throws IOException {
+        Files.createDirectories(stateDirectory);
+        FileChannel channel = FileChannel.open(stateDirectory.resolve("lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another server in this process
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("State directory " + stateDirectory.toAbsolutePath()
+                    + " is in use by another server; give each one its own with fileserver.stateDirectory");
+        }
+        stateLock = channel;
+    }
+
+    /**
+     * Carries out again the operations the journal holds as unfinished, each of which a crash
+     * may have interrupted, and removes temporary files of uploads that never got that far.
+     *
+     * @param uploadDirectory where temporary files are, the only place besides the storage root
+     *                        a journaled operation may touch
+     */
+    private void recover(Path uploadDirectory) throws IOException {
+        List<OperationJournal.Operation> unfinished = journal.takeUnfinished(root, uploadDirectory);
+        for (OperationJournal.Operation operation : unfinished) {
+            try {
+                switch (operation.kind()) {
+                    case STORE -> partialUploads.recover(operation);
+                    case MOVE -> {
+                        if (Files.exists(operation.source(), LinkOption.NOFOLLOW_LINKS)) {
+                            Files.move(operation.source(), operation.target(), StandardCopyOption.REPLACE_EXISTING);
+                        }
+                    }
+                    case DELETE -> Files.deleteIfExists(operation.source());
+                }
+            } catch (IOException e) {
+                Log.warn("Unable to complete the interrupted " + operation.kind() + " of " + operation.target() + ": " + e.getMessage());
+            }
+            operation.paths().forEach(checksumStore::removed);
+        }
+        journal.recovered();
+        if (!unfinished.isEmpty()) {
+            Log.info("Completed " + unfinished.size() + " operations interrupted by a crash");
+        }
+        int abandoned = partialUploads.removeAbandonedFiles();
+        if (abandoned > 0) {
+            Log.info("Removed " + abandoned + " temporary files of interrupted uploads");
+        }
+    }
+
+    private void startServer() throws IOException {
+        // Attempt to start the server on a port within the specified range
+        for (int port = START_PORT; port < START_PORT + MAX_PORT_ATTEMPTS && serverSocket == null; port++) {
+            try {
+                // Bind through a channel so accepted sockets expose a SocketChannel for zero-copy transfers
+                serverChannel = ServerSocketChannel.open();
+                try {
+                    config.configureListener(serverChannel);
+                    serverChannel.bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), port), config.backlog());
+                } catch (IOException e) {
+                    serverChannel.close();
+                    throw e;
+                }
+                serverSocket = serverChannel.socket();
+                Log.info("Server started on port " + port);
+            } catch (IOException e) {
+                Log.info("Port " + port + " is busy.");
+            }
+        }
+
+        // Check if the server started successfully
+        if (serverSocket == null) {
+            throw new IOException("Unable to start server. All ports are busy.");
+        }
+
+        publishEndpoint(serverSocket.getLocalPort());
+        if (!config.clusterNodes().isBlank()) {
+            // Before the first connection is accepted, so every change a client makes is replicated
+            cluster = new Cluster(this, ClusterRing.parse(config.clusterNodes()), config.clusterReplicas(),
+                    serverSocket.getLocalPort());
+        }
+
+        connectionExecutor = ConnectionExecutor.create(config);
+        Log.info("Handling connections with " + connectionExecutor);
+        watchdog = new ConnectionWatchdog(config.readTimeoutMillis(), config.writeTimeoutMillis());
+
+        if ("nio".equalsIgnoreCase(config.engine())) {
+            nioServer = new NioServer(serverChannel, this, config.nioLoops());
+            nioServer.start();
+            Log.info("Using non-blocking engine with " + config.nioLoops() + " event loops");
+            return;
+        }
+
+        // Start a thread to accept client connections
+        Thread acceptThread = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket clientSocket = serverSocket.accept();
+                    try {
+                        config.configureConnection(clientSocket.getChannel());
+                    } catch (IOException e) {
+                        Log.warn("Unable to configure a connection: " + e.getMessage());
+                    }
+                    // Rejected connections are closed by the executor and only counted
+                    connectionExecutor.submit(clientSocket, this::handleClient);
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        Log.warn("Unable to accept a connection: " + e.getMessage());
+                    }
+                }
+            }
+        }, "accept-" + serverSocket.getLocalPort());
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Publishes the gauges of the connection executor, the index and the cache, and exports all
+     * metrics over JMX and, if {@code fileserver.metrics.port} is set, over HTTP.
+     */
+    private void registerMetrics() {
+        metrics.gauge("fileserver_executor_active_connections", connectionExecutor::activeConnections);
+        metrics.counter("fileserver_connections_accepted_total", connectionExecutor::acceptedConnections);
+        metrics.counter("fileserver_connections_rejected_total", connectionExecutor::rejectedConnections);
+        metrics.gauge("fileserver_accept_queue_depth", () -> connectionExecutor.queuedConnections()
+                + (nioServer == null ? 0 : nioServer.pendingRegistrations()));
+        metrics.gauge("fileserver_index_files", pathIndex::size);
+        metrics.counter("fileserver_index_lookups_total", pathIndex::lookupCount);
+        metrics.gauge("fileserver_index_lookup_mean_seconds", () -> pathIndex.meanLookupNanos() / 1e9);
+        metrics.gauge("fileserver_index_lookup_max_seconds", () -> pathIndex.maxLookupNanos() / 1e9);
+        metrics.counter("fileserver_cache_hits_total", downloadCache::hits);
+        metrics.counter("fileserver_cache_misses_total", downloadCache::misses);
+        metrics.gauge("fileserver_cache_hit_ratio", downloadCache::hitRatio);
+        metrics.counter("fileserver_cache_bytes_served_total", downloadCache::bytesServed);
+        metrics.counter("fileserver_cache_evictions_total", downloadCache::evictions);
+        metrics.counter("fileserver_cache_rejections_total", downloadCache::rejections);
+        metrics.gauge("fileserver_cache_bytes", downloadCache::cachedBytes);
+        metrics.gauge("fileserver_cache_files", downloadCache::cachedFiles);
+        metrics.counter("fileserver_buffer_pool_allocations_total", bufferPool::allocations);
+        metrics.gauge("fileserver_buffer_pool_available", bufferPool::available);
+        metrics.gauge("fileserver_checksum_files", checksumStore::size);
+        metrics.counter("fileserver_journal_operations_total", journal::operations);
+        metrics.counter("fileserver_journal_group_commits_total", journal::groupCommits);
+        metrics.counter("fileserver_upload_writes_total", uploadPipeline::writes);
+        metrics.counter("fileserver_upload_written_bytes_total", uploadPipeline::bytesWritten);
+        metrics.counter("fileserver_upload_periodic_fsyncs_total", uploadPipeline::forces);
+        metrics.counter("fileserver_upload_backpressure_seconds_total", uploadPipeline::backpressureSeconds);
+        metrics.gauge("fileserver_upload_queued_buffers", uploadPipeline::queuedBuffers);
+        if (cluster != null) {
+            metrics.gauge("fileserver_cluster_live_peers", cluster::livePeers);
+            metrics.gauge("fileserver_cluster_pending_replications", cluster::pendingReplications);
+            metrics.counter("fileserver_cluster_replications_total", cluster::replications);
+            metrics.counter("fileserver_cluster_replication_failures_total", cluster::replicationFailures);
+            metrics.counter("fileserver_cluster_forwarded_total", cluster::forwardedRequests);
+            metrics.counter("fileserver_cluster_handoffs_total", cluster::handoffs);
+        }
+        metrics.family("fileserver_client_bytes_received_total", "counter", "client", scheduler::bytesReceivedByClient);
+        metrics.family("fileserver_client_bytes_sent_total", "counter", "client", scheduler::bytesSentByClient);
+        metrics.family("fileserver_client_receive_bytes_per_second", "gauge", "client", scheduler::receiveRateByClient);
+        metrics.family("fileserver_client_send_bytes_per_second", "gauge", "client", scheduler::sendRateByClient);
+        metrics.family("fileserver_client_throttled_seconds_total", "counter", "client", scheduler::throttledSecondsByClient);
+        metrics.everySecond(scheduler::sample);
+        if (partialUploads.contentStore() != null) {
+            metrics.counter("fileserver_dedup_bytes_total", partialUploads.contentStore()::bytesDeduplicated);
+        }
+
+        metrics.registerMBean(serverSocket.getLocalPort());
+        scheduler.registerMBean(serverSocket.getLocalPort());
+        if (config.metricsPort() >= 0) {
+            try {
+                metrics.startHttpEndpoint(config.metricsPort());
+            } catch (IOException e) {
+                Log.warn("Unable to serve metrics on port " + config.metricsPort() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections and releases the index and event threads. Transfers already
+     * running are not interrupted.
+     */
+    public void stop() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            // Connections go before the journal and stores they may still be writing to
+            if (nioServer != null) {
+                nioServer.close();
+            }
+            if (connectionExecutor != null) {
+                connectionExecutor.close();
+            }
+            if (pathIndex != null) {
+                pathIndex.close();
+            }
+            if (watchdog != null) {
+                watchdog.close();
+            }
+            if (checksumStore != null) {
+                checksumStore.close();
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            if (stateLock != null) {
+                // Releases the lock
+                stateLock.close();
+            }
+        } catch (IOException e) {
+            Log.warn("Error while stopping the server: " + e.getMessage());
+        }
+        changeEvents.close();
+        metrics.close();
+        scheduler.close();
+        uploadPipeline.close();
+        if (cluster != null) {
+            cluster.close();
+        }
+        stopped.countDown();
+    }
+
+    /**
+     * Blocks until {@link #stop()} is called.
+     *
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * Writes the endpoint file clients read instead of scanning the port range. The file is
+     * replaced atomically so a client never sees it half written, and removed again on exit.
+     *
+     * @param port the port the server is bound to
+     */
+    private void publishEndpoint(int port) {
+        Properties endpoint = new Properties();
+        endpoint.setProperty("host", "localhost");
+        endpoint.setProperty("port", Integer.toString(port));
+        endpoint.setProperty("version", Integer.toString(PROTOCOL_VERSION));
+        endpoint.setProperty("pid", Long.toString(ProcessHandle.current().pid()));
+        try {
+            Files.createDirectories(ENDPOINT_FILE.toAbsolutePath().getParent());
+            Path temporaryFile = ENDPOINT_FILE.resolveSibling(ENDPOINT_FILE.getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temporaryFile)) {
+                endpoint.store(writer, "File server endpoint");
+            }
+            Files.move(temporaryFile, ENDPOINT_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    // Leave the file alone if another server has taken it over since
+                    Properties current = new Properties();
+                    try (Reader reader = Files.newBufferedReader(ENDPOINT_FILE)) {
+                        current.load(reader);
+                    }
+                    if (endpoint.getProperty("pid").equals(current.getProperty("pid"))) {
+                        Files.deleteIfExists(ENDPOINT_FILE);
+                    }
+                } catch (IOException ignored) {
+                    // Clients fall back to the handshake when the file is stale
+                }
+            }, "endpoint-cleanup"));
+        } catch (IOException e) {
+            Log.warn("Unable to publish the endpoint file: " + e.getMessage());
+        }
+    }
+
+    private void handleClient(Socket clientSocket) {
+        metrics.connectionOpened();
+        try (clientSocket) {
+            // A client that connects and sends nothing is closed after the idle timeout
+            clientSocket.setSoTimeout(ServerConfig.soTimeout(config.idleTimeoutMillis()));
+            DataInputStream inputStream = new DataInputStream(clientSocket.getInputStream());
+            String command = inputStream.readUTF();
+            clientSocket.setSoTimeout(ServerConfig.soTimeout(config.readTimeoutMillis()));
+            try (WatchedChannel channel = watchdog.watch(clientSocket, clientSocket.getChannel(),
+                    scheduler.open(clientSocket.getInetAddress()))) {
+                handleCommand(command, null, clientSocket, inputStream, channel);
+            }
+        } catch (SocketTimeoutException e) {
+            Log.info("Closing " + clientSocket.getRemoteSocketAddress() + ": timed out waiting for the client");
+        } catch (AsynchronousCloseException e) {
+            // Closed by the watchdog, which has logged why
+        } catch (IOException e) {
+            Log.warn("Connection failed: " + e.getMessage());
+        } finally {
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Continues serving a connection whose command the non-blocking engine has already read, on
+     * a connection executor thread.
+     *
+     * @param channel  the client channel, no longer registered with a selector
+     * @param command  the command read so far
+     * @param fileName the file name, if the engine read it too, else null
+     * @param unread   bytes the engine read past what it parsed
+     */
+    void handOffClient(SocketChannel channel, String command, String fileName, ByteBuffer unread) {
+        // The connection was counted as open by the engine and is closed here
+        boolean admitted = connectionExecutor.submit(channel.socket(), clientSocket -> {
+            try (clientSocket) {
+                channel.configureBlocking(true);
+                clientSocket.setSoTimeout(ServerConfig.soTimeout(config.readTimeoutMillis()));
+                // The socket's own stream, not Channels.newInputStream: that one reads under a lock,
+                // and a session blocked in a read would pin its carrier and starve its reply threads
+                DataInputStream inputStream;
+                ReadableByteChannel inputChannel;
+                if (unread.hasRemaining()) {
+                    PrefixedChannel prefixed = new PrefixedChannel(unread, channel);
+                    inputStream = new DataInputStream(prefixed.newInputStream(clientSocket.getInputStream()));
+                    inputChannel = prefixed;
+                } else {
+                    inputStream = new DataInputStream(clientSocket.getInputStream());
+                    inputChannel = channel;
+                }
+                try (WatchedChannel watched = watchdog.watch(clientSocket, inputChannel,
+                        scheduler.open(clientSocket.getInetAddress()))) {
+                    handleCommand(command, fileName, clientSocket, inputStream, watched);
+                }
+            } catch (SocketTimeoutException e) {
+                Log.info("Closing " + clientSocket.getRemoteSocketAddress() + ": timed out waiting for the client");
+            } catch (AsynchronousCloseException e) {
+                // Closed by the watchdog, which has logged why
+            } catch (IOException e) {
+                Log.warn("Connection failed: " + e.getMessage());
+            } finally {
+                metrics.connectionClosed();
+            }
+        });
+        if (!admitted) {
+            metrics.connectionClosed();
+        }
+    }
+
+    private void handleCommand(String command, String fileName, Socket clientSocket, DataInputStream inputStream,
+                               WatchedChannel channel) throws IOException {
+        long started = System.nanoTime();
+        boolean failed = true;
+        try {
+            dispatch(command, fileName == null ? inputStream.readUTF() : fileName, clientSocket, inputStream, channel);
+            failed = false;
+        } finally {
+            metrics.command(command).record(System.nanoTime() - started, failed);
+        }
+    }
+
+    /**
+     * Runs one command. Header fields are read from the stream, which is subject to the read
+     * timeout; payloads are moved through the watched channel.
+     */
+    private void dispatch(String command, String fileName, Socket clientSocket, DataInputStream inputStream,
+                          WatchedChannel channel) throws IOException {
+        // Handle different commands from the client
+        switch (command) {
+            case "UPLOAD":
+                handleFileUpload(channel, fileName);
+                Log.info("File uploaded: " + fileName);
+                break;
+            case "UPLOAD_RANGE":
+                handleRangeUpload(clientSocket, inputStream, channel, fileName);
+                break;
+            case "UPLOAD_SEGMENT":
+                handleSegmentUpload(clientSocket, inputStream, channel, fileName);
+                break;
+            case "DOWNLOAD":
+                handleFileDownload(clientSocket, channel, fileName);
+                Log.info("File downloaded: " + fileName);
+                break;
+            case "UPLOAD_Z":
+                handleCompressedUpload(clientSocket, inputStream, channel, fileName);
+                break;
+            case "DOWNLOAD_Z":
+                handleCompressedDownload(clientSocket, inputStream, channel, fileName);
+                break;
+            case "DOWNLOAD_RANGE":
+                handleRangeDownload(clientSocket, inputStream, channel, fileName);
+                break;
+            case "STAT":
+                handleStat(clientSocket, inputStream, fileName);
+                break;
+            case "LINK":
+                handleLink(clientSocket, inputStream, fileName);
+                break;
+            case "VERIFY":
+                handleVerify(clientSocket, fileName);
+                break;
+            case "LIST":
+                handleList(clientSocket, inputStream, fileName);
+                break;
+            case "HELLO":
+                handleHello(clientSocket, fileName);
+                break;
+            case "SESSION":
+                new Session(this, clientSocket, inputStream, channel).run();
+                Log.info("Session closed: " + fileName);
+                break;
+            case "BATCH_UPLOAD":
+                handleBatchUpload(clientSocket, channel, fileName);
+                break;
+            case "BATCH_DOWNLOAD":
+                handleBatchDownload(channel, fileName);
+                break;
+            case "BATCH_MOVE":
+                handleBatchMove(clientSocket, channel, fileName);
+                break;
+            case "BATCH_DELETE":
+                handleBatchDelete(clientSocket, channel);
+                break;
+            case "MOVE":
+                String targetDirectory = inputStream.readUTF();
+                handleFileMove(fileName, targetDirectory);
+                break;
+            case "DELETE":
+                handleFileDelete(fileName);
+                break;
+            case "LOCATE":
+                handleLocate(clientSocket, fileName);
+                break;
+            case "NODE_LOAD":
+                requireClusterMember(clientSocket, command);
+                replyInt(clientSocket, cluster.load());
+                break;
+            case "REPLICA_UPLOAD":
+                requireClusterMember(clientSocket, command);
+                handleReplicaUpload(clientSocket, inputStream, channel, fileName);
+                break;
+            case "REPLICA_MOVE":
+                requireClusterMember(clientSocket, command);
+                replyBoolean(clientSocket, moveStoredFile(fileName, inputStream.readUTF()) != null);
+                break;
+            case "REPLICA_DELETE":
+                requireClusterMember(clientSocket, command);
+                replyBoolean(clientSocket, deleteStoredFile(fileName));
+                break;
+            case "CLUSTER_MOVE":
+                requireClusterMember(clientSocket, command);
+                replyBoolean(clientSocket, cluster.move(fileName, inputStream.readUTF(), false));
+                break;
+            case "CLUSTER_DELETE":
+                requireClusterMember(clientSocket, command);
+                replyBoolean(clientSocket, cluster.delete(fileName, false));
+                break;
+            default:
+                Log.info("Unknown command: " + command);
+                break;
+        }
+    }
+
+    private void handleFileUpload(ReadableByteChannel inputChannel, String fileName) throws IOException {
+        // Write into a temporary file first so a dropped connection never replaces the stored file
+        Path temporaryFile = partialUploads.newTemporaryFile();
+        // Checksum on the way through so neither the content store nor a later STAT has to read the file again
+        Checksum.Accumulator checksums = newChecksums();
+        try (FileChannel fileChannel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+            // Everything after the command header is file data, read straight from the socket channel
+            metrics.received(uploadPipeline.receiveToEnd(inputChannel, fileChannel, 0, checksums));
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaryFile);
+            throw e;
+        }
+        storeUpload(temporaryFile, fileName, checksums.finish());
+    }
+
+    /**
+     * Moves a completely received temporary file into the storage tree and records the checksums
+     * computed while it arrived.
+     *
+     * @param temporaryFile the temporary file holding the upload
+     * @param fileName      the target name relative to the server directory
+     * @param checksum      the file's checksums from {@link #newChecksums()}
+     * @throws IOException if the rename fails
+     */
+    void storeUpload(Path temporaryFile, String fileName, Checksum checksum) throws IOException {
+        uploaded(commitUpload(temporaryFile, fileName, checksum));
+    }
+
+    private Path commitUpload(Path temporaryFile, String fileName, Checksum checksum) throws IOException {
+        long size = Files.size(temporaryFile);
+        Path stored = partialUploads.commit(temporaryFile, fileName, checksum.sha256());
+        fileStored(stored);
+        recordChecksum(stored, size, checksum);
+        return stored;
+    }
+
+    /**
+     * Passes a file a client has stored on to its replicas, when in a cluster.
+     *
+     * @param file the stored file
+     */
+    private void uploaded(Path file) {
+        if (cluster != null) {
+            cluster.stored(file);
+        }
+    }
+
+    /**
+     * @return an accumulator for an upload's checksums, with a SHA-256 if the content store or
+     * the configuration wants one
+     */
+    Checksum.Accumulator newChecksums() {
+        return Checksum.accumulate(wantsSha256());
+    }
+
+    /**
+     * @return true if stored files get a SHA-256 as well as a CRC32C
+     */
+    private boolean wantsSha256() {
+        return config.sha256Checksums() || partialUploads.contentStore() != null;
+    }
+
+    /**
+     * Files the checksums of a file just stored, unless it has been replaced again already.
+     *
+     * @param file     the stored file
+     * @param size     the number of bytes the checksums cover
+     * @param checksum the checksums
+     */
+    private void recordChecksum(Path file, long size, Checksum checksum) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attributes.size() == size) {
+                checksumStore.put(file, attributes, checksum);
+            }
+        } catch (IOException e) {
+            // Replaced or removed in the meantime
+        }
+    }
+
+    /**
+     * Receives a file compressed with the codec named in the byte after the file name, until the
+     * client shuts down its side of the connection. The data is decompressed on the way into the
+     * temporary file. Replies with the number of bytes stored.
+     */
+    private void handleCompressedUpload(Socket clientSocket, DataInputStream inputStream, WatchedChannel channel,
+                                        String fileName) throws IOException {
+        byte codec = Compression.checkCodec(inputStream.readByte());
+        Path temporaryFile = partialUploads.newTemporaryFile();
+        Checksum.Accumulator checksums = newChecksums();
+        long size;
+        // The body goes through the watched channel so it is shaped like any other upload
+        InputStream body = channel.newInputStream();
+        try (FileChannel fileChannel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE);
+             Compression.Decoder decoder = codec == Compression.NONE ? null : Compression.decoder(body)) {
+            ReadableByteChannel source = decoder != null ? Channels.newChannel(decoder) : channel;
+            size = uploadPipeline.receiveToEnd(source, fileChannel, 0, checksums);
+            if (decoder != null) {
+                decoder.finish(codec);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaryFile);
+            throw e;
+        }
+        metrics.received(size);
+        storeUpload(temporaryFile, fileName, checksums.finish());
+        Log.info("File uploaded: " + fileName);
+
+        DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
+        outputStream.writeLong(size);
+        outputStream.flush();
+    }
+
+    /**
+     * Sends a file compressed with the codec the client asks for in the byte after the file name.
+     * The reply starts with the file size (-1 if not found) and the codec actually used, which is
+     * {@link Compression#NONE} for content that would not shrink; the data follows until the
+     * connection closes. With compressed copies enabled, the compressed stream is also written
+     * to disk and later requests are sent from there without compressing again.
+     */
+    private void handleCompressedDownload(Socket clientSocket, DataInputStream inputStream, WatchedChannel channel,
+                                          String fileName) throws IOException {
+        byte codec = Compression.checkCodec(inputStream.readByte());
+        DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
+        File file = findFile(fileName);
+        if (file == null || !file.isFile()) {
+            outputStream.writeLong(-1);
+            outputStream.flush();
+            Log.info("File not found or is not a file: " + fileName);
+            return;
+        }
+        Path path = file.toPath();
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            long fileSize = fileChannel.size();
+            if (codec != Compression.NONE && !Compression.isCompressible(fileChannel)) {
+                codec = Compression.NONE;
+            }
+            outputStream.writeLong(fileSize);
+            outputStream.writeByte(codec);
+            outputStream.flush();
+            metrics.sent(fileSize);
+            if (codec == Compression.NONE) {
+                Transfers.sendFile(fileChannel, 0, fileSize, channel, bufferPool);
+                return;
+            }
+
+            Path copy = compressedCopies == null ? null : compressedCopies.find(path, attributes, codec);
+            if (copy != null) {
+                long started = System.nanoTime();
+                try (FileChannel copyChannel = FileChannel.open(copy, StandardOpenOption.READ)) {
+                    Transfers.sendFile(copyChannel, 0, copyChannel.size(), channel, bufferPool);
+                    Compression.record(codec, fileSize, copyChannel.size(), System.nanoTime() - started);
+                }
+                return;
+            }
+
+            // Through the watched channel so a client that stops reading hits the write timeout
+            OutputStream target = channel.newOutputStream();
+            Path temporaryCopy = compressedCopies == null ? null : compressedCopies.newTemporaryFile();
+            try (OutputStream copyStream = temporaryCopy == null ? null : Files.newOutputStream(temporaryCopy)) {
+                if (copyStream != null) {
+                    target = Compression.tee(target, copyStream);
+                }
+                try (Compression.Encoder encoder = Compression.encoder(codec, target)) {
+                    Compression.compressFile(fileChannel, encoder);
+                }
+            } catch (IOException e) {
+                if (temporaryCopy != null) {
+                    Files.deleteIfExists(temporaryCopy);
+                }
+                throw e;
+            }
+            if (temporaryCopy != null) {
+                compressedCopies.commit(temporaryCopy, path, attributes, codec);
+            }
+        }
+    }
+
+    /**
+     * Receives one byte range of a file: total size, offset and length, followed by the data in
+     * chunks of {@link PartialUploads#PERSIST_INTERVAL} bytes (the last one may be shorter), each
+     * followed by the CRC32C of the range up to its end. A chunk only counts as received once its
+     * checksum matches; on a mismatch the connection is closed and the client resumes after the
+     * last good chunk. Replies with the number of bytes stored without a gap from the start and
+     * whether the upload is complete and has been committed.
+     */
+    private void handleRangeUpload(Socket clientSocket, DataInputStream inputStream,
+                                   ReadableByteChannel inputChannel, String fileName) throws IOException {
+        long totalSize = inputStream.readLong();
+        long offset = inputStream.readLong();
+        long length = inputStream.readLong();
+        if (totalSize < 0 || offset < 0 || length < 0 || offset + length > totalSize) {
+            throw new IOException("Invalid range " + offset + "+" + length + " of " + totalSize + " for " + fileName);
+        }
+
+        PartialUploads.Upload upload = partialUploads.open(fileName, totalSize);
+        // A range that is the whole file gets the checksums of the whole file on the way through
+        boolean wholeFile = offset == 0 && length == totalSize;
+        Checksum.Accumulator checksums = wholeFile ? newChecksums() : Checksum.accumulate(false);
+        long received = 0;
+        FileChannel partChannel = upload.acquire();
+        try {
+            while (received < length) {
+                long chunk = Math.min(length - received, PartialUploads.PERSIST_INTERVAL);
+                uploadPipeline.receive(inputChannel, partChannel, offset + received, chunk, checksums);
+                if (inputStream.readLong() != checksums.crc32c()) {
+                    throw new IOException("Checksum mismatch at offset " + (offset + received) + " of " + fileName);
+                }
+                upload.recordRange(offset + received, offset + received + chunk);
+                received += chunk;
+                metrics.received(chunk);
+                upload.persist();
+            }
+        } catch (IOException e) {
+            // Keep what arrived so the client can resume from there
+            upload.persist();
+            throw e;
+        } finally {
+            upload.release();
+        }
+
+        boolean committed = false;
+        if (upload.isComplete()) {
+            Checksum checksum = wholeFile ? checksums.finish() : null;
+            Path stored = upload.commit(checksum == null ? null : checksum.sha256());
+            if (stored != null) {
+                fileStored(stored);
+                if (checksum != null) {
+                    recordChecksum(stored, totalSize, checksum);
+                }
+                uploaded(stored);
+                Log.info("File uploaded: " + fileName);
+            }
+            committed = true;
+        }
+
+        DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
+        outputStream.writeLong(upload.contiguousLength());
+        outputStream.writeBoolean(committed);
+        outputStream.flush();
+    }
+
+    private void handleFileDownload(Socket clientSocket, WatchedChannel channel, String fileName) throws IOException {
+        File file = findFile(fileName);
+        if (file != null && file.exists() && file.isFile()) {
+            DataOutputStream dataOutputStream = new DataOutputStream(clientSocket.getOutputStream());
+            ByteBuffer cached = downloadCache.get(file.toPath());
+            if (cached != null) {
+                // Hot file, served from memory without opening it
+                dataOutputStream.writeLong(cached.remaining());
+                dataOutputStream.flush();
+                downloadCache.served(cached.remaining());
+                metrics.sent(cached.remaining());
+                Transfers.sendBuffer(cached, channel);
+                return;
+            }
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                // Send file size
+                long fileSize = fileChannel.size();
+                dataOutputStream.writeLong(fileSize);
+                dataOutputStream.flush();
+
+                // Send file data, the kernel copies it from the page cache to the socket (sendfile)
+                Transfers.sendFile(fileChannel, 0, fileSize, channel, bufferPool);
+                metrics.sent(fileSize);
+            }
+        } else {
+            Log.info("File not found or is not a file: " + fileName);
+        }
+    }
+
+    /**
+     * Receives one segment of a file that the client sends over several parallel connections:
+     * total size, offset and length, followed by the data and the segment's CRC32C. The segment is
+     * written with positional writes into the shared temporary file and only counted as received
+     * if its checksum matches; the file is committed once every segment has been verified.
+     * Replies with whether the segment was verified, the number of bytes stored contiguously
+     * and whether the file was committed.
+     */
+    private void handleSegmentUpload(Socket clientSocket, DataInputStream inputStream,
+                                     ReadableByteChannel inputChannel, String fileName) throws IOException {
+        long totalSize = inputStream.readLong();
+        long offset = inputStream.readLong();
+        long length = inputStream.readLong();
+        if (totalSize < 0 || offset < 0 || length < 0 || offset + length > totalSize) {
+            throw new IOException("Invalid segment " + offset + "+" + length + " of " + totalSize + " for " + fileName);
+        }
+
+        PartialUploads.Upload upload = partialUploads.open(fileName, totalSize);
+        Checksum.Accumulator checksums = Checksum.accumulate(false);
+        FileChannel partChannel = upload.acquire();
+        try {
+            uploadPipeline.receive(inputChannel, partChannel, offset, length, checksums);
+        } finally {
+            upload.release();
+        }
+        metrics.received(length);
+        boolean verified = inputStream.readLong() == checksums.crc32c();
+        if (verified) {
+            upload.recordRange(offset, offset + length);
+            upload.persist();
+        } else {
+            Log.warn("Checksum mismatch for segment " + offset + " of " + fileName);
+        }
+
+        boolean committed = false;
+        if (upload.isComplete()) {
+            Path stored = upload.commit();
+            if (stored != null) {
+                fileStored(stored);
+                uploaded(stored);
+                Log.info("File uploaded: " + fileName);
+            }
+            committed = true;
+        }
+
+        DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
+        outputStream.writeBoolean(verified);
+        outputStream.writeLong(upload.contiguousLength());
+        outputStream.writeBoolean(committed);
+        outputStream.flush();
+    }
+
+    /**
+     * Sends part of a file: offset and length (-1 for the rest of the file) are read from the
+     * client, the reply is the full file size (-1 if not found) and the range length, followed
+     * by the data and its CRC32C. For the whole file the checksum comes from the
+     * {@link ChecksumStore} when it is known and the data goes out with sendfile; otherwise it is
+     * computed as the data is sent, and recorded if that was the whole file.
+     */
+    private void handleRangeDownload(Socket clientSocket, DataInputStream inputStream, WatchedChannel channel,
+                                     String fileName) throws IOException {
+        long offset = inputStream.readLong();
+        long length = inputStream.readLong();
+        DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
+
+        File file = findFile(fileName);
+        if (file == null || !file.isFile()) {
+            outputStream.writeLong(-1);
+            outputStream.flush();
+            Log.info("File not found or is not a file: " + fileName);
+            return;
+        }
+        Path path = file.toPath();
+        ByteBuffer cached = downloadCache.get(path);
+        if (cached != null) {
+            int fileSize = cached.remaining();
+            int start = (int) Math.min(Math.max(offset, 0), fileSize);
+            int count = (int) (length < 0 ? fileSize - start : Math.min(length, fileSize - start));
+            ByteBuffer range = cached.slice(start, count);
+            Checksum.Accumulator checksums = Checksum.accumulate(false);
+            checksums.update(range);
+            outputStream.writeLong(fileSize);
+            outputStream.writeLong(count);
+            outputStream.flush();
+            downloadCache.served(count);
+            metrics.sent(count);
+            Transfers.sendBuffer(range, channel);
+            outputStream.writeLong(checksums.crc32c());
+            outputStream.flush();
+            return;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long start = Math.min(Math.max(offset, 0), fileSize);
+            long count = length < 0 ? fileSize - start : Math.min(length, fileSize - start);
+            boolean wholeFile = start == 0 && count == fileSize;
+            Checksum known = wholeFile ? checksumStore.get(path) : null;
+            outputStream.writeLong(fileSize);
+            outputStream.writeLong(count);
+            outputStream.flush();
+            long checksum;
+            if (known != null) {
+                Transfers.sendFile(fileChannel, start, count, channel, bufferPool);
+                checksum = known.crc32c();
+            } else {
+                Checksum.Accumulator checksums = Checksum.accumulate(wholeFile && wantsSha256());
+                Transfers.sendFile(fileChannel, start, count, channel, checksums, bufferPool);
+                checksum = checksums.crc32c();
+                if (wholeFile) {
+                    checksumStore.put(path, attributes, checksums.finish());
+                }
+            }
+            outputStream.writeLong(checksum);
+            outputStream.flush();
+            metrics.sent(count);
+        }
+    }
+
+    /**
+     * Receives a stream of files in the {@link BatchTransfers} format into a directory relative to
+     * the server directory ("" for the root). Replies with the number of files stored, then the
+     * number that were not, each followed by its path and the reason.
+     */
+    private void handleBatchUpload(Socket clientSocket, WatchedChannel channel, String directory) throws IOException {
+        if (!directory.isEmpty() && BatchTransfers.checkPath(directory) != null) {
+            throw new IOException("Invalid batch directory " + directory);
+        }
+        BatchTransfers.Result result = BatchTransfers.receive(new BatchTransfers.EntryReader(channel, bufferPool),
+                new BatchTransfers.EntryTarget() {
+                    @Override
+                    public Path newTemporaryFile() throws IOException {
+                        return partialUploads.newTemporaryFile();
+                    }
+
+                    @Override
+                    public void commit(Path temporaryFile, String path, Checksum checksum) throws IOException {
+                        metrics.received(Files.size(temporaryFile));
+                        storeUpload(temporaryFile, directory.isEmpty() ? path : directory + "/" + path, checksum);
+                    }
+
+                    @Override
+                    public Checksum.Accumulator newChecksums() {
+                        return FileServerCore.this.newChecksums();
+                    }
+                });
+        Log.info("Batch uploaded to '" + directory + "': " + result.stored() + " files stored, "
+                + result.failures().size() + " failed");
+
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+        outputStream.writeInt(result.stored());
+        outputStream.writeInt(result.failures().size());
+        for (BatchTransfers.Failure failure : result.failures()) {
+            outputStream.writeUTF(failure.path());
+            outputStream.writeUTF(failure.message());
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Sends a stored file or every file below a stored directory in the {@link BatchTransfers}
+     * format, preceded by whether the path was found.
+     */
+    private void handleBatchDownload(WatchedChannel channel, String path) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(channel.newOutputStream(), 64 * 1024));
+        Path storageRoot = root.toAbsolutePath().normalize();
+        Path source = storageRoot.resolve(path).normalize();
+        if (!source.startsWith(storageRoot) || !Files.exists(source)) {
+            outputStream.writeBoolean(false);
+            outputStream.flush();
+            Log.info("Not found: " + path);
+            return;
+        }
+        outputStream.writeBoolean(true);
+        long sent = BatchTransfers.send(source, outputStream, channel, bufferPool);
+        metrics.sent(sent);
+        Log.info("Batch downloaded: '" + path + "', " + sent + " bytes");
+    }
+
+    /**
+     * Moves many files into one directory: {@code int} count, then each source path as for
+     * MOVE. Replies with whether each file was moved, in request order.
+     */
+    private void handleBatchMove(Socket clientSocket, WatchedChannel channel, String targetDirectory) throws IOException {
+        List<String> paths = readPaths(new BatchTransfers.EntryReader(channel, bufferPool));
+        boolean[] moved = new boolean[paths.size()];
+        for (int i = 0; i < moved.length; i++) {
+            moved[i] = handleFileMove(paths.get(i), targetDirectory);
+        }
+        writeOutcomes(clientSocket, moved);
+    }
+
+    /**
+     * Deletes many files: {@code int} count, then each path as for DELETE. The file name field
+     * of the request is unused. Replies with whether each file was deleted, in request order.
+     */
+    private void handleBatchDelete(Socket clientSocket, WatchedChannel channel) throws IOException {
+        List<String> paths = readPaths(new BatchTransfers.EntryReader(channel, bufferPool));
+        boolean[] deleted = new boolean[paths.size()];
+        for (int i = 0; i < deleted.length; i++) {
+            deleted[i] = handleFileDelete(paths.get(i));
+        }
+        writeOutcomes(clientSocket, deleted);
+    }
+
+    private static List<String> readPaths(BatchTransfers.EntryReader reader) throws IOException {
+        int count = reader.readInt();
+        if (count < 0 || count > MAX_BATCH_PATHS) {
+            throw new IOException("Invalid path count " + count);
+        }
+        List<String> paths = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            paths.add(reader.readUTF());
+        }
+        return paths;
+    }
+
+    private static void writeOutcomes(Socket clientSocket, boolean[] outcomes) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+        for (boolean outcome : outcomes) {
+            outputStream.writeBoolean(outcome);
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Receives a copy of a file from the cluster node a client stored it on: the size, then the
+     * content. Stored like an upload, but not passed on again. Replies with true once stored.
+     */
+    private void handleReplicaUpload(Socket clientSocket, DataInputStream inputStream, WatchedChannel channel,
+                                     String fileName) throws IOException {
+        long size = inputStream.readLong();
+        Path temporaryFile = partialUploads.newTemporaryFile();
+        Checksum.Accumulator checksums = newChecksums();
+        try (FileChannel fileChannel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+            uploadPipeline.receive(channel, fileChannel, 0, size, checksums);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaryFile);
+            throw e;
+        }
+        metrics.received(size);
+        commitUpload(temporaryFile, fileName, checksums.finish());
+        Log.info("Replica stored: " + fileName);
+        replyBoolean(clientSocket, true);
+    }
+
+    /**
+     * Tells a client which cluster nodes hold a file: {@code int} count, then {@code UTF} host
+     * and {@code int} port of each, the least loaded answering node first. Outside a cluster the
+     * count is 0 and the client stays with this server.
+     */
+    private void handleLocate(Socket clientSocket, String fileName) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
+        writeLocate(outputStream, fileName);
+        outputStream.flush();
+    }
+
+    /**
+     * Writes the LOCATE reply fields for a file.
+     *
+     * @param outputStream the stream to write to
+     * @param fileName     a path relative to the server directory
+     * @throws IOException if writing fails or the path leads outside the server directory
+     */
+    void writeLocate(DataOutputStream outputStream, String fileName) throws IOException {
+        List<ClusterRing.Node> owners = cluster == null ? List.of() : cluster.locate(fileName);
+        outputStream.writeInt(owners.size());
+        for (ClusterRing.Node owner : owners) {
+            outputStream.writeUTF(owner.host());
+            outputStream.writeInt(owner.port());
+        }
+    }
+
+    /**
+     * Refuses a command that cluster nodes send each other unless it comes from a member. These
+     * change one node's tree behind the cluster's back, and outside a cluster no one may send them.
+     */
+    private void requireClusterMember(Socket clientSocket, String command) throws IOException {
+        if (cluster == null || !cluster.isMember(clientSocket.getInetAddress())) {
+            throw new IOException("Refused " + command + " from " + clientSocket.getRemoteSocketAddress()
+                    + ", which is not a cluster member");
+        }
+    }
+
+    private static void replyBoolean(Socket clientSocket, boolean value) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
+        outputStream.writeBoolean(value);
+        outputStream.flush();
+    }
+
+    private static void replyInt(Socket clientSocket, int value) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
+        outputStream.writeInt(value);
+        outputStream.flush();
+    }
+
+    /**
+     * Stores a file whose content the server already has under another name, given its SHA-256.
+     * Replies with true if the file was stored, false if the client has to upload the data.
+     */
+    private void handleLink(Socket clientSocket, DataInputStream inputStream, String fileName) throws IOException {
+        String sha256 = inputStream.readUTF();
+        boolean linked = linkExisting(fileName, sha256);
+        DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
+        outputStream.writeBoolean(linked);
+        outputStream.flush();
+    }
+
+    /**
+     * Stores a file from known content without receiving it.
+     *
+     * @param fileName the target name relative to the server directory
+     * @param sha256   the SHA-256 of the content as lower case hex
+     * @return true if the content was known and the file stored, false if it has to be uploaded
+     * or deduplication is off
+     * @throws IOException if the name is outside the server directory, the hash is malformed or
+     *                     linking fails
+     */
+    boolean linkExisting(String fileName, String sha256) throws IOException {
+        Path target = partialUploads.link(fileName, sha256);
+        if (target == null) {
+            return false;
+        }
+        fileStored(target);
+        uploaded(target);
+        Log.info("File stored from known content: " + fileName);
+        return true;
+    }
+
+    /**
+     * Answers the HELLO handshake with the protocol name and version. The client sends its own
+     * version in place of a file name; it is only logged, the client decides whether it can talk
+     * to this server.
+     */
+    private void handleHello(Socket clientSocket, String clientVersion) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
+        outputStream.writeUTF(PROTOCOL_NAME);
+        outputStream.writeInt(PROTOCOL_VERSION);
+        outputStream.flush();
+        if (!Integer.toString(PROTOCOL_VERSION).equals(clientVersion)) {
+            Log.info("Client speaks protocol version " + clientVersion + ", server " + PROTOCOL_VERSION);
+        }
+    }
+
+    /**
+     * Describes a stored file and any upload of it still in progress. The reply carries whether
+     * the file exists, its size, last modified time and CRC32C (only when the client asks for it,
+     * -1 otherwise), then the total size (-1 if none) and contiguous received length of a pending
+     * upload, and last the file's SHA-256 ("" if not asked for or not recorded). Checksums come
+     * from the {@link ChecksumStore}; a file without recorded ones is read once to compute them.
+     */
+    private void handleStat(Socket clientSocket, DataInputStream inputStream, String fileName) throws IOException {
+        boolean withChecksum = inputStream.readBoolean();
+        DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
+        writeStat(outputStream, fileName, withChecksum);
+        outputStream.flush();
+    }
+
+    /**
+     * Lists a directory page by page, streaming entries from a {@link DirectoryStream} so even a
+     * folder of hundreds of thousands of files is never read into memory at once. The request
+     * carries the page size; each page is {@code int} entry count, then per entry {@code UTF}
+     * name, {@code boolean} directory, {@code long} size and {@code long} last modified time,
+     * and finally {@code boolean} whether more entries follow. The client asks for the next page
+     * with another {@code int} page size on the same connection, or closes it (or sends 0) to
+     * stop. A count of -1 means the directory does not exist.
+     */
+    private void handleList(Socket clientSocket, DataInputStream inputStream, String directoryName) throws IOException {
+        int pageSize = inputStream.readInt();
+        // Each page goes out in one write; without this its tail waits for the client's delayed ACK
+        clientSocket.setTcpNoDelay(true);
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream(), 64 * 1024));
+        Path storageRoot = root.toAbsolutePath().normalize();
+        Path directory = storageRoot.resolve(directoryName).normalize();
+        if (!directory.startsWith(storageRoot) || !Files.isDirectory(directory)) {
+            outputStream.writeInt(-1);
+            outputStream.flush();
+            return;
+        }
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            Iterator<Path> iterator = entries.iterator();
+            while (pageSize > 0) {
+                List<Path> page = new ArrayList<>();
+                List<BasicFileAttributes> pageAttributes = new ArrayList<>();
+                while (page.size() < Math.min(pageSize, MAX_LIST_PAGE) && iterator.hasNext()) {
+                    Path entry = iterator.next();
+                    try {
+                        pageAttributes.add(Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+                        page.add(entry);
+                    } catch (IOException e) {
+                        // Removed while listing
+                    }
+                }
+                boolean more = iterator.hasNext();
+                outputStream.writeInt(page.size());
+                for (int i = 0; i < page.size(); i++) {
+                    BasicFileAttributes attributes = pageAttributes.get(i);
+                    outputStream.writeUTF(page.get(i).getFileName().toString());
+                    outputStream.writeBoolean(attributes.isDirectory());
+                    outputStream.writeLong(attributes.size());
+                    outputStream.writeLong(attributes.lastModifiedTime().toMillis());
+                }
+                outputStream.writeBoolean(more);
+                outputStream.flush();
+                if (!more) {
+                    break;
+                }
+                try {
+                    pageSize = inputStream.readInt();
+                } catch (EOFException e) {
+                    // The client has seen enough
+                    break;
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the STAT reply fields for a file.
+     *
+     * @param outputStream the stream to write to
+     * @param fileName     a path relative to the server directory, or a bare file name
+     * @param withChecksum whether to include the file's checksums
+     * @throws IOException if writing or reading the file fails
+     */
+    void writeStat(DataOutputStream outputStream, String fileName, boolean withChecksum) throws IOException {
+        File file = findFile(fileName);
+        Checksum checksum = null;
+        if (file != null && file.isFile()) {
+            outputStream.writeBoolean(true);
+            outputStream.writeLong(file.length());
+            outputStream.writeLong(file.lastModified());
+            if (withChecksum) {
+                checksum = checksumOf(file.toPath());
+                outputStream.writeLong(checksum.crc32c());
+            } else {
+                outputStream.writeLong(-1);
+            }
+        } else {
+            outputStream.writeBoolean(false);
+            outputStream.writeLong(-1);
+            outputStream.writeLong(0);
+            outputStream.writeLong(-1);
+        }
+
+        PartialUploads.Upload upload = partialUploads.find(fileName);
+        outputStream.writeLong(upload == null ? -1 : upload.totalSize());
+        outputStream.writeLong(upload == null ? 0 : upload.contiguousLength());
+        outputStream.writeUTF(checksum == null || checksum.sha256() == null ? "" : checksum.sha256());
+    }
+
+    /**
+     * Returns a stored file's checksums, from the {@link ChecksumStore} if it has them for the
+     * file's current content, otherwise by reading the file once and recording the result.
+     *
+     * @param file the stored file
+     * @return the file's checksums, with a SHA-256 if one was recorded or is configured
+     * @throws IOException if reading the file fails
+     */
+    private Checksum checksumOf(Path file) throws IOException {
+        Checksum known = checksumStore.get(file);
+        if (known != null && (known.sha256() != null || !wantsSha256())) {
+            return known;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Checksum checksum = Transfers.checksum(fileChannel, wantsSha256(), bufferPool);
+            checksumStore.put(file, attributes, checksum);
+            return checksum;
+        }
+    }
+
+    /**
+     * Reads a stored file in full and compares it with the checksums recorded for it, which
+     * catches corruption at rest that size and time stamps do not show. The reply carries
+     * whether the file exists, whether checksums were recorded for it, whether the content still
+     * matches them and the CRC32C just computed. A file without recorded checksums has them
+     * recorded now.
+     */
+    private void handleVerify(Socket clientSocket, String fileName) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(clientSocket.getOutputStream());
+        writeVerify(outputStream, fileName);
+        outputStream.flush();
+    }
+
+    /**
+     * Writes the VERIFY reply fields for a file.
+     *
+     * @param outputStream the stream to write to
+     * @param fileName     a path relative to the server directory, or a bare file name
+     * @throws IOException if writing or reading the file fails
+     */
+    void writeVerify(DataOutputStream outputStream, String fileName) throws IOException {
+        File file = findFile(fileName);
+        if (file == null || !file.isFile()) {
+            outputStream.writeBoolean(false);
+            outputStream.writeBoolean(false);
+            outputStream.writeBoolean(false);
+            outputStream.writeLong(-1);
+            return;
+        }
+        Path path = file.toPath();
+        Checksum recorded = checksumStore.get(path);
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Checksum actual;
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            boolean withSha256 = wantsSha256() || (recorded != null && recorded.sha256() != null);
+            actual = Transfers.checksum(fileChannel, withSha256, bufferPool);
+        }
+        boolean intact = recorded == null || (recorded.crc32c() == actual.crc32c()
+                && (recorded.sha256() == null || recorded.sha256().equals(actual.sha256())));
+        if (recorded == null) {
+            checksumStore.put(path, attributes, actual);
+        } else if (!intact) {
+            Log.warn("Checksum mismatch for stored file " + path);
+        }
+        outputStream.writeBoolean(true);
+        outputStream.writeBoolean(recorded != null);
+        outputStream.writeBoolean(intact);
+        outputStream.writeLong(actual.crc32c());
+    }
+
+    /**
+     * Moves a stored file or directory into another directory of the storage tree, replacing a
+     * file of the same name there. In a cluster the file's replicas are moved as well.
+     *
+     * @param sourcePath      the file to move, relative to the server directory
+     * @param targetDirectory the directory to move it to, relative to the server directory, or
+     *                        empty for the server directory itself
+     * @return true if the file was moved
+     */
+    boolean handleFileMove(String sourcePath, String targetDirectory) {
+        return cluster != null ? cluster.move(sourcePath, targetDirectory, true) : moveStoredFile(sourcePath, targetDirectory) != null;
+    }
+
+    /**
+     * Moves a file or directory of this server's storage tree. The move is logged in the journal
+     * first.
+     *
+     * @param sourcePath      the file to move, relative to the server directory
+     * @param targetDirectory the directory to move it to, relative to the server directory, or
+     *                        empty for the server directory itself
+     * @return the file's new location, or null if it was not moved
+     */
+    Path moveStoredFile(String sourcePath, String targetDirectory) {
+        try {
+            Path source = storedPath(sourcePath);
+            Path directory = targetDirectory.isEmpty() ? storageRoot() : storedPath(targetDirectory);
+            if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+                Log.info("File " + sourcePath + " not found.");
+                return null;
+            }
+            Path target = directory.resolve(source.getFileName());
+            if (target.equals(source)) {
+                return target;
+            }
+            // A rename keeps the content, so its checksums go along
+            long size = Files.size(source);
+            Checksum checksum = checksumStore.get(source);
+            Files.createDirectories(directory);
+            long sequence = journal.begin(new OperationJournal.Operation(OperationJournal.Kind.MOVE, source, target, null));
+            try {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                journal.finish(sequence);
+            }
+            fileRemoved(source);
+            fileStored(target);
+            if (checksum != null) {
+                recordChecksum(target, size, checksum);
+            }
+            Log.info("File " + sourcePath + " moved to " + targetDirectory);
+            return target;
+        } catch (IOException e) {
+            Log.warn("Failed to move " + sourcePath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Deletes a stored file. Only the exact path is deleted, never a file of the same name
+     * elsewhere in the tree. In a cluster the file's replicas are deleted as well.
+     *
+     * @param fileName the file to delete, relative to the server directory
+     * @return true if the file was deleted
+     */
+    boolean handleFileDelete(String fileName) {
+        return cluster != null ? cluster.delete(fileName, true) : deleteStoredFile(fileName);
+    }
+
+    /**
+     * Deletes a file of this server's storage tree. The delete is logged in the journal first.
+     *
+     * @param fileName the file to delete, relative to the server directory
+     * @return true if the file was deleted
+     */
+    boolean deleteStoredFile(String fileName) {
+        try {
+            Path file = storedPath(fileName);
+            if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+                Log.info("File " + fileName + " not found.");
+                return false;
+            }
+            long sequence = journal.begin(new OperationJournal.Operation(OperationJournal.Kind.DELETE, file, null, null));
+            try {
+                Files.delete(file);
+            } finally {
+                journal.finish(sequence);
+            }
+            fileRemoved(file);
+            Log.info("File deleted: " + fileName);
+            return true;
+        } catch (IOException e) {
+            Log.warn("Failed to delete " + fileName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Resolves a path sent by a client below the server directory. Older clients send absolute
+     * paths, which are accepted as long as they point inside it.
+     *
+     * @param path a path relative to the server directory, or an absolute one inside it
+     * @return the absolute path
+     * @throws IOException if the path leads outside the server directory
+     */
+    Path storedPath(String path) throws IOException {
+        Path storageRoot = storageRoot();
+        try {
+            Path given = Paths.get(path);
+            if (given.isAbsolute() && given.normalize().startsWith(storageRoot)) {
+                path = storageRoot.relativize(given.normalize()).toString();
+            }
+        } catch (InvalidPathException e) {
+            throw new IOException("Invalid path: " + path, e);
+        }
+        return PartialUploads.confine(storageRoot, path);
+    }
+
+    private Path storageRoot() {
+        return root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Looks up a stored file in the path index.
+     *
+     * @param fileName a path relative to the server directory, or a bare file name
+     * @return the file, or null if it does not exist
+     */
+    File findFile(String fileName) {
+        Path path = pathIndex.lookup(fileName);
+        return path == null ? null : path.toFile();
+    }
+
+    /**
+     * @return the uploads in progress and their temporary files
+     */
+    PartialUploads partialUploads() {
+        return partialUploads;
+    }
+
+    /**
+     * @return the server's counters, gauges and latency histograms
+     */
+    ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the bandwidth limits and per-client traffic counters
+     */
+    TransferScheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return the stages uploads are received through
+     */
+    UploadPipeline uploadPipeline() {
+        return uploadPipeline;
+    }
+
+    /**
+     * @return the cache of frequently downloaded files
+     */
+    DownloadCache downloadCache() {
+        return downloadCache;
+    }
+
+    /**
+     * @return the server's settings
+     */
+    ServerConfig config() {
+        return config;
+    }
+
+    /**
+     * @return the buffers this server's transfers copy through
+     */
+    BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return the index of stored files
+     */
+    PathIndex pathIndex() {
+        return pathIndex;
+    }
+
+    /**
+     * @return the stream of stored file changes, coalesced for user interfaces
+     */
+    public ChangeEvents changeEvents() {
+        return changeEvents;
+    }
+
+    /**
+     * @return the directory stored files live in
+     */
+    public Path root() {
+        return root;
+    }
+
+    /**
+     * @return the port the server listens on, or -1 before it has started
+     */
+    public int port() {
+        return serverSocket != null ? serverSocket.getLocalPort() : -1;
+    }
+
+    /**
+     * Records a file the server created or replaced: indexes it, drops what was derived from its
+     * old content and tells subscribers.
+     *
+     * @param file the stored file
+     */
+    private void fileStored(Path file) {
+        pathIndex.added(file);
+        storedFileChanged(file);
+        changeEvents.publish(ChangeEvents.Kind.ADDED, file);
+    }
+
+    /**
+     * Records a file the server moved away or deleted.
+     *
+     * @param file the former location of the file
+     */
+    private void fileRemoved(Path file) {
+        pathIndex.removed(file);
+        storedFileChanged(file);
+        changeEvents.publish(ChangeEvents.Kind.REMOVED, file);
+    }
+
+    /**
+     * Drops everything derived from a stored file's old content, called whenever the server
+     * stores, moves or deletes the file.
+     *
+     * @param file the stored file
+     */
+    private void storedFileChanged(Path file) {
+        downloadCache.invalidate(file);
+        checksumStore.removed(file);
+        if (compressedCopies != null) {
+            compressedCopies.invalidate(file);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Runs the file server without a user interface, for machines without a display. JavaFX is not
+ * loaded at all, so the server also runs from a class path that does not contain it.
+ * <p>
+ * Usage: {@code java -cp target/classes com.example.Server.HeadlessServer [directory]}, where the
+ * directory defaults to {@code server_directory}.
+ */
+public final class HeadlessServer {
+
+    private HeadlessServer() {
+    }
+
+    public static void main(String[] args) {
+        FileServerCore server = new FileServerCore(Paths.get(args.length > 0 ? args[0] : "server_directory"));
+        try {
+            server.start();
+        } catch (IOException e) {
+            Log.warn("Unable to start the server: " + e.getMessage());
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "server-stop"));
+        try {
+            server.awaitStop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.Server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram in the style of HdrHistogram: buckets are laid out log-linearly, so every
+ * recorded value lands in a bucket at most about 3% wider than the value, from nanoseconds up to
+ * hours, in a fixed array of counters. Recording is a few atomic additions without locks or
+ * allocation, so it can sit on every request. Percentiles read the counters without stopping
+ * writers and are therefore approximate while requests are in flight.
+ */
+final class LatencyHistogram {
+
+    /** Each power of two above 2 * SUB_BUCKET_COUNT is split into 2^SUB_BUCKET_BITS buckets. */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = 2 * SUB_BUCKET_COUNT + (62 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records one value.
+     *
+     * @param nanos the latency in nanoseconds, negative values count as 0
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of all recorded values in nanoseconds
+     */
+    long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the largest recorded value in nanoseconds
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Estimates a percentile.
+     *
+     * @param percentile between 0 and 100
+     * @return the upper bound in nanoseconds of the bucket holding the percentile, 0 if empty
+     */
+    long percentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max());
+            }
+        }
+        return max();
+    }
+
+    /**
+     * Values below 2 * SUB_BUCKET_COUNT map to themselves; above that, the bucket is given by the
+     * position of the highest set bit and the SUB_BUCKET_BITS bits below it.
+     */
+    private static int bucketOf(long value) {
+        if (value < 2 * SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return 2 * SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket - 2 * SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + 1;
+        long subBucket = (bucket - 2 * SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
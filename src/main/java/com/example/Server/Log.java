@@ -0,0 +1,119 @@
+package com.example.Server;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Console logging that stays off the request path. Callers only put the line on a bounded queue;
+ * a background thread does the printing, which contends on the console lock and may block on a
+ * slow terminal. At most {@code fileserver.log.rate} lines per second (default 1000) are
+ * accepted, and lines that do not fit the rate or the queue are counted and reported instead of
+ * slowing the server down.
+ */
+final class Log {
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int LINES_PER_SECOND = Integer.getInteger("fileserver.log.rate", 1000);
+
+    private static final BlockingQueue<Line> QUEUE = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong CURRENT_SECOND = new AtomicLong();
+    private static final AtomicInteger LINES_THIS_SECOND = new AtomicInteger();
+    private static final LongAdder DROPPED = new LongAdder();
+
+    static {
+        Thread writer = new Thread(Log::writeLines, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Print what is still queued when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-drain"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Logs an informational line to standard output.
+     *
+     * @param message the line
+     */
+    static void info(String message) {
+        enqueue(new Line(System.out, message, null));
+    }
+
+    /**
+     * Logs a problem to standard error.
+     *
+     * @param message the line
+     */
+    static void warn(String message) {
+        enqueue(new Line(System.err, message, null));
+    }
+
+    /**
+     * Logs a problem with the stack trace of its cause to standard error.
+     *
+     * @param message the line
+     * @param error   the cause
+     */
+    static void warn(String message, Throwable error) {
+        enqueue(new Line(System.err, message, error));
+    }
+
+    /**
+     * @return the number of lines dropped by the rate limit or a full queue since startup
+     */
+    static long droppedLines() {
+        return DROPPED.sum();
+    }
+
+    private static void enqueue(Line line) {
+        long second = System.nanoTime() / 1_000_000_000L;
+        long current = CURRENT_SECOND.get();
+        if (second != current && CURRENT_SECOND.compareAndSet(current, second)) {
+            LINES_THIS_SECOND.set(0);
+        }
+        if (LINES_THIS_SECOND.incrementAndGet() > LINES_PER_SECOND || !QUEUE.offer(line)) {
+            DROPPED.increment();
+        }
+    }
+
+    private static void writeLines() {
+        long reportedDrops = 0;
+        while (true) {
+            Line line;
+            try {
+                line = QUEUE.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long drops = DROPPED.sum();
+            if (drops != reportedDrops) {
+                System.err.println((drops - reportedDrops) + " log lines dropped");
+                reportedDrops = drops;
+            }
+            line.print();
+        }
+    }
+
+    private static void drain() {
+        Line line;
+        while ((line = QUEUE.poll()) != null) {
+            line.print();
+        }
+        System.out.flush();
+    }
+
+    private record Line(PrintStream stream, String message, Throwable error) {
+
+        void print() {
+            stream.println(message);
+            if (error != null) {
+                error.printStackTrace(stream);
+            }
+        }
+    }
+}
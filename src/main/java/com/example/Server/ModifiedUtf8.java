@@ -0,0 +1,60 @@
+package com.example.Server;
+
+import java.io.UTFDataFormatException;
+
+/**
+ * Decoder for the modified UTF-8 encoding produced by {@link java.io.DataOutputStream#writeUTF}.
+ * Used by the non-blocking engine, which has to parse strings out of raw buffers instead of a
+ * {@link java.io.DataInputStream}.
+ */
+final class ModifiedUtf8 {
+
+    private ModifiedUtf8() {
+    }
+
+    /**
+     * Decodes {@code length} bytes of modified UTF-8 (without the two byte length prefix).
+     *
+     * @param bytes  the encoded bytes
+     * @param length the number of bytes to decode
+     * @return the decoded string
+     * @throws UTFDataFormatException if the bytes are not valid modified UTF-8
+     */
+    static String decode(byte[] bytes, int length) throws UTFDataFormatException {
+        char[] chars = new char[length];
+        int charCount = 0;
+        int i = 0;
+        while (i < length) {
+            int first = bytes[i] & 0xFF;
+            if (first < 0x80) {
+                chars[charCount++] = (char) first;
+                i++;
+            } else if ((first >> 5) == 0b110) {
+                if (i + 1 >= length) {
+                    throw new UTFDataFormatException("Partial character at end of input");
+                }
+                int second = continuation(bytes[i + 1], i + 1);
+                chars[charCount++] = (char) (((first & 0x1F) << 6) | second);
+                i += 2;
+            } else if ((first >> 4) == 0b1110) {
+                if (i + 2 >= length) {
+                    throw new UTFDataFormatException("Partial character at end of input");
+                }
+                int second = continuation(bytes[i + 1], i + 1);
+                int third = continuation(bytes[i + 2], i + 2);
+                chars[charCount++] = (char) (((first & 0x0F) << 12) | (second << 6) | third);
+                i += 3;
+            } else {
+                throw new UTFDataFormatException("Malformed input around byte " + i);
+            }
+        }
+        return new String(chars, 0, charCount);
+    }
+
+    private static int continuation(byte value, int index) throws UTFDataFormatException {
+        if ((value & 0xC0) != 0x80) {
+            throw new UTFDataFormatException("Malformed input around byte " + index);
+        }
+        return value & 0x3F;
+    }
+}
@@ -0,0 +1,385 @@
+package com.example.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+/**
+ * Per-connection state machine for the non-blocking engine. Parses the same framing the blocking
+ * handler reads with {@code readUTF()} (a command and a file name) incrementally from whatever
+ * bytes each read delivers. Nothing here may wait for the disk's metadata: commands that change
+ * the tree go to the blocking handlers, and an upload is committed on a thread of its own.
+ * Downloads are served from the cache or with sendfile; the file is never read into memory
+ * here, and a name that would wait for the path index to be built goes to the blocking
+ * handlers.
+ */
+final class NioConnection {
+
+    private enum State {
+        COMMAND, FILE_NAME, UPLOAD_BODY, COMMITTING, DOWNLOAD, HANDED_OFF, CLOSED
+    }
+
+    /**
+     * Commands parsed by the state machine; anything else is handed to the blocking handlers,
+     * including MOVE and DELETE, which wait for the journal and, in a cluster, for another node.
+     * While bandwidth limits are set these go to the blocking handlers too, as an event loop
+     * cannot wait for its share.
+     */
+    private static final Set<String> NATIVE_COMMANDS = Set.of("UPLOAD", "DOWNLOAD");
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final FileServerCore fileServer;
+    private final TransferScheduler.Flow flow;
+
+    private State state = State.COMMAND;
+
+    // Incremental readUTF() state: two length bytes followed by the encoded string
+    private int stringLength = -1;
+    private int lengthBytesRead;
+    private int lengthHighByte;
+    private byte[] stringBytes;
+    private int stringBytesRead;
+
+    private String command;
+    private String fileName;
+
+    private Path temporaryFile;
+    private Checksum.Accumulator uploadChecksums;
+    private FileChannel fileChannel;
+    private long filePosition;
+    private long fileSize;
+    private final ByteBuffer sizeHeader = ByteBuffer.allocate(Long.BYTES);
+    private ByteBuffer cachedContent;
+    private ByteBuffer unread;
+    /** When the native command's header was complete, 0 once its metrics are recorded. */
+    private long commandStarted;
+    /** When the connection last moved a byte in either direction, for the timeouts. */
+    private long lastProgress = System.nanoTime();
+
+    NioConnection(SocketChannel channel, SelectionKey key, FileServerCore fileServer) {
+        this.channel = channel;
+        this.key = key;
+        this.fileServer = fileServer;
+        this.flow = fileServer.scheduler().open(channel.socket().getInetAddress());
+        fileServer.metrics().connectionOpened();
+    }
+
+    /**
+     * Reads whatever is available and advances the state machine.
+     *
+     * @param buffer the event loop's shared read buffer
+     * @throws IOException if reading or writing the file fails
+     */
+    void onReadable(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int bytesRead = channel.read(buffer);
+        if (bytesRead < 0) {
+            onEndOfStream();
+            return;
+        }
+        if (bytesRead > 0) {
+            lastProgress = System.nanoTime();
+        }
+        buffer.flip();
+
+        while (buffer.hasRemaining() && state != State.CLOSED && state != State.HANDED_OFF) {
+            switch (state) {
+                case COMMAND -> {
+                    String value = readString(buffer);
+                    if (value != null) {
+                        command = value;
+                        if (NATIVE_COMMANDS.contains(command) && !fileServer.scheduler().isShaping()) {
+                            state = State.FILE_NAME;
+                        } else {
+                            handOff(buffer);
+                        }
+                    }
+                }
+                case FILE_NAME -> {
+                    String value = readString(buffer);
+                    if (value != null) {
+                        fileName = value;
+                        onHeaderComplete(buffer);
+                    }
+                }
+                case UPLOAD_BODY -> {
+                    uploadChecksums.update(buffer);
+                    while (buffer.hasRemaining()) {
+                        filePosition += fileChannel.write(buffer, filePosition);
+                    }
+                }
+                case DOWNLOAD -> {
+                    // Clients send nothing after a DOWNLOAD request
+                    buffer.position(buffer.limit());
+                }
+                default -> throw new IllegalStateException("Unexpected state " + state);
+            }
+        }
+        // Bytes read past a handed off command are counted again by the blocking handler's flow
+        flow.received(bytesRead - (state == State.HANDED_OFF ? unread.remaining() : 0));
+    }
+
+    /**
+     * Continues sending the download header and file data as far as the socket accepts.
+     *
+     * @throws IOException if reading the file or writing the socket fails
+     */
+    void onWritable() throws IOException {
+        lastProgress = System.nanoTime();
+        if (sizeHeader.hasRemaining()) {
+            channel.write(sizeHeader);
+            if (sizeHeader.hasRemaining()) {
+                return;
+            }
+        }
+        if (cachedContent != null) {
+            int before = cachedContent.remaining();
+            channel.write(cachedContent);
+            fileServer.downloadCache().served(before - cachedContent.remaining());
+            fileServer.metrics().sent(before - cachedContent.remaining());
+            flow.sent(before - cachedContent.remaining());
+            if (cachedContent.hasRemaining()) {
+                return;
+            }
+        }
+        while (filePosition < fileSize) {
+            long transferred = fileChannel.transferTo(filePosition, fileSize - filePosition, channel);
+            if (transferred <= 0) {
+                // Socket buffer is full, wait for the next OP_WRITE
+                return;
+            }
+            filePosition += transferred;
+            fileServer.metrics().sent(transferred);
+            flow.sent(transferred);
+        }
+        Log.info("File downloaded: " + fileName);
+        finishCommand(false);
+        close();
+    }
+
+    private void onHeaderComplete(ByteBuffer buffer) throws IOException {
+        commandStarted = System.nanoTime();
+        switch (command) {
+            case "UPLOAD" -> {
+                // Same as the blocking handler: receive into a temporary file, commit when complete
+                temporaryFile = fileServer.partialUploads().newTemporaryFile();
+                fileChannel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE);
+                uploadChecksums = fileServer.newChecksums();
+                state = State.UPLOAD_BODY;
+            }
+            case "DOWNLOAD" -> startDownload(buffer);
+            default -> {
+                Log.info("Unknown command: " + command);
+                close();
+            }
+        }
+    }
+
+    private void startDownload(ByteBuffer buffer) throws IOException {
+        if (!fileServer.pathIndex().isReady()) {
+            // A bare name may wait for the walk of the tree, which the loop cannot do
+            commandStarted = 0;
+            handOff(buffer);
+            return;
+        }
+        File file = fileServer.findFile(fileName);
+        if (file == null || !file.isFile()) {
+            Log.info("File not found or is not a file: " + fileName);
+            finishCommand(false);
+            close();
+            return;
+        }
+        cachedContent = fileServer.downloadCache().peek(file.toPath());
+        if (cachedContent != null) {
+            // Served from memory, filePosition and fileSize stay 0 so the file loop is skipped
+            sizeHeader.putLong(cachedContent.remaining()).flip();
+        } else {
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            fileSize = fileChannel.size();
+            sizeHeader.putLong(fileSize).flip();
+        }
+        state = State.DOWNLOAD;
+        key.interestOps(SelectionKey.OP_WRITE);
+        onWritable();
+    }
+
+    /**
+     * Stops serving the connection from the event loop. The loop deregisters the channel and
+     * passes it, with the command, the file name if it has been read and the bytes read past
+     * them, to the blocking handlers.
+     */
+    private void handOff(ByteBuffer buffer) {
+        unread = ByteBuffer.allocate(buffer.remaining());
+        unread.put(buffer).flip();
+        state = State.HANDED_OFF;
+        key.cancel();
+        // The blocking handler opens a flow of its own
+        flow.close();
+    }
+
+    /**
+     * Checks the connection against the timeout that applies to what it is waiting for: the idle
+     * timeout before the first byte of a command, the write timeout while a download waits for
+     * the client to make room, and the read timeout for the rest of a request or upload.
+     *
+     * @param now    the current {@link System#nanoTime()}
+     * @param config the server configuration
+     * @return true if the connection has waited longer than allowed and should be closed
+     */
+    boolean isTimedOut(long now, ServerConfig config) {
+        long timeoutMillis;
+        if (state == State.COMMAND && lengthBytesRead == 0) {
+            timeoutMillis = config.idleTimeoutMillis();
+        } else if (state == State.DOWNLOAD) {
+            timeoutMillis = config.writeTimeoutMillis();
+        } else if (state == State.COMMITTING || state == State.HANDED_OFF || state == State.CLOSED) {
+            return false;
+        } else {
+            timeoutMillis = config.readTimeoutMillis();
+        }
+        return timeoutMillis > 0 && now - lastProgress > timeoutMillis * 1_000_000;
+    }
+
+    /**
+     * @return the client's address, for log messages
+     */
+    String remoteAddress() {
+        return String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * @return true if the connection should continue on the blocking handlers
+     */
+    boolean isHandedOff() {
+        return state == State.HANDED_OFF;
+    }
+
+    /**
+     * Passes a handed off connection to the blocking handlers. Must only be called once the
+     * channel's cancelled key has been flushed from the selector.
+     */
+    void completeHandOff() {
+        fileServer.handOffClient(channel, command, fileName, unread);
+    }
+
+    private void onEndOfStream() {
+        if (state == State.UPLOAD_BODY) {
+            // The commit waits for the journal's force and, with deduplication, hashes the file,
+            // which would stall every connection on the loop; the loop forgets this one meanwhile
+            state = State.COMMITTING;
+            key.interestOps(0);
+            Thread.ofVirtual().name("upload-commit").start(this::commitUpload);
+        } else {
+            close();
+        }
+    }
+
+    private void commitUpload() {
+        Path received = temporaryFile;
+        temporaryFile = null;
+        boolean stored = false;
+        try {
+            fileChannel.close();
+            fileServer.metrics().received(filePosition);
+            fileServer.storeUpload(received, fileName, uploadChecksums.finish());
+            stored = true;
+            Log.info("File uploaded: " + fileName);
+        } catch (IOException e) {
+            Log.warn("Failed to store " + fileName + ": " + e.getMessage());
+            deleteQuietly(received);
+        }
+        finishCommand(!stored);
+        close();
+    }
+
+    /**
+     * Consumes bytes of a {@code writeUTF} string from the buffer.
+     *
+     * @return the decoded string once all of its bytes have arrived, otherwise null
+     */
+    private String readString(ByteBuffer buffer) throws IOException {
+        while (stringLength < 0 && buffer.hasRemaining()) {
+            int b = buffer.get() & 0xFF;
+            if (lengthBytesRead == 0) {
+                lengthHighByte = b;
+                lengthBytesRead = 1;
+            } else {
+                stringLength = (lengthHighByte << 8) | b;
+                stringBytes = new byte[stringLength];
+                stringBytesRead = 0;
+            }
+        }
+        if (stringLength < 0) {
+            return null;
+        }
+        int count = Math.min(buffer.remaining(), stringLength - stringBytesRead);
+        buffer.get(stringBytes, stringBytesRead, count);
+        stringBytesRead += count;
+        if (stringBytesRead < stringLength) {
+            return null;
+        }
+        String value = ModifiedUtf8.decode(stringBytes, stringLength);
+        stringLength = -1;
+        lengthBytesRead = 0;
+        stringBytes = null;
+        stringBytesRead = 0;
+        return value;
+    }
+
+    /**
+     * Closes the connection and any file it has open.
+     */
+    void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        // Anything still unfinished was cut short
+        finishCommand(true);
+        fileServer.metrics().connectionClosed();
+        flow.close();
+        state = State.CLOSED;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Already closed by the peer
+        }
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                Log.warn("Unable to close " + fileName + ": " + e.getMessage());
+            }
+        }
+        if (temporaryFile != null) {
+            // The upload did not finish, nothing gets stored
+            deleteQuietly(temporaryFile);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            Log.warn("Unable to delete " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records the native command's latency, once.
+     */
+    private void finishCommand(boolean failed) {
+        if (commandStarted != 0) {
+            fileServer.metrics().command(command).record(System.nanoTime() - commandStarted, failed);
+            commandStarted = 0;
+        }
+    }
+}
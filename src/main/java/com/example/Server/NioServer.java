@@ -0,0 +1,229 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking server engine. One acceptor thread hands new connections round-robin to a small
+ * set of event loops (one per core by default); each loop multiplexes its connections over a
+ * {@link Selector}, so an idle or slow client costs a selection key instead of a whole thread.
+ * Each loop also wakes up a few times per timeout to close connections that have stalled.
+ */
+final class NioServer implements AutoCloseable {
+
+    private static final int CHECKS_PER_TIMEOUT = 4;
+    private static final long MIN_CHECK_INTERVAL_MILLIS = 100;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final ServerSocketChannel serverChannel;
+    private final FileServerCore fileServer;
+    private final ServerConfig config;
+    private final EventLoop[] loops;
+    private final List<Thread> threads = new ArrayList<>();
+    /** How long a loop may block in select before checking timeouts, 0 if none is set. */
+    private final long checkIntervalMillis;
+
+    NioServer(ServerSocketChannel serverChannel, FileServerCore fileServer, int loopCount) throws IOException {
+        this.serverChannel = serverChannel;
+        this.fileServer = fileServer;
+        this.config = fileServer.config();
+        long shortest = Long.MAX_VALUE;
+        for (long timeout : new long[]{config.idleTimeoutMillis(), config.readTimeoutMillis(), config.writeTimeoutMillis()}) {
+            if (timeout > 0) {
+                shortest = Math.min(shortest, timeout);
+            }
+        }
+        this.checkIntervalMillis = shortest == Long.MAX_VALUE ? 0
+                : Math.max(MIN_CHECK_INTERVAL_MILLIS, shortest / CHECKS_PER_TIMEOUT);
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(Selector.open());
+        }
+    }
+
+    /**
+     * @return the number of accepted connections not yet registered with an event loop
+     */
+    int pendingRegistrations() {
+        int pending = 0;
+        for (EventLoop loop : loops) {
+            pending += loop.pending.size();
+        }
+        return pending;
+    }
+
+    /**
+     * Starts the event loops and the acceptor thread.
+     */
+    void start() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        Thread acceptThread = new Thread(() -> {
+            int next = 0;
+            while (serverChannel.isOpen()) {
+                try {
+                    SocketChannel clientChannel = serverChannel.accept();
+                    try {
+                        config.configureConnection(clientChannel);
+                    } catch (IOException e) {
+                        Log.warn("Unable to configure a connection: " + e.getMessage());
+                    }
+                    loops[next].register(clientChannel);
+                    next = (next + 1) % loops.length;
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    Log.warn("Unable to accept a connection: " + e.getMessage());
+                }
+            }
+        }, "nio-accept-" + serverChannel.socket().getLocalPort());
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Stops the event loops, closing every connection they serve, and waits for them to exit.
+     * The acceptor stops by itself once the server channel is closed.
+     */
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.closed = true;
+            loop.selector.wakeup();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // Shared by every connection on this loop; each read is fully consumed before the next one
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(config.ioBufferSize());
+        private long lastCheck = System.nanoTime();
+        private volatile boolean closed;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            if (closed && pending.remove(channel)) {
+                closeQuietly(channel);
+                return;
+            }
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    selector.select(checkIntervalMillis);
+                    registerPending();
+                    List<NioConnection> handOffs = new ArrayList<>();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                            if (connection.isHandedOff()) {
+                                handOffs.add(connection);
+                            }
+                        } catch (IOException e) {
+                            Log.warn("Connection failed: " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+                    if (!handOffs.isEmpty()) {
+                        // Flush the cancelled keys so the channels can be switched back to blocking mode
+                        selector.selectNow();
+                        handOffs.forEach(NioConnection::completeHandOff);
+                    }
+                    closeTimedOut();
+                } catch (IOException e) {
+                    Log.warn("Event loop failed", e);
+                }
+            }
+            for (SelectionKey key : List.copyOf(selector.keys())) {
+                if (key.attachment() instanceof NioConnection connection) {
+                    connection.close();
+                }
+            }
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                closeQuietly(channel);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.warn("Unable to close an event loop: " + e.getMessage());
+            }
+        }
+
+        private void closeTimedOut() {
+            long now = System.nanoTime();
+            if (checkIntervalMillis == 0 || now - lastCheck < checkIntervalMillis * 1_000_000) {
+                return;
+            }
+            lastCheck = now;
+            for (SelectionKey key : List.copyOf(selector.keys())) {
+                if (key.attachment() instanceof NioConnection connection && connection.isTimedOut(now, config)) {
+                    Log.info("Closing " + connection.remoteAddress() + ": timed out waiting for the client");
+                    connection.close();
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(channel, key, fileServer));
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing left to clean up
+        }
+    }
+}
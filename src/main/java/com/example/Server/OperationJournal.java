@@ -0,0 +1,432 @@
+package com.example.Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-ahead log of the operations that change the storage tree: storing an upload, moving and
+ * deleting a file. Each operation is logged and forced to disk before it is carried out, and
+ * marked done afterwards, so an operation cut short by a crash is carried out again when the
+ * server next starts. Every operation is a single rename, link or delete of a whole file and can
+ * safely be repeated.
+ * <p>
+ * Forcing the log is the expensive part, so it is shared: whoever finds no force in progress
+ * writes everything logged so far and forces it once, and every operation that was waiting for
+ * that force proceeds together (group commit). Done marks are only written along with the next
+ * force. Once the log has grown past {@link #CHECKPOINT_BYTES}, the directories the logged
+ * operations touched are forced and the log is replaced by one holding just the operations still
+ * in flight, so it stays short however busy the server is.
+ */
+final class OperationJournal implements Closeable {
+
+    /** Rewrite the log once it is this long. */
+    static final long CHECKPOINT_BYTES = 4L * 1024 * 1024;
+
+    /** What an operation does. */
+    enum Kind {
+        /** Commit a temporary file, or link known content when there is none, to the target. */
+        STORE,
+        /** Rename the source to the target, replacing it. */
+        MOVE,
+        /** Delete the source. */
+        DELETE
+    }
+
+    /**
+     * One logged change of the storage tree.
+     *
+     * @param kind   what the operation does
+     * @param source the temporary file to store or the file to move or delete, null when storing
+     *               known content
+     * @param target where the file ends up, null for a delete
+     * @param sha256 the content hash of a stored file when deduplication needs it, else null
+     */
+    record Operation(Kind kind, Path source, Path target, String sha256) {
+
+        /**
+         * @return the files the operation reads or changes, for telling which operations
+         * depend on each other
+         */
+        List<Path> paths() {
+            List<Path> paths = new ArrayList<>(2);
+            if (source != null) {
+                paths.add(source);
+            }
+            if (target != null) {
+                paths.add(target);
+            }
+            return paths;
+        }
+    }
+
+    private final Path logFile;
+    private final boolean sync;
+    private final List<Path> syncedDirectories;
+    private final List<Operation> unfinished;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition forced = lock.newCondition();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    // Directories holding files the log mentions, forced before the log is rewritten
+    private final Set<Path> touchedDirectories = new HashSet<>();
+    // Logged and not finished yet, by sequence number; all a rewritten log has to hold
+    private final TreeMap<Long, Operation> inFlight = new TreeMap<>();
+    private final AtomicLong groupCommits = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+    private FileChannel channel;
+    private long lastSequence;
+    private long durableSequence;
+    private long failedSequence;
+    private IOException failure;
+    private boolean forcing;
+
+    /**
+     * Opens the log and reads the operations an earlier run did not finish. Nothing can be
+     * logged until they have been taken with {@link #takeUnfinished(Path...)} and carried out.
+     *
+     * @param logFile           the log file, created if missing
+     * @param sync              whether to force the log to disk; without it, operations are
+     *                          still atomic but a power failure may lose the most recent ones
+     * @param syncedDirectories directories forced with every group commit, where temporary files
+     *                          are created before they are committed
+     * @throws IOException if the log cannot be read or opened
+     */
+    OperationJournal(Path logFile, boolean sync, Path... syncedDirectories) throws IOException {
+        this.logFile = logFile;
+        this.sync = sync;
+        this.syncedDirectories = List.of(syncedDirectories);
+        Files.createDirectories(logFile.toAbsolutePath().getParent());
+        this.unfinished = load();
+        this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Returns the operations that were logged but not marked done, in log order. An operation
+     * is left out if a later one touched the same files, since that one already observed its
+     * outcome; repeating it would undo the later one. So is one that touches a file outside the
+     * given directories, which the server never logs; the log is not trusted to be its own.
+     *
+     * @param directories the directories every file of an operation must be in
+     * @return the operations to carry out again, each of which may or may not have happened
+     */
+    List<Operation> takeUnfinished(Path... directories) {
+        List<Operation> confined = new ArrayList<>(unfinished.size());
+        for (Operation operation : unfinished) {
+            if (operation.paths().stream().allMatch(path -> inside(path, directories))) {
+                confined.add(operation);
+            } else {
+                Log.warn("Ignoring a journaled " + operation.kind() + " outside the server's directories: " + operation.paths());
+            }
+        }
+        return Collections.unmodifiableList(confined);
+    }
+
+    /**
+     * Starts the log over once the unfinished operations have been carried out.
+     *
+     * @throws IOException if the log cannot be rewritten
+     */
+    void recovered() throws IOException {
+        lock.lock();
+        try {
+            for (Operation operation : unfinished) {
+                touched(operation);
+            }
+            unfinished.clear();
+            checkpoint();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Logs an operation and returns once the log is on disk.
+     *
+     * @param operation the operation about to be carried out
+     * @return the operation's sequence number, to pass to {@link #finish(long)} once it is done
+     * @throws IOException if the log cannot be written; the operation must then not be carried out
+     */
+    long begin(Operation operation) throws IOException {
+        String sha256 = operation.sha256();
+        if (sha256 != null && (sha256.isEmpty() || sha256.equals("-") || sha256.chars().anyMatch(Character::isWhitespace))) {
+            // Fields are separated by spaces and lines, and one must not be able to add another
+            throw new IOException("Invalid journal field: " + sha256);
+        }
+        lock.lock();
+        try {
+            long sequence = ++lastSequence;
+            append(line(sequence, operation));
+            touched(operation);
+            inFlight.put(sequence, operation);
+            try {
+                awaitDurable(sequence);
+            } catch (IOException e) {
+                inFlight.remove(sequence);
+                throw e;
+            }
+            operations.incrementAndGet();
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks an operation done, whether it succeeded or failed. Does not wait for the disk.
+     *
+     * @param sequence the number returned by {@link #begin(Operation)}
+     */
+    void finish(long sequence) {
+        lock.lock();
+        try {
+            append(sequence + " DONE");
+            inFlight.remove(sequence);
+            // Not while a force is writing to the log outside the lock
+            if (!forcing && channel.size() + pending.size() > CHECKPOINT_BYTES) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            Log.warn("Unable to checkpoint the operation journal: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many forces of the log there were, each covering one or more operations
+     */
+    long groupCommits() {
+        return groupCommits.get();
+    }
+
+    /**
+     * @return how many operations were logged
+     */
+    long operations() {
+        return operations.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (channel != null) {
+                write(pending.toByteArray());
+                pending.reset();
+                channel.close();
+                channel = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the log holds the given operation on disk, forcing it if no other thread is.
+     */
+    private void awaitDurable(long sequence) throws IOException {
+        while (durableSequence < sequence) {
+            if (sequence <= failedSequence) {
+                throw new IOException("Unable to write the operation journal", failure);
+            }
+            if (forcing) {
+                forced.awaitUninterruptibly();
+                continue;
+            }
+            forcing = true;
+            long through = lastSequence;
+            byte[] batch = pending.toByteArray();
+            pending.reset();
+            // Operations logged while this batch is forced wait for the next one
+            lock.unlock();
+            IOException error = null;
+            try {
+                write(batch);
+                if (sync) {
+                    channel.force(false);
+                    for (Path directory : syncedDirectories) {
+                        forceDirectory(directory);
+                    }
+                }
+                groupCommits.incrementAndGet();
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                lock.lock();
+                forcing = false;
+            }
+            if (error != null) {
+                failure = error;
+                failedSequence = through;
+            } else {
+                durableSequence = through;
+            }
+            forced.signalAll();
+        }
+    }
+
+    private static String line(long sequence, Operation operation) {
+        return sequence + " " + operation.kind() + " " + encode(operation.source()) + " "
+                + encode(operation.target()) + " " + (operation.sha256() == null ? "-" : operation.sha256());
+    }
+
+    private void append(String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        pending.write(bytes, 0, bytes.length);
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void touched(Operation operation) {
+        for (Path path : operation.paths()) {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                touchedDirectories.add(parent);
+            }
+        }
+    }
+
+    /**
+     * Makes every finished operation durable without the log, then replaces the log with one
+     * holding only the operations in flight, which are durable once it is. Called with the lock
+     * held and no force in progress.
+     */
+    private void checkpoint() throws IOException {
+        if (sync) {
+            for (Path directory : touchedDirectories) {
+                forceDirectory(directory);
+            }
+            for (Path directory : syncedDirectories) {
+                forceDirectory(directory);
+            }
+        }
+        touchedDirectories.clear();
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<Long, Operation> entry : inFlight.entrySet()) {
+            lines.append(line(entry.getKey(), entry.getValue())).append('\n');
+            touched(entry.getValue());
+        }
+        Path temporaryFile = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        try (FileChannel rewritten = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                rewritten.write(buffer);
+            }
+            if (sync) {
+                rewritten.force(false);
+            }
+        }
+        channel.close();
+        try {
+            Files.move(temporaryFile, logFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // The old log, and what is pending for it, stays in use if the rename failed
+            channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        if (sync) {
+            forceDirectory(logFile.toAbsolutePath().getParent());
+        }
+        pending.reset();
+        // Operations still waiting for a force were written along with the rest
+        durableSequence = lastSequence;
+        forced.signalAll();
+    }
+
+    /**
+     * Forces a directory's entries to disk, so a file renamed or deleted in it stays that way.
+     * Not every platform can open a directory; there the file system's own metadata journal has
+     * to do.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException e) {
+            // Gone since, or a platform that cannot open directories
+        }
+    }
+
+    private List<Operation> load() throws IOException {
+        Map<Long, Operation> logged = new LinkedHashMap<>();
+        Set<Long> done = new HashSet<>();
+        try {
+            for (String line : Files.readAllLines(logFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(" ");
+                try {
+                    if (fields.length == 2 && fields[1].equals("DONE")) {
+                        done.add(Long.parseLong(fields[0]));
+                    } else if (fields.length == 5) {
+                        logged.put(Long.parseLong(fields[0]), new Operation(Kind.valueOf(fields[1]),
+                                decode(fields[2]), decode(fields[3]), fields[4].equals("-") ? null : fields[4]));
+                    }
+                } catch (IllegalArgumentException e) {
+                    // A line torn by a crash; its operation was never carried out
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return new ArrayList<>();
+        }
+        // Walk backwards so an operation is only kept if nothing later touched its files
+        List<Map.Entry<Long, Operation>> entries = new ArrayList<>(logged.entrySet());
+        List<Operation> unfinished = new ArrayList<>();
+        Set<Path> later = new HashSet<>();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Operation operation = entries.get(i).getValue();
+            if (!done.contains(entries.get(i).getKey()) && operation.paths().stream().noneMatch(later::contains)) {
+                unfinished.add(0, operation);
+            }
+            later.addAll(operation.paths());
+        }
+        return unfinished;
+    }
+
+    private static boolean inside(Path path, Path[] directories) {
+        if (!path.isAbsolute()) {
+            return false;
+        }
+        Path normalized = path.normalize();
+        for (Path directory : directories) {
+            if (normalized.startsWith(directory.toAbsolutePath().normalize())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String encode(Path path) {
+        return path == null ? "-" : URLEncoder.encode(path.toAbsolutePath().normalize().toString(), StandardCharsets.UTF_8);
+    }
+
+    private static Path decode(String field) {
+        return field.equals("-") ? null : Paths.get(URLDecoder.decode(field, StandardCharsets.UTF_8));
+    }
+}
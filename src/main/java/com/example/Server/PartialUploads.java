@@ -0,0 +1,468 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Uploads that are still in progress. Data is written into a temporary file outside the storage
+ * tree and only renamed over the real file once every byte has arrived, so an interrupted
+ * transfer never replaces a good file. The byte ranges received so far are kept in a small
+ * sidecar file next to the temporary file, which lets a client resume after a dropped
+ * connection or a server restart. Every commit is logged in the {@link OperationJournal} first,
+ * so one cut short by a crash is completed when the server starts again, and every target name
+ * must stay inside the storage root.
+ */
+final class PartialUploads {
+
+    /** Persist received ranges at least this often while a large range is streaming in. */
+    static final long PERSIST_INTERVAL = 64L * 1024 * 1024;
+
+    private final Path storageRoot;
+    private final Path uploadDirectory;
+    private final ContentStore contentStore;
+    private final OperationJournal journal;
+    private final boolean syncData;
+    // Keyed by the confined target, so every spelling of a name shares one upload
+    private final Map<Path, Upload> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * @param storageRoot     the storage tree completed uploads are moved into
+     * @param uploadDirectory the directory holding temporary files
+     * @param contentStore    the deduplicating store completed uploads are committed through, or
+     *                        null to move them into the storage tree as they are
+     * @param journal         the log every commit is recorded in before it happens
+     * @param syncData        whether a temporary file is forced to disk before it is committed
+     * @throws IOException if the upload directory cannot be created
+     */
+    PartialUploads(Path storageRoot, Path uploadDirectory, ContentStore contentStore, OperationJournal journal,
+                   boolean syncData) throws IOException {
+        this.storageRoot = storageRoot.toAbsolutePath().normalize();
+        this.uploadDirectory = uploadDirectory;
+        this.contentStore = contentStore;
+        this.journal = journal;
+        this.syncData = syncData;
+        Files.createDirectories(uploadDirectory);
+    }
+
+    /**
+     * Returns the in-progress upload for a name, resuming one left on disk by an earlier
+     * connection or starting a new one. An earlier upload with a different total size is
+     * discarded, since it cannot belong to the same content.
+     *
+     * @param fileName  the target name relative to the storage root
+     * @param totalSize the size of the complete file
+     * @return the upload, with its temporary file open for writing
+     * @throws IOException if the name is outside the storage root or the temporary file cannot
+     *                     be opened
+     */
+    Upload open(String fileName, long totalSize) throws IOException {
+        Path target = storagePath(fileName);
+        Upload upload;
+        synchronized (uploads) {
+            upload = uploads.get(target);
+            if (upload == null) {
+                upload = new Upload(target);
+                upload.load();
+                uploads.put(target, upload);
+            }
+        }
+        upload.ensureOpen(totalSize);
+        return upload;
+    }
+
+    /**
+     * @param fileName the target name relative to the storage root
+     * @return the upload in progress for that name, or null if there is none
+     * @throws IOException if the name is outside the storage root
+     */
+    Upload find(String fileName) throws IOException {
+        Path target = storagePath(fileName);
+        Upload upload = uploads.get(target);
+        if (upload != null) {
+            return upload;
+        }
+        Upload stored = new Upload(target);
+        return stored.load() ? stored : null;
+    }
+
+    /**
+     * Creates a temporary file for an upload whose length is not known in advance.
+     *
+     * @return the path of the new, empty temporary file
+     * @throws IOException if the file cannot be created
+     */
+    Path newTemporaryFile() throws IOException {
+        return Files.createFile(uploadDirectory.resolve(UUID.randomUUID() + ".tmp"));
+    }
+
+    /**
+     * Atomically moves a completed temporary file to its place in the storage tree.
+     *
+     * @param temporaryFile the finished temporary file
+     * @param fileName      the target name relative to the storage root
+     * @return the path of the stored file
+     * @throws IOException if the rename fails
+     */
+    Path commit(Path temporaryFile, String fileName) throws IOException {
+        return commit(temporaryFile, fileName, null);
+    }
+
+    /**
+     * Atomically moves a completed temporary file to its place in the storage tree, or commits
+     * it through the content store when deduplication is on. The commit is logged first, so it
+     * either happens in full or is completed by {@link #recover(OperationJournal.Operation)}
+     * after a crash.
+     *
+     * @param temporaryFile the finished temporary file
+     * @param fileName      the target name relative to the storage root
+     * @param sha256        the file's SHA-256 as hex if it was computed while receiving, else null
+     * @return the path of the stored file
+     * @throws IOException if the name is outside the storage root or the rename fails
+     */
+    Path commit(Path temporaryFile, String fileName, String sha256) throws IOException {
+        return commit(temporaryFile, storagePath(fileName), sha256);
+    }
+
+    private Path commit(Path temporaryFile, Path target, String sha256) throws IOException {
+        // Uploads assembled from ranges arrive out of order and are hashed once complete
+        String hash = contentStore == null ? null : sha256 != null ? sha256 : contentStore.sha256(temporaryFile);
+        if (syncData) {
+            // The content must be on disk before the log says it is stored
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+        }
+        long sequence = journal.begin(new OperationJournal.Operation(OperationJournal.Kind.STORE, temporaryFile, target, hash));
+        try {
+            return store(temporaryFile, target, hash);
+        } finally {
+            journal.finish(sequence);
+        }
+    }
+
+    /**
+     * Stores a file from content the store already holds, logged like any other commit.
+     *
+     * @param fileName the target name relative to the storage root
+     * @param sha256   the SHA-256 of the content as lower case hex
+     * @return the stored file, or null if the content is unknown or deduplication is off
+     * @throws IOException if the name is outside the storage root, the hash is malformed or
+     *                     linking fails
+     */
+    Path link(String fileName, String sha256) throws IOException {
+        if (contentStore == null) {
+            return null;
+        }
+        Path target = storagePath(fileName);
+        // Checked before the hash is written to the journal, not only when it is looked up
+        ContentStore.checkHash(sha256);
+        long sequence = journal.begin(new OperationJournal.Operation(OperationJournal.Kind.STORE, null, target, sha256));
+        try {
+            return contentStore.linkExisting(sha256, target) ? target : null;
+        } finally {
+            journal.finish(sequence);
+        }
+    }
+
+    /**
+     * Completes a commit that a crash may have cut short. The temporary file still being there
+     * means it was not renamed yet; otherwise content known by its hash is linked again, which
+     * changes nothing if the link was made.
+     *
+     * @param operation a {@link OperationJournal.Kind#STORE} operation from the journal
+     * @return the stored file, or null if there was nothing left to do
+     * @throws IOException if the rename or link fails
+     */
+    Path recover(OperationJournal.Operation operation) throws IOException {
+        if (operation.source() != null && Files.exists(operation.source())) {
+            return store(operation.source(), operation.target(), operation.sha256());
+        }
+        if (contentStore != null && operation.sha256() != null && contentStore.linkExisting(operation.sha256(), operation.target())) {
+            return operation.target();
+        }
+        return null;
+    }
+
+    /**
+     * Deletes temporary files of uploads that never reached their commit, left behind by a crash.
+     * Partial uploads that can be resumed are kept. Only safe while nothing is being uploaded.
+     *
+     * @return the number of files deleted
+     * @throws IOException if the upload directory cannot be listed
+     */
+    int removeAbandonedFiles() throws IOException {
+        int removed = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(uploadDirectory, "*.tmp")) {
+            for (Path file : files) {
+                if (Files.deleteIfExists(file)) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private Path store(Path temporaryFile, Path target, String hash) throws IOException {
+        if (contentStore != null) {
+            return contentStore.store(temporaryFile, hash, target);
+        }
+        Files.createDirectories(target.getParent());
+        return Files.move(temporaryFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the deduplicating store, or null if deduplication is off
+     */
+    ContentStore contentStore() {
+        return contentStore;
+    }
+
+    /**
+     * @param fileName the target name relative to the storage root
+     * @return the absolute path the file is stored at
+     * @throws IOException if the name is absolute or leads outside the storage root
+     */
+    Path storagePath(String fileName) throws IOException {
+        return confine(storageRoot, fileName);
+    }
+
+    /**
+     * Resolves a client-supplied path below a directory, refusing anything that would end up
+     * elsewhere, such as {@code ../} segments or absolute paths.
+     *
+     * @param directory the directory, absolute and normalized
+     * @param path      the path relative to it
+     * @return the resolved absolute path, never the directory itself
+     * @throws IOException if the path leads outside the directory or is malformed
+     */
+    static Path confine(Path directory, String path) throws IOException {
+        try {
+            Path relative = Paths.get(path);
+            Path resolved = directory.resolve(relative).normalize();
+            if (relative.isAbsolute() || relative.getRoot() != null || !resolved.startsWith(directory)
+                    || resolved.equals(directory)) {
+                throw new IOException("Path outside the storage root: " + path);
+            }
+            return resolved;
+        } catch (InvalidPathException e) {
+            throw new IOException("Invalid path: " + path, e);
+        }
+    }
+
+    /**
+     * An upload assembled from byte ranges written at arbitrary offsets.
+     */
+    final class Upload {
+
+        private final Path target;
+        private final String fileName;
+        private final Path partFile;
+        private final Path rangesFile;
+        // Start offset -> end offset (exclusive) of every range received, with no overlaps
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+        private long totalSize = -1;
+        private FileChannel channel;
+        // Connections between acquire() and release(), which commit() waits for
+        private int writers;
+        private boolean committed;
+
+        private Upload(Path target) {
+            this.target = target;
+            this.fileName = storageRoot.relativize(target).toString().replace(target.getFileSystem().getSeparator(), "/");
+            // Hashed rather than encoded, so a long path cannot exceed the file system's name limit
+            String key = HexFormat.of().formatHex(ContentStore.newDigest().digest(fileName.getBytes(StandardCharsets.UTF_8)));
+            this.partFile = uploadDirectory.resolve(key + ".part");
+            this.rangesFile = uploadDirectory.resolve(key + ".ranges");
+        }
+
+        /**
+         * @return the target name relative to the storage root, normalized with {@code /} separators
+         */
+        String fileName() {
+            return fileName;
+        }
+
+        /**
+         * Registers the caller as a writer; the upload is not committed, and its channel not
+         * closed, until every writer has called {@link #release()}.
+         *
+         * @return the channel of the temporary file, safe for concurrent positional writes
+         * @throws IOException if the upload has already been committed
+         */
+        synchronized FileChannel acquire() throws IOException {
+            if (committed) {
+                throw new IOException("Upload of " + fileName + " already completed");
+            }
+            writers++;
+            return channel;
+        }
+
+        /**
+         * Ends a writer's use of the channel returned by {@link #acquire()}.
+         */
+        synchronized void release() {
+            if (--writers == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * @return the size of the complete file, or -1 if unknown
+         */
+        synchronized long totalSize() {
+            return totalSize;
+        }
+
+        /**
+         * @return the number of bytes received without a gap from the start of the file
+         */
+        synchronized long contiguousLength() {
+            Map.Entry<Long, Long> first = ranges.firstEntry();
+            return first != null && first.getKey() == 0 ? first.getValue() : 0;
+        }
+
+        /**
+         * @return true if every byte of the file has been received
+         */
+        synchronized boolean isComplete() {
+            return totalSize >= 0 && contiguousLength() == totalSize;
+        }
+
+        /**
+         * Marks {@code [start, end)} as received, merging it with adjacent ranges.
+         */
+        synchronized void recordRange(long start, long end) {
+            if (end <= start) {
+                return;
+            }
+            Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            Map.Entry<Long, Long> next;
+            while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+                end = Math.max(end, next.getValue());
+                ranges.remove(next.getKey());
+            }
+            ranges.put(start, end);
+        }
+
+        /**
+         * Writes the received ranges to the sidecar file so they survive a restart.
+         */
+        synchronized void persist() throws IOException {
+            if (committed) {
+                return;
+            }
+            List<String> lines = new ArrayList<>();
+            lines.add(Long.toString(totalSize));
+            for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+                lines.add(range.getKey() + " " + range.getValue());
+            }
+            Path temporary = rangesFile.resolveSibling(rangesFile.getFileName() + ".tmp");
+            Files.write(temporary, lines, StandardCharsets.UTF_8);
+            Files.move(temporary, rangesFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Moves the finished file into the storage tree and forgets the upload.
+         *
+         * @return the stored file, or null if another connection already committed it
+         */
+        Path commit() throws IOException {
+            return commit(null);
+        }
+
+        /**
+         * Moves the finished file into the storage tree and forgets the upload, once writers
+         * still holding the channel, such as a segment sent twice, have released it.
+         *
+         * @param sha256 the file's SHA-256 as hex if a single connection received all of it in
+         *               order and hashed it on the way, else null
+         * @return the stored file, or null if another connection already committed it
+         */
+        synchronized Path commit(String sha256) throws IOException {
+            while (writers > 0 && !committed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for writers of " + fileName);
+                }
+            }
+            if (committed) {
+                return null;
+            }
+            committed = true;
+            // Forced, if the fsync policy says so, by the commit below
+            channel.close();
+            uploads.remove(target, this);
+            Path stored = PartialUploads.this.commit(partFile, target, sha256);
+            // A ranges file without its part file is ignored, so a crash before this is harmless
+            Files.deleteIfExists(rangesFile);
+            return stored;
+        }
+
+        private synchronized boolean load() {
+            if (!Files.exists(rangesFile) || !Files.exists(partFile)) {
+                return false;
+            }
+            try {
+                List<String> lines = Files.readAllLines(rangesFile, StandardCharsets.UTF_8);
+                totalSize = Long.parseLong(lines.get(0));
+                for (String line : lines.subList(1, lines.size())) {
+                    String[] parts = line.split(" ");
+                    ranges.put(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+                }
+                return true;
+            } catch (IOException | RuntimeException e) {
+                Log.warn("Discarding unreadable partial upload of " + fileName);
+                ranges.clear();
+                totalSize = -1;
+                return false;
+            }
+        }
+
+        private synchronized void ensureOpen(long expectedSize) throws IOException {
+            if (committed) {
+                throw new IOException("Upload of " + fileName + " already completed");
+            }
+            if (totalSize != expectedSize) {
+                // A different file is being uploaded under this name, start over
+                ranges.clear();
+                totalSize = expectedSize;
+                if (channel != null) {
+                    channel.truncate(0);
+                } else {
+                    Files.deleteIfExists(partFile);
+                }
+            }
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            }
+            if (channel.size() < totalSize) {
+                // Reserve the full length up front so the file is not grown on every write
+                channel.write(ByteBuffer.allocate(1), totalSize - 1);
+            }
+            persist();
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory index of every file below the storage root, so lookups no longer walk the tree.
+ * Files are keyed by their path relative to the root ({@code "sub/report.txt"}); a second map
+ * from bare file name to relative paths keeps lookups by name alone working, preferring the
+ * shallowest match when the same name exists in several folders.
+ * <p>
+ * The index is built by a parallel walk at startup and then kept current by the server's own
+ * handlers and by a {@link WatchService} for changes made outside the server. The walk can run in
+ * the background while the server already accepts requests: files it has not reached yet are
+ * found by path on disk, and lookups by bare name wait for it to finish.
+ */
+final class PathIndex implements AutoCloseable {
+
+    private final Path root;
+    private final Map<String, Path> byRelativePath = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byName = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final WatchService watchService;
+    private final CompletableFuture<Void> built = new CompletableFuture<>();
+    // Incomplete while the tree is walked again after watch events were lost
+    private volatile CompletableFuture<Void> rescanned = CompletableFuture.completedFuture(null);
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder lookupNanos = new LongAdder();
+    private final AtomicLong maxLookupNanos = new AtomicLong();
+    private volatile boolean watchLimitReported;
+
+    private PathIndex(Path root, WatchService watchService) {
+        this.root = root.toAbsolutePath().normalize();
+        this.watchService = watchService;
+    }
+
+    /**
+     * Builds the index for everything below the root with a parallel directory walk and starts
+     * watching the tree for outside changes.
+     *
+     * @param root the storage root
+     * @return the populated index
+     * @throws IOException if the watch service cannot be created
+     */
+    static PathIndex build(Path root) throws IOException {
+        PathIndex index = new PathIndex(root, root.getFileSystem().newWatchService());
+        index.walk();
+        index.startWatching();
+        return index;
+    }
+
+    /**
+     * Returns an empty index at once and fills it with a parallel directory walk in the
+     * background, so startup does not wait for a large tree to be indexed.
+     *
+     * @param root the storage root
+     * @return the index, still being populated
+     * @throws IOException if the watch service cannot be created
+     */
+    static PathIndex buildInBackground(Path root) throws IOException {
+        PathIndex index = new PathIndex(root, root.getFileSystem().newWatchService());
+        ForkJoinPool.commonPool().execute(() -> {
+            index.walk();
+            index.startWatching();
+        });
+        return index;
+    }
+
+    private void walk() {
+        long start = System.nanoTime();
+        try {
+            ForkJoinPool.commonPool().invoke(new IndexDirectory(root));
+        } finally {
+            built.complete(null);
+        }
+        Log.info("Indexed " + size() + " files in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private void startWatching() {
+        Thread watchThread = new Thread(this::processWatchEvents, "path-index-watch");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * Finds a stored file.
+     *
+     * @param fileName a path relative to the root, or a bare file name
+     * @return the absolute path of the file, or null if it is not stored
+     */
+    Path lookup(String fileName) {
+        long start = System.nanoTime();
+        try {
+            String key = toKey(fileName);
+            if (key.indexOf('/') < 0) {
+                // A shallower file of the same name may not be indexed yet
+                built.join();
+                rescanned.join();
+            }
+            Set<String> keys = key.indexOf('/') >= 0 ? null : byName.get(key);
+            if (keys == null) {
+                Path path = byRelativePath.get(key);
+                if (path == null) {
+                    // The watch event for a file created a moment ago may not have arrived yet
+                    Path candidate = root.resolve(key).normalize();
+                    if (candidate.startsWith(root) && Files.isRegularFile(candidate)) {
+                        add(candidate);
+                        path = candidate;
+                    }
+                }
+                return path;
+            }
+            String best = null;
+            for (String candidate : keys) {
+                if (best == null || depth(candidate) < depth(best)
+                        || (depth(candidate) == depth(best) && candidate.compareTo(best) < 0)) {
+                    best = candidate;
+                }
+            }
+            return best == null ? null : byRelativePath.get(best);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            lookups.increment();
+            lookupNanos.add(elapsed);
+            maxLookupNanos.accumulateAndGet(elapsed, Math::max);
+        }
+    }
+
+    /**
+     * @return true if {@link #lookup} answers without waiting for a walk of the tree, which
+     * callers that must not block check first
+     */
+    boolean isReady() {
+        return built.isDone() && rescanned.isDone();
+    }
+
+    /**
+     * Records a file that was created or replaced. Directories are indexed recursively.
+     *
+     * @param path the new file or directory
+     */
+    void added(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        if (!absolute.startsWith(root)) {
+            return;
+        }
+        if (Files.isDirectory(absolute, LinkOption.NOFOLLOW_LINKS)) {
+            ForkJoinPool.commonPool().invoke(new IndexDirectory(absolute));
+        } else {
+            add(absolute);
+        }
+    }
+
+    /**
+     * Forgets a file, or a whole directory subtree, that was moved away or deleted.
+     *
+     * @param path the removed file or directory
+     */
+    void removed(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        if (!absolute.startsWith(root) || absolute.equals(root)) {
+            return;
+        }
+        String key = relativeKey(absolute);
+        if (byRelativePath.containsKey(key)) {
+            remove(key);
+            return;
+        }
+        String prefix = key + "/";
+        for (String candidate : byRelativePath.keySet()) {
+            if (candidate.startsWith(prefix)) {
+                remove(candidate);
+            }
+        }
+    }
+
+    /**
+     * Indexes a subtree again from scratch, after watch events for it were lost. Its entries are
+     * dropped first, so files deleted meanwhile go as well as new ones being found; until the
+     * walk is done, lookups by bare name wait for it as they do at startup, and relative paths
+     * are still found on disk.
+     *
+     * @param directory the root of the subtree
+     */
+    void rescan(Path directory) {
+        Path absolute = directory.toAbsolutePath().normalize();
+        if (!absolute.startsWith(root)) {
+            return;
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        rescanned = done;
+        try {
+            String prefix = absolute.equals(root) ? "" : relativeKey(absolute) + "/";
+            for (String candidate : byRelativePath.keySet()) {
+                if (candidate.startsWith(prefix)) {
+                    remove(candidate);
+                }
+            }
+            ForkJoinPool.commonPool().invoke(new IndexDirectory(absolute));
+        } finally {
+            done.complete(null);
+        }
+    }
+
+    /**
+     * @return the number of indexed files
+     */
+    int size() {
+        return byRelativePath.size();
+    }
+
+    /**
+     * @return the number of lookups served since startup
+     */
+    long lookupCount() {
+        return lookups.sum();
+    }
+
+    /**
+     * @return the mean lookup latency in nanoseconds
+     */
+    long meanLookupNanos() {
+        long count = lookups.sum();
+        return count == 0 ? 0 : lookupNanos.sum() / count;
+    }
+
+    /**
+     * @return the slowest lookup seen since startup in nanoseconds
+     */
+    long maxLookupNanos() {
+        return maxLookupNanos.get();
+    }
+
+    private void add(Path absolute) {
+        String key = relativeKey(absolute);
+        byRelativePath.put(key, absolute);
+        byName.compute(absolute.getFileName().toString(), (name, keys) -> {
+            Set<String> result = keys != null ? keys : ConcurrentHashMap.newKeySet();
+            result.add(key);
+            return result;
+        });
+    }
+
+    private void remove(String key) {
+        Path path = byRelativePath.remove(key);
+        if (path != null) {
+            byName.computeIfPresent(path.getFileName().toString(), (name, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    private String relativeKey(Path absolute) {
+        return toKey(root.relativize(absolute).toString());
+    }
+
+    private static String toKey(String fileName) {
+        String key = fileName.replace('\\', '/');
+        while (key.startsWith("./")) {
+            key = key.substring(2);
+        }
+        return key;
+    }
+
+    private static int depth(String key) {
+        int depth = 0;
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    private void watch(Path directory) {
+        try {
+            WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.put(key, directory);
+        } catch (ClosedWatchServiceException e) {
+            // Index is shutting down
+        } catch (IOException e) {
+            // Usually the inotify watch limit; the server's own handlers still keep the index current
+            if (!watchLimitReported) {
+                watchLimitReported = true;
+                Log.warn("Unable to watch " + directory + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void processWatchEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events were dropped, for any directory, so the whole tree is walked again
+                    rescan(root);
+                    continue;
+                }
+                if (directory == null) {
+                    continue;
+                }
+                Path path = directory.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    removed(path);
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                        || Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                    added(path);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * Indexes the files of one directory and forks a sub-task for each sub-directory.
+     */
+    private final class IndexDirectory extends RecursiveAction {
+
+        // Tasks are never serialized; RecursiveAction is Serializable only through ForkJoinTask
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path directory;
+
+        IndexDirectory(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            watch(directory);
+            List<IndexDirectory> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        // Removed while walking
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        subdirectories.add(new IndexDirectory(entry));
+                    } else if (attributes.isRegularFile()) {
+                        add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                Log.warn("Unable to index " + directory + ": " + e.getMessage());
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A readable channel that first returns bytes already read off the socket by someone else and
+ * then continues with the socket itself. Used when the non-blocking engine hands a connection
+ * over to the blocking handlers part way through a request.
+ */
+final class PrefixedChannel implements ReadableByteChannel {
+
+    private final ByteBuffer prefix;
+    private final ReadableByteChannel delegate;
+
+    PrefixedChannel(ByteBuffer prefix, ReadableByteChannel delegate) {
+        this.prefix = prefix;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+        if (!prefix.hasRemaining()) {
+            return delegate.read(target);
+        }
+        int count = Math.min(prefix.remaining(), target.remaining());
+        ByteBuffer slice = prefix.slice().limit(count);
+        target.put(slice);
+        prefix.position(prefix.position() + count);
+        return count;
+    }
+
+    /**
+     * Returns a stream over the same bytes as this channel, sharing its prefix. Unlike
+     * {@code Channels.newInputStream} it reads without holding a monitor, so a virtual thread
+     * blocked in a read does not pin its carrier thread.
+     *
+     * @param delegateStream a stream over the same connection as the delegate channel
+     * @return the stream
+     */
+    InputStream newInputStream(InputStream delegateStream) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (prefix.hasRemaining()) {
+                    return prefix.get() & 0xFF;
+                }
+                return delegateStream.read();
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (!prefix.hasRemaining()) {
+                    return delegateStream.read(bytes, offset, length);
+                }
+                int count = Math.min(prefix.remaining(), length);
+                prefix.get(bytes, offset, count);
+                return count;
+            }
+        };
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
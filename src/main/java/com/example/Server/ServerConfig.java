@@ -0,0 +1,160 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+/**
+ * Everything about the server that can be tuned, read in one place from {@code fileserver.*}
+ * system properties. The defaults come from the benchmarks in {@code benchmarks/}:
+ * <ul>
+ *     <li>a 256 KiB I/O buffer is where the upload loop and {@code transferTo} stop getting faster
+ *     ({@code CopyLoopBenchmark}; 4 KiB, the original size, is up to four times slower);</li>
+ *     <li>fixed socket buffers are no faster than the kernel's automatic tuning on loopback and
+ *     cap the window on long links, so they are left to the OS unless set;</li>
+ *     <li>TCP_NODELAY is on because every reply is written as whole frames, and Nagle's algorithm
+ *     only added delayed-ACK stalls of about 40 ms ({@code ConnectionSetupBenchmark});</li>
+ *     <li>a backlog of 1024 absorbs connection bursts that overflowed the old one and cost
+ *     clients a one-second SYN retransmit;</li>
+ *     <li>uploads are written behind the reader only with more than one CPU; on one, the
+ *     hand-over made them 10-20% slower on both a disk and tmpfs ({@code UploadPipelineBenchmark}).</li>
+ * </ul>
+ *
+ * @param engine                {@code blocking} or {@code nio}
+ * @param nioLoops              event loop threads of the {@code nio} engine
+ * @param executor              {@code virtual} or {@code pool}
+ * @param maxInFlight           connections admitted at once
+ * @param poolThreads           worker threads in {@code pool} mode
+ * @param poolQueue             connections waiting for a worker in {@code pool} mode
+ * @param backlog               connections the kernel queues until they are accepted
+ * @param receiveBufferSize     SO_RCVBUF of client connections, 0 for the OS default
+ * @param sendBufferSize        SO_SNDBUF of client connections, 0 for the OS default
+ * @param tcpNoDelay            whether client connections disable Nagle's algorithm
+ * @param ioBufferSize          bytes per copy loop buffer and per {@code transferTo} call
+ * @param bufferPoolSize        bytes of I/O buffers kept for reuse
+ * @param idleTimeoutMillis     how long a connection may wait for its next request, 0 for ever
+ * @param readTimeoutMillis     how long a read of an expected request or upload may block, 0 for ever
+ * @param writeTimeoutMillis    how long a client may take to accept one I/O buffer, 0 for ever
+ * @param stateDirectory        where the journal, temporary uploads and other server state are kept
+ * @param dedup                 whether uploads are stored once per distinct content
+ * @param sha256Checksums       whether a SHA-256 is recorded with every stored file, not just its CRC32C
+ * @param journalSync           whether the operation journal is forced to disk
+ * @param storeCompressedCopies whether compressed downloads are kept on disk for reuse
+ * @param writeBehind           buffers an upload may have waiting for the disk, 0 to write on the reading thread
+ * @param writerThreads         threads writing upload buffers to disk
+ * @param uploadFsync           {@code none}, {@code close} or {@code periodic}
+ * @param fsyncIntervalMillis   time between forces of a streaming upload with {@code periodic}
+ * @param cacheSize             bytes of off-heap memory for hot small files
+ * @param cacheMaxEntry         the largest file kept in off-heap memory
+ * @param cacheMappedSize       bytes of memory-mapped hot files
+ * @param globalRate            bytes per second for all clients together, 0 for no limit
+ * @param clientRate            bytes per second for each client address, 0 for no limit
+ * @param shapingBurst          bytes a transfer may run ahead of its rate limit
+ * @param clusterNodes          comma separated {@code host:port} of every cluster member, blank to run alone
+ * @param clusterReplicas       how many cluster members hold each file
+ * @param metricsPort           port of the HTTP metrics endpoint, -1 for none
+ * @param eventIntervalMillis   the minimum time between two batches of change events
+ */
+public record ServerConfig(String engine, int nioLoops,
+                           String executor, int maxInFlight, int poolThreads, int poolQueue,
+                           int backlog, int receiveBufferSize, int sendBufferSize, boolean tcpNoDelay,
+                           int ioBufferSize, long bufferPoolSize,
+                           long idleTimeoutMillis, long readTimeoutMillis, long writeTimeoutMillis,
+                           String stateDirectory,
+                           boolean dedup, boolean sha256Checksums, boolean journalSync, boolean storeCompressedCopies,
+                           int writeBehind, int writerThreads, String uploadFsync, long fsyncIntervalMillis,
+                           long cacheSize, long cacheMaxEntry, long cacheMappedSize,
+                           long globalRate, long clientRate, long shapingBurst,
+                           String clusterNodes, int clusterReplicas,
+                           int metricsPort, long eventIntervalMillis) {
+
+    static final int DEFAULT_IO_BUFFER_SIZE = 256 * 1024;
+    static final long DEFAULT_BUFFER_POOL_SIZE = 64L * 1024 * 1024;
+
+    // Writing behind the reader only helps when another CPU can read while the disk writes
+    private static final int DEFAULT_WRITE_BEHIND = Runtime.getRuntime().availableProcessors() > 1 ? 4 : 0;
+
+    // Windows cannot delete or replace a file while a mapping of it is alive, and mappings are
+    // only released by the garbage collector, so the mapped tier is off there unless asked for
+    private static final long DEFAULT_CACHE_MAPPED_SIZE = System.getProperty("os.name", "").startsWith("Windows")
+            ? 0 : 4L * 1024 * 1024 * 1024;
+
+    /**
+     * Reads the configuration from the {@code fileserver.*} system properties, using the
+     * defaults documented in the README for anything not set.
+     *
+     * @return the configuration
+     */
+    public static ServerConfig fromSystemProperties() {
+        return new ServerConfig(
+                System.getProperty("fileserver.engine", "blocking"),
+                Integer.getInteger("fileserver.nio.loops", Runtime.getRuntime().availableProcessors()),
+                System.getProperty("fileserver.executor", "virtual"),
+                Integer.getInteger("fileserver.maxInFlight", 10_000),
+                Integer.getInteger("fileserver.pool.threads", 200),
+                Integer.getInteger("fileserver.pool.queue", 1_000),
+                Integer.getInteger("fileserver.backlog", 1024),
+                Integer.getInteger("fileserver.socket.receiveBuffer", 0),
+                Integer.getInteger("fileserver.socket.sendBuffer", 0),
+                Boolean.parseBoolean(System.getProperty("fileserver.socket.tcpNoDelay", "true")),
+                Integer.getInteger("fileserver.io.bufferSize", DEFAULT_IO_BUFFER_SIZE),
+                Long.getLong("fileserver.io.poolSize", DEFAULT_BUFFER_POOL_SIZE),
+                Long.getLong("fileserver.timeout.idle", 300_000),
+                Long.getLong("fileserver.timeout.read", 60_000),
+                Long.getLong("fileserver.timeout.write", 60_000),
+                System.getProperty("fileserver.stateDirectory", ".fileserver"),
+                Boolean.getBoolean("fileserver.dedup"),
+                Boolean.getBoolean("fileserver.checksum.sha256"),
+                Boolean.parseBoolean(System.getProperty("fileserver.journal.sync", "true")),
+                Boolean.getBoolean("fileserver.compression.storeCopies"),
+                Integer.getInteger("fileserver.upload.writeBehind", DEFAULT_WRITE_BEHIND),
+                Integer.getInteger("fileserver.upload.writerThreads", 4),
+                System.getProperty("fileserver.upload.fsync", "close"),
+                Long.getLong("fileserver.upload.fsyncInterval", 1000),
+                Long.getLong("fileserver.cache.size", 256L * 1024 * 1024),
+                Long.getLong("fileserver.cache.maxEntry", 1024 * 1024),
+                Long.getLong("fileserver.cache.mappedSize", DEFAULT_CACHE_MAPPED_SIZE),
+                Long.getLong("fileserver.shaping.globalRate", 0),
+                Long.getLong("fileserver.shaping.clientRate", 0),
+                Long.getLong("fileserver.shaping.burst", 4L * 1024 * 1024),
+                System.getProperty("fileserver.cluster.nodes", ""),
+                Integer.getInteger("fileserver.cluster.replicas", 2),
+                Integer.getInteger("fileserver.metrics.port", -1),
+                Long.getLong("fileserver.events.interval", 250));
+    }
+
+    /**
+     * Applies the listening socket's options. The receive buffer is set here, before any
+     * connection exists, because accepted sockets inherit it and the TCP window scale is agreed
+     * on during the handshake.
+     *
+     * @param serverChannel the listening channel, not yet bound
+     * @throws IOException if an option cannot be set
+     */
+    void configureListener(NetworkChannel serverChannel) throws IOException {
+        if (receiveBufferSize > 0) {
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+    }
+
+    /**
+     * Applies the client connection options to an accepted connection.
+     *
+     * @param channel the accepted channel
+     * @throws IOException if an option cannot be set
+     */
+    void configureConnection(NetworkChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        if (sendBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+    }
+
+    /**
+     * @param millis a timeout in milliseconds, 0 for none
+     * @return the value for {@link java.net.Socket#setSoTimeout}, which also treats 0 as none
+     */
+    static int soTimeout(long millis) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, millis));
+    }
+}
@@ -4,60 +4,203 @@ import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
+import javafx.scene.control.SelectionMode;
 import javafx.scene.control.TextField;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 
-import java.io.*;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ServerController {
 
+    /** Directory entries fetched from the server per LIST page. */
+    private static final int PAGE_SIZE = 500;
+    /** The next page is fetched once a row this close to the end of the loaded entries is shown. */
+    private static final int PREFETCH_DISTANCE = 100;
+
     @FXML
     private ListView<String> fileList;
 
     @FXML
     private TextField currentDirectory;
 
+    private File rootDir;
     private File currentDir;
     private Stack<File> directoryHistory;
-    private FileServer fileServer;
+    private FileServerCore fileServer;
     private File selectedFile;
 
-    private static final String SERVER_HOSTNAME = "localhost"; // Server's hostname or IP
-    private static final int START_PORT = 5000;
-    private static final int MAX_PORT_ATTEMPTS = 100;
+    private final TransferClient transferClient = TransferClient.fromSystemProperties();
+    private final ExecutorService listingExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "directory-listing");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The listing state is only touched on the FX thread
+    private final Set<String> shownNames = new HashSet<>();
+    private DirectoryListing listing;
+    private int listingGeneration;
+    private boolean pageLoading;
 
     /**
-     * Initializes the controller with the reference to the main FileServer instance.
+     * Initializes the controller with the running server and subscribes to its changes, which
+     * arrive coalesced so a burst of uploads costs a single refresh.
      *
-     * @param fileServer the main FileServer instance
+     * @param fileServer the server core
      */
-    public void init(FileServer fileServer) {
+    public void init(FileServerCore fileServer) {
         this.fileServer = fileServer;
-        currentDir = new File(System.getProperty("user.dir") + "/server_directory");
+        rootDir = fileServer.root().toAbsolutePath().normalize().toFile();
+        currentDir = rootDir;
         directoryHistory = new Stack<>();
+        fileList.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        fileList.setCellFactory(view -> new ListCell<>() {
+            @Override
+            protected void updateItem(String name, boolean empty) {
+                super.updateItem(name, empty);
+                setText(empty ? null : name);
+                // Rows are only created for what is visible, so this fetches as the user scrolls
+                if (!empty && getIndex() >= view.getItems().size() - PREFETCH_DISTANCE) {
+                    fetchNextPage();
+                }
+            }
+        });
+        fileServer.changeEvents().subscribe(changes -> Platform.runLater(() -> applyChanges(changes)));
         updateFileList();
     }
 
     /**
-     * Updates the file list in the UI to reflect the current directory contents.
+     * Reloads the file list for the current directory. Only the first page is requested from the
+     * server; further pages follow as the user scrolls.
      */
     public void updateFileList() {
         Platform.runLater(() -> {
+            int generation = ++listingGeneration;
+            DirectoryListing previous = listing;
+            listing = null;
+            pageLoading = true;
+            shownNames.clear();
             fileList.getItems().clear();
             currentDirectory.setText(currentDir.getAbsolutePath());
-            for (File file : currentDir.listFiles()) {
-                fileList.getItems().add(file.getName());
+
+            String directory = relativePath("");
+            listingExecutor.execute(() -> {
+                closeQuietly(previous);
+                try {
+                    DirectoryListing opened = transferClient.list(directory, PAGE_SIZE);
+                    List<DirectoryListing.Entry> page = opened.nextPage();
+                    Platform.runLater(() -> {
+                        if (generation != listingGeneration) {
+                            // The user has moved on to another directory meanwhile
+                            listingExecutor.execute(() -> closeQuietly(opened));
+                            return;
+                        }
+                        listing = opened;
+                        showPage(page);
+                    });
+                } catch (IOException e) {
+                    Log.warn("Unable to list " + currentDir + ": " + e.getMessage());
+                    Platform.runLater(() -> pageLoading = false);
+                }
+            });
+        });
+    }
+
+    /**
+     * Requests the next page of the current listing unless one is on its way or all are loaded.
+     */
+    private void fetchNextPage() {
+        DirectoryListing current = listing;
+        if (pageLoading || current == null || !current.hasMore()) {
+            return;
+        }
+        pageLoading = true;
+        int generation = listingGeneration;
+        listingExecutor.execute(() -> {
+            try {
+                List<DirectoryListing.Entry> page = current.nextPage();
+                Platform.runLater(() -> {
+                    if (generation == listingGeneration) {
+                        showPage(page);
+                    }
+                });
+            } catch (IOException e) {
+                Log.warn("Unable to list " + currentDir + ": " + e.getMessage());
+                Platform.runLater(() -> pageLoading = false);
             }
         });
     }
 
+    /**
+     * Appends a page to the list, skipping names a change event has already added.
+     */
+    private void showPage(List<DirectoryListing.Entry> page) {
+        pageLoading = false;
+        List<String> names = page.stream().map(DirectoryListing.Entry::name).filter(shownNames::add).toList();
+        fileList.getItems().addAll(names);
+        if (names.isEmpty()) {
+            // Nothing new became visible that would trigger the next page
+            fetchNextPage();
+        }
+    }
+
+    /**
+     * Applies a batch of server changes to the shown directory as additions and removals, without
+     * listing it again.
+     *
+     * @param changes the coalesced changes
+     */
+    private void applyChanges(List<ChangeEvents.Change> changes) {
+        Path shownDirectory = currentDir.toPath().toAbsolutePath().normalize();
+        Set<String> added = new LinkedHashSet<>();
+        Set<String> removed = new HashSet<>();
+        for (ChangeEvents.Change change : changes) {
+            if (change.kind() == ChangeEvents.Kind.OVERFLOW) {
+                updateFileList();
+                return;
+            }
+            Path path = change.path();
+            if (!path.startsWith(shownDirectory) || path.equals(shownDirectory)) {
+                continue;
+            }
+            // A file stored further down shows up as the directory holding it
+            String name = shownDirectory.relativize(path).getName(0).toString();
+            if (change.kind() == ChangeEvents.Kind.ADDED) {
+                if (shownNames.add(name) && !removed.remove(name)) {
+                    added.add(name);
+                }
+            } else if (shownDirectory.equals(path.getParent()) && shownNames.remove(name) && !added.remove(name)) {
+                removed.add(name);
+            }
+        }
+        if (!removed.isEmpty()) {
+            fileList.getItems().removeAll(removed);
+        }
+        fileList.getItems().addAll(added);
+    }
+
+    private static void closeQuietly(DirectoryListing listing) {
+        if (listing != null) {
+            try {
+                listing.close();
+            } catch (IOException ignored) {
+                // The connection is gone either way
+            }
+        }
+    }
+
     /**
      * Opens a file chooser dialog for selecting a file to upload.
      */
@@ -79,55 +222,44 @@ public class ServerController {
     }
 
     /**
-     * Sends the selected file to the server.
+     * Sends the selected file to the server. If the connection drops, the upload is retried
+     * from the last byte the server acknowledged instead of from the start; large files are
+     * split into segments sent over parallel connections.
      *
      * @param file the file to be sent
      */
     private void sendFile(File file) {
         new Thread(() -> {
-            boolean fileSent = false;
-
-            try {
-                InetAddress[] serverAddresses = InetAddress.getAllByName(SERVER_HOSTNAME);
-
-                for (InetAddress address : serverAddresses) {
-                    for (int port = START_PORT; port < START_PORT + MAX_PORT_ATTEMPTS; port++) {
-                        try (Socket socket = new Socket(address, port);
-                             DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-                             FileInputStream fileInputStream = new FileInputStream(file)) {
-
-                            outputStream.writeUTF("UPLOAD");
-                            outputStream.writeUTF(file.getName());
-                            outputStream.flush();
-
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                                outputStream.write(buffer, 0, bytesRead);
-                            }
-                            outputStream.flush();
-                            fileSent = true;
-                            System.out.println("File sent: " + file.getName());
-                            break;
-                        } catch (IOException e) {
-                            System.out.println("Failed to connect to " + address.getHostAddress() + " on port " + port + ". Trying next...");
-                        }
-                    }
-                    if (fileSent) {
-                        break;
-                    }
-                }
-            } catch (UnknownHostException e) {
-                System.out.println("Unable to resolve hostname: " + SERVER_HOSTNAME);
-            }
-
-            if (!fileSent) {
-                System.out.println("Unable to send file. All IP addresses and ports are busy.");
+            if (transferClient.upload(file)) {
+                Log.info("File sent: " + file.getName());
+            } else {
+                Log.warn("Unable to send file " + file.getName() + ".");
             }
         }).start();
     }
 
 
+    /**
+     * Sends a whole folder chosen by the user as a single batch.
+     */
+    @FXML
+    private void onSendFolder() {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Select Folder to Send");
+        File directory = directoryChooser.showDialog(null);
+        if (directory != null) {
+            new Thread(() -> {
+                try {
+                    BatchTransfers.Result result = transferClient.uploadDirectory(directory);
+                    Log.info("Folder sent: " + directory.getName() + ", " + result.stored() + " files");
+                    result.failures().forEach(failure -> Log.warn("Not stored: " + failure.path() + ": " + failure.message()));
+                } catch (IOException e) {
+                    Log.warn("Unable to send folder " + directory.getName() + ": " + e.getMessage());
+                }
+            }).start();
+        }
+    }
+
     private void showAlert(String title, String message) {
         Platform.runLater(() -> {
             Alert alert = new Alert(Alert.AlertType.ERROR, message, ButtonType.OK);
@@ -137,10 +269,22 @@ public class ServerController {
         });
     }
     /**
-     * Initiates the file download process for the selected file.
+     * Initiates the file download process for the selected file. Folders and several selected
+     * entries are downloaded as batches into a folder the user chooses.
      */
     @FXML
     private void onDownload() {
+        List<String> selected = List.copyOf(fileList.getSelectionModel().getSelectedItems());
+        if (selected.size() > 1 || (selected.size() == 1 && new File(currentDir, selected.get(0)).isDirectory())) {
+            DirectoryChooser directoryChooser = new DirectoryChooser();
+            directoryChooser.setTitle("Save To Folder");
+            File targetDirectory = directoryChooser.showDialog(null);
+            if (targetDirectory != null) {
+                List<String> paths = selected.stream().map(this::relativePath).toList();
+                new Thread(() -> downloadAll(selected, paths, targetDirectory)).start();
+            }
+            return;
+        }
         String selectedFile = fileList.getSelectionModel().getSelectedItem();
         if (selectedFile != null) {
             Platform.runLater(() -> {
@@ -150,8 +294,8 @@ public class ServerController {
                 File saveFile = fileChooser.showSaveDialog(null);
 
                 if (saveFile != null) {
-                    // Include the relative path from currentDir for download
-                    String relativeFilePath = currentDir.toPath().relativize(new File(currentDir, selectedFile).toPath()).toString();
+                    // Include the path relative to the server directory so same-named files in other folders don't match
+                    String relativeFilePath = relativePath(selectedFile);
                     new Thread(() -> downloadFile(relativeFilePath, saveFile)).start();
                 }
             });
@@ -160,142 +304,124 @@ public class ServerController {
 
     /**
      * Downloads the specified file from the server and saves it to the specified location.
+     * Interrupted downloads resume where they stopped; large files are fetched as segments over
+     * parallel connections.
      *
      * @param fileName the name of the file to be downloaded
      * @param saveFile the file object representing the location to save the downloaded file
      */
     private void downloadFile(String fileName, File saveFile) {
-        try {
-            InetAddress[] serverAddresses = InetAddress.getAllByName(SERVER_HOSTNAME);
-
-            for (InetAddress address : serverAddresses) {
-                for (int port = START_PORT; port < START_PORT + MAX_PORT_ATTEMPTS; port++) {
-                    try (Socket socket = new Socket(address, port);
-                         DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
-                         DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
-                         FileOutputStream fileOutputStream = new FileOutputStream(saveFile)) {
-
-                        dataOutputStream.writeUTF("DOWNLOAD");
-                        dataOutputStream.writeUTF(fileName); // Ensure file name includes subdirectory if any
-                        dataOutputStream.flush();
-
-                        // Read file size sent by the server
-                        long fileSize = dataInputStream.readLong();
+        if (transferClient.download(fileName, saveFile)) {
+            Log.info("File downloaded successfully: " + saveFile.getAbsolutePath());
+        } else {
+            Log.warn("Unable to download " + fileName + ".");
+        }
+    }
 
-                        byte[] buffer = new byte[4096]; // Larger buffer size for efficiency
-                        int bytesRead;
-                        long totalBytesRead = 0;
-                        while (totalBytesRead < fileSize && (bytesRead = dataInputStream.read(buffer)) != -1) {
-                            fileOutputStream.write(buffer, 0, bytesRead);
-                            totalBytesRead += bytesRead;
-                        }
-                        System.out.println("File downloaded successfully: " + saveFile.getAbsolutePath());
-                        return; // Exit the loop once the file is downloaded
-                    } catch (IOException e) {
-                        System.out.println("Failed to connect to " + address.getHostAddress() + " on port " + port + ". Trying next...");
-                    }
+    /**
+     * Downloads entries of the current directory as batches; a folder keeps its name below the
+     * target folder.
+     */
+    private void downloadAll(List<String> names, List<String> paths, File targetDirectory) {
+        for (int i = 0; i < names.size(); i++) {
+            boolean isDirectory = new File(currentDir, names.get(i)).isDirectory();
+            File target = isDirectory ? new File(targetDirectory, names.get(i)) : targetDirectory;
+            try {
+                BatchTransfers.Result result = transferClient.downloadDirectory(paths.get(i), target);
+                if (result == null) {
+                    Log.warn("Not found on server: " + paths.get(i));
+                    continue;
                 }
+                Log.info("Downloaded " + paths.get(i) + ": " + result.stored() + " files");
+                result.failures().forEach(failure -> Log.warn("Not saved: " + failure.path() + ": " + failure.message()));
+            } catch (IOException e) {
+                Log.warn("Unable to download " + paths.get(i) + ": " + e.getMessage());
             }
-        } catch (UnknownHostException e) {
-            System.out.println("Unable to resolve hostname: " + SERVER_HOSTNAME);
         }
     }
 
     /**
-     * Moves the selected file to a new directory chosen by the user.
+     * Moves the selected files to a new directory chosen by the user, in one request if there
+     * are several.
      */
     @FXML
     private void onMove() {
-        String selectedFile = fileList.getSelectionModel().getSelectedItem();
-        if (selectedFile != null) {
-            File fileToMove = new File(currentDir.getAbsolutePath() + File.separator + selectedFile);
-
-            DirectoryChooser directoryChooser = new DirectoryChooser();
-            directoryChooser.setTitle("Move File");
-            File selectedDirectory = directoryChooser.showDialog(null);
-
-            if (selectedDirectory != null) {
-                new Thread(() -> {
-                    boolean fileMoved = false;
-                    InetAddress[] serverAddresses = new InetAddress[0];
-                    try {
-                        serverAddresses = InetAddress.getAllByName(SERVER_HOSTNAME);
-                    } catch (UnknownHostException e) {
-                        e.printStackTrace();
-                    }
-
-                    for (InetAddress address : serverAddresses) {
-                        for (int port = START_PORT; port < START_PORT + MAX_PORT_ATTEMPTS; port++) {
-                            try (Socket socket = new Socket(address, port);
-                                 DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream())) {
-
-                                outputStream.writeUTF("MOVE");
-                                outputStream.writeUTF(fileToMove.getAbsolutePath());
-                                outputStream.writeUTF(selectedDirectory.getAbsolutePath());
-                                outputStream.flush();
-                                fileMoved = true;
-                                //System.out.println("File moved: " + fileToMove.getName() + " to " + selectedDirectory.getAbsolutePath());
-                                break;
-                            } catch (IOException e) {
-                                System.out.println("Failed to connect to " + address.getHostAddress() + " on port " + port + ". Trying next...");
-                            }
-                        }
-                        if (fileMoved) {
-                            break;
-                        }
-                    }
-
-                    if (!fileMoved) {
-                        System.out.println("Unable to move file. All IP addresses and ports are busy.");
-                    }
-                }).start();
-            }
+        List<String> selected = List.copyOf(fileList.getSelectionModel().getSelectedItems());
+        if (selected.isEmpty()) {
+            return;
+        }
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle(selected.size() > 1 ? "Move Files" : "Move File");
+        directoryChooser.setInitialDirectory(rootDir);
+        File selectedDirectory = directoryChooser.showDialog(null);
+        if (selectedDirectory == null) {
+            return;
+        }
+        // The server only moves files within its own directory
+        Path target = selectedDirectory.toPath().toAbsolutePath().normalize();
+        if (!target.startsWith(rootDir.toPath())) {
+            Log.warn("Files can only be moved within the server directory.");
+            return;
+        }
+        String targetDirectory = rootDir.toPath().relativize(target).toString().replace(File.separatorChar, '/');
+        if (selected.size() > 1) {
+            List<String> sources = selected.stream().map(this::relativePath).toList();
+            new Thread(() -> {
+                try {
+                    transferClient.moveAll(sources, targetDirectory);
+                } catch (IOException e) {
+                    Log.warn("Unable to move files. " + e.getMessage());
+                }
+            }).start();
+            return;
         }
+        transferClient.move(relativePath(selected.get(0)), targetDirectory)
+                .whenComplete((moved, error) -> {
+                    if (error != null) {
+                        Log.warn("Unable to move file. " + error.getMessage());
+                    }
+                });
     }
 
     /**
-     * Deletes the selected file from the server.
+     * Deletes the selected files from the server, in one request if there are several.
      */
     @FXML
     private void onDelete() {
-        String selectedFile = fileList.getSelectionModel().getSelectedItem();
-        if (selectedFile != null) {
+        List<String> selected = List.copyOf(fileList.getSelectionModel().getSelectedItems());
+        if (selected.size() > 1) {
+            List<String> paths = selected.stream().map(this::relativePath).toList();
             new Thread(() -> {
-                boolean fileDeleted = false;
-                InetAddress[] serverAddresses = new InetAddress[0];
                 try {
-                    serverAddresses = InetAddress.getAllByName(SERVER_HOSTNAME);
-                } catch (UnknownHostException e) {
-                    e.printStackTrace();
-                }
-
-                for (InetAddress address : serverAddresses) {
-                    for (int port = START_PORT; port < START_PORT + MAX_PORT_ATTEMPTS; port++) {
-                        try (Socket socket = new Socket(address, port);
-                             DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream())) {
-
-                            outputStream.writeUTF("DELETE");
-                            outputStream.writeUTF(selectedFile);
-                            outputStream.flush();
-                            fileDeleted = true;
-                            //System.out.println("File deleted: " + selectedFile);
-                            break;
-                        } catch (IOException e) {
-                            System.out.println("Failed to connect to " + address.getHostAddress() + " on port " + port + ". Trying next...");
-                        }
-                    }
-                    if (fileDeleted) {
-                        break;
-                    }
-                }
-
-                if (!fileDeleted) {
-                    System.out.println("Unable to delete file. All IP addresses and ports are busy.");
+                    transferClient.deleteAll(paths);
+                } catch (IOException e) {
+                    Log.warn("Unable to delete files. " + e.getMessage());
                 }
             }).start();
+            return;
+        }
+        String selectedFile = fileList.getSelectionModel().getSelectedItem();
+        if (selectedFile != null) {
+            transferClient.delete(relativePath(selectedFile))
+                    .whenComplete((deleted, error) -> {
+                        if (error != null) {
+                            Log.warn("Unable to delete file. " + error.getMessage());
+                        }
+                    });
         }
     }
 
+    /**
+     * Builds the path of an entry in the current directory relative to the server directory,
+     * which is how the server's path index identifies files.
+     *
+     * @param entryName the name of the entry in the current directory
+     * @return the relative path using '/' separators
+     */
+    private String relativePath(String entryName) {
+        return rootDir.toPath().relativize(new File(currentDir, entryName).toPath()).toString().replace(File.separatorChar, '/');
+    }
+
     /**
      * Navigates into the selected directory.
      */
@@ -0,0 +1,192 @@
+package com.example.Server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Finds the server once and remembers where it is. The server publishes its port in an endpoint
+ * file when it starts; the locator reads that file, confirms with a HELLO handshake that the
+ * port really belongs to a file server speaking the same protocol version, and caches the
+ * address. Only when the cached address stops answering is it resolved again, with exponential
+ * backoff between attempts. Scanning the port range is a last resort for when no endpoint file
+ * exists, and even then only ports that pass the handshake are accepted.
+ * <p>
+ * A locator for one given node of a cluster skips all of that and always connects to it.
+ */
+final class ServerLocator {
+
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 1000;
+    private static final int MAX_RESOLVE_ATTEMPTS = 4;
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+
+    private final String hostname;
+    private final Path endpointFile;
+    private final int startPort;
+    private final int portAttempts;
+    private final boolean fixed;
+    private volatile InetSocketAddress cached;
+
+    /**
+     * @param hostname     the server's hostname or IP
+     * @param endpointFile the file the server publishes its endpoint in
+     * @param startPort    the first port of the fallback scan
+     * @param portAttempts the number of ports in the fallback scan
+     */
+    ServerLocator(String hostname, Path endpointFile, int startPort, int portAttempts) {
+        this.hostname = hostname;
+        this.endpointFile = endpointFile;
+        this.startPort = startPort;
+        this.portAttempts = portAttempts;
+        this.fixed = false;
+    }
+
+    /**
+     * @param address the node to connect to, never resolved again
+     */
+    ServerLocator(InetSocketAddress address) {
+        this.hostname = address.getHostString();
+        this.endpointFile = null;
+        this.startPort = address.getPort();
+        this.portAttempts = 1;
+        this.fixed = true;
+        this.cached = address;
+    }
+
+    /**
+     * Connects to the server, resolving its address first if it is not cached yet or the cached
+     * one no longer accepts connections.
+     *
+     * @return a connected socket backed by a channel
+     * @throws IOException if the server cannot be found
+     */
+    Socket connect() throws IOException {
+        InetSocketAddress address = cached;
+        if (address != null) {
+            try {
+                return SocketChannel.open(address).socket();
+            } catch (IOException e) {
+                if (fixed) {
+                    throw e;
+                }
+                // The server went away or restarted on another port
+                invalidate(address);
+            }
+        }
+        return SocketChannel.open(resolve()).socket();
+    }
+
+    /**
+     * @return the address of the server
+     * @throws IOException if the server cannot be found after several attempts
+     */
+    synchronized InetSocketAddress resolve() throws IOException {
+        if (cached != null) {
+            return cached;
+        }
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_RESOLVE_ATTEMPTS; attempt++) {
+            try {
+                InetSocketAddress address = fromEndpointFile();
+                if (address == null) {
+                    address = scanPorts();
+                }
+                cached = address;
+                Log.info("Using server at " + address);
+                return address;
+            } catch (IOException e) {
+                failure = e;
+            }
+            try {
+                Thread.sleep(INITIAL_BACKOFF_MILLIS << (attempt - 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        throw new IOException("Unable to locate the server: " + failure.getMessage(), failure);
+    }
+
+    private synchronized void invalidate(InetSocketAddress address) {
+        if (!fixed && address.equals(cached)) {
+            cached = null;
+        }
+    }
+
+    /**
+     * @return the handshake-verified address from the endpoint file, or null if there is no file
+     */
+    private InetSocketAddress fromEndpointFile() throws IOException {
+        if (!Files.exists(endpointFile)) {
+            return null;
+        }
+        Properties endpoint = new Properties();
+        try (Reader reader = Files.newBufferedReader(endpointFile)) {
+            endpoint.load(reader);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(endpoint.getProperty("port"));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed endpoint file " + endpointFile);
+        }
+        IOException failure = null;
+        for (InetAddress address : InetAddress.getAllByName(hostname)) {
+            InetSocketAddress candidate = new InetSocketAddress(address, port);
+            try {
+                handshake(candidate);
+                return candidate;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw new IOException("Server in " + endpointFile + " does not answer: " + failure.getMessage(), failure);
+    }
+
+    private InetSocketAddress scanPorts() throws IOException {
+        for (InetAddress address : InetAddress.getAllByName(hostname)) {
+            for (int port = startPort; port < startPort + portAttempts; port++) {
+                InetSocketAddress candidate = new InetSocketAddress(address, port);
+                try {
+                    handshake(candidate);
+                    return candidate;
+                } catch (IOException e) {
+                    // Nothing listening, or not a file server
+                }
+            }
+        }
+        throw new IOException("No file server found on ports " + startPort + "-" + (startPort + portAttempts - 1));
+    }
+
+    /**
+     * Checks that the address belongs to a file server speaking this protocol version.
+     */
+    private static void handshake(InetSocketAddress address) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(address, HANDSHAKE_TIMEOUT_MILLIS);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            outputStream.writeUTF("HELLO");
+            outputStream.writeUTF(Integer.toString(FileServerCore.PROTOCOL_VERSION));
+            outputStream.flush();
+
+            String name = inputStream.readUTF();
+            int version = inputStream.readInt();
+            if (!FileServerCore.PROTOCOL_NAME.equals(name)) {
+                throw new IOException(address + " is not a file server");
+            }
+            if (version != FileServerCore.PROTOCOL_VERSION) {
+                throw new IOException(address + " speaks protocol version " + version + ", expected " + FileServerCore.PROTOCOL_VERSION);
+            }
+        }
+    }
+}
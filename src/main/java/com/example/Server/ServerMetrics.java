@@ -0,0 +1,405 @@
+package com.example.Server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters, gauges and latency histograms for everything the server does, cheap enough to
+ * record on every request: counters are {@link LongAdder}s and histograms are lock-free. Every
+ * command gets a request count, an error count and a latency histogram; on top of that come
+ * bytes in and out with their rate over the last second, open connections, and gauges the
+ * server registers for its executor, index and cache.
+ * <p>
+ * The same samples are published as attributes of a JMX MBean and, when
+ * {@code fileserver.metrics.port} is set, as a plain-text scrape endpoint at
+ * {@code /metrics} in the Prometheus exposition format.
+ */
+final class ServerMetrics implements AutoCloseable {
+
+    /** Commands with their own metrics; anything else is counted as {@code UNKNOWN}. */
+    static final Set<String> COMMANDS = Set.of("UPLOAD", "DOWNLOAD", "MOVE", "DELETE", "UPLOAD_RANGE",
+            "DOWNLOAD_RANGE", "UPLOAD_SEGMENT", "UPLOAD_Z", "DOWNLOAD_Z", "STAT", "VERIFY", "LINK", "LIST", "HELLO",
+            "SESSION", "BATCH_UPLOAD", "BATCH_DOWNLOAD", "BATCH_MOVE", "BATCH_DELETE", "LOCATE", "NODE_LOAD",
+            "REPLICA_UPLOAD", "REPLICA_MOVE", "REPLICA_DELETE", "CLUSTER_MOVE", "CLUSTER_DELETE");
+    private static final String UNKNOWN_COMMAND = "UNKNOWN";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, CommandMetrics> commands = new TreeMap<>();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<>();
+    private final Map<String, Family> families = new LinkedHashMap<>();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile double receiveRate;
+    private volatile double sendRate;
+    private ObjectName objectName;
+    private HttpServer httpServer;
+
+    ServerMetrics() {
+        for (String command : COMMANDS) {
+            commands.put(command, new CommandMetrics());
+        }
+        commands.put(UNKNOWN_COMMAND, new CommandMetrics());
+        sampler.scheduleAtFixedRate(new RateSampler(), 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param command a command name as received from a client
+     * @return the metrics to record the command in
+     */
+    CommandMetrics command(String command) {
+        CommandMetrics metrics = commands.get(command);
+        return metrics != null ? metrics : commands.get(UNKNOWN_COMMAND);
+    }
+
+    /**
+     * Counts file bytes received from clients.
+     *
+     * @param bytes the number of bytes
+     */
+    void received(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    /**
+     * Counts file bytes sent to clients.
+     *
+     * @param bytes the number of bytes
+     */
+    void sent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * @return the number of connections currently open
+     */
+    int openConnections() {
+        return openConnections.get();
+    }
+
+    void connectionOpened() {
+        openConnections.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    /**
+     * Registers a value that only goes up, read whenever the metrics are collected.
+     *
+     * @param name  the metric name, ending in {@code _total}
+     * @param value reads the current value
+     */
+    synchronized void counter(String name, Supplier<Number> value) {
+        gauges.put(name, new Gauge("counter", value));
+    }
+
+    /**
+     * Registers a value that goes up and down, read whenever the metrics are collected.
+     *
+     * @param name  the metric name
+     * @param value reads the current value
+     */
+    synchronized void gauge(String name, Supplier<Number> value) {
+        gauges.put(name, new Gauge("gauge", value));
+    }
+
+    /**
+     * Registers a metric with one sample per value of a label, e.g. bytes per client address,
+     * read whenever the metrics are collected.
+     *
+     * @param name   the metric name
+     * @param type   {@code counter} or {@code gauge}
+     * @param label  the label name
+     * @param values reads the current value for each label value
+     */
+    synchronized void family(String name, String type, String label, Supplier<Map<String, ? extends Number>> values) {
+        families.put(name, new Family(type, label, values));
+    }
+
+    /**
+     * Runs a task on the metrics sampler once a second, e.g. to turn another component's counters
+     * into rates, until the metrics are closed.
+     *
+     * @param task the task; must not block
+     */
+    void everySecond(Runnable task) {
+        sampler.scheduleAtFixedRate(task, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Collects every metric. Latencies are reported in seconds.
+     *
+     * @return the current samples, grouped by metric name
+     */
+    List<Sample> samples() {
+        List<Sample> samples = new ArrayList<>();
+        commands.forEach((command, metrics) -> samples.add(new Sample("fileserver_commands_total", "counter",
+                "command=\"" + command + "\"", metrics.count.sum())));
+        commands.forEach((command, metrics) -> samples.add(new Sample("fileserver_command_errors_total", "counter",
+                "command=\"" + command + "\"", metrics.errors.sum())));
+        commands.forEach((command, metrics) -> {
+            LatencyHistogram latency = metrics.latency;
+            for (double quantile : QUANTILES) {
+                samples.add(new Sample("fileserver_command_latency_seconds", "summary",
+                        "command=\"" + command + "\",quantile=\"" + quantile + "\"",
+                        latency.percentile(quantile * 100) / 1e9));
+            }
+            samples.add(new Sample("fileserver_command_latency_seconds_sum", "summary",
+                    "command=\"" + command + "\"", latency.sum() / 1e9));
+            samples.add(new Sample("fileserver_command_latency_seconds_count", "summary",
+                    "command=\"" + command + "\"", latency.count()));
+        });
+        commands.forEach((command, metrics) -> samples.add(new Sample("fileserver_command_latency_max_seconds", "gauge",
+                "command=\"" + command + "\"", metrics.latency.max() / 1e9)));
+        samples.add(new Sample("fileserver_bytes_received_total", "counter", "", bytesReceived.sum()));
+        samples.add(new Sample("fileserver_bytes_sent_total", "counter", "", bytesSent.sum()));
+        samples.add(new Sample("fileserver_receive_bytes_per_second", "gauge", "", receiveRate));
+        samples.add(new Sample("fileserver_send_bytes_per_second", "gauge", "", sendRate));
+        samples.add(new Sample("fileserver_open_connections", "gauge", "", openConnections.get()));
+        samples.add(new Sample("fileserver_log_lines_dropped_total", "counter", "", Log.droppedLines()));
+        synchronized (this) {
+            gauges.forEach((name, gauge) -> samples.add(new Sample(name, gauge.type, "", gauge.value.get().doubleValue())));
+            families.forEach((name, family) -> family.values.get().forEach((value, number) -> samples.add(
+                    new Sample(name, family.type, family.label + "=\"" + value + "\"", number.doubleValue()))));
+        }
+        return samples;
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format
+     */
+    String scrape() {
+        StringBuilder text = new StringBuilder();
+        String family = null;
+        for (Sample sample : samples()) {
+            String baseName = sample.type.equals("summary") ? sample.name.replaceAll("_(sum|count)$", "") : sample.name;
+            if (!baseName.equals(family)) {
+                family = baseName;
+                text.append("# TYPE ").append(baseName).append(' ').append(sample.type).append('\n');
+            }
+            text.append(sample.key()).append(' ').append(format(sample.value)).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Publishes the metrics as a JMX MBean named {@code com.example.Server:type=Metrics,port=<port>}.
+     *
+     * @param port the server port, to tell several servers in one JVM apart
+     */
+    synchronized void registerMBean(int port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("com.example.Server:type=Metrics,port=" + port);
+            server.registerMBean(new MetricsMBean(), objectName);
+        } catch (JMException e) {
+            Log.warn("Unable to register the metrics MBean: " + e.getMessage());
+            objectName = null;
+        }
+    }
+
+    /**
+     * Serves {@link #scrape()} over HTTP at {@code /metrics}.
+     *
+     * @param port the port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    synchronized void startHttpEndpoint(int port) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        httpServer.start();
+        Log.info("Metrics available at http://localhost:" + httpServer.getAddress().getPort() + "/metrics");
+    }
+
+    @Override
+    public synchronized void close() {
+        sampler.shutdownNow();
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ignored) {
+                // Already gone
+            }
+        }
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * Request count, error count and latency of one command.
+     */
+    static final class CommandMetrics {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        /**
+         * Records one finished request.
+         *
+         * @param nanos  how long the request took
+         * @param failed whether it ended with an error
+         */
+        void record(long nanos, boolean failed) {
+            count.increment();
+            if (failed) {
+                errors.increment();
+            }
+            latency.record(nanos);
+        }
+    }
+
+    /**
+     * One value of a metric.
+     *
+     * @param name   the metric name
+     * @param type   {@code counter}, {@code gauge} or {@code summary}
+     * @param labels Prometheus labels without braces, "" if none
+     * @param value  the value
+     */
+    record Sample(String name, String type, String labels, double value) {
+
+        /**
+         * @return the name with its labels, as used for the scrape line and the JMX attribute
+         */
+        String key() {
+            return labels.isEmpty() ? name : name + "{" + labels + "}";
+        }
+    }
+
+    private record Gauge(String type, Supplier<Number> value) {
+    }
+
+    private record Family(String type, String label, Supplier<Map<String, ? extends Number>> values) {
+    }
+
+    /**
+     * Turns the byte counters into rates once a second.
+     */
+    private final class RateSampler implements Runnable {
+
+        private long lastReceived;
+        private long lastSent;
+        private long lastNanos = System.nanoTime();
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            long received = bytesReceived.sum();
+            long sent = bytesSent.sum();
+            double seconds = (now - lastNanos) / 1e9;
+            receiveRate = (received - lastReceived) / seconds;
+            sendRate = (sent - lastSent) / seconds;
+            lastReceived = received;
+            lastSent = sent;
+            lastNanos = now;
+        }
+    }
+
+    /**
+     * Read-only MBean with one attribute per sample, named like the scrape lines.
+     */
+    private final class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            for (Sample sample : samples()) {
+                if (sample.key().equals(attribute)) {
+                    return sample.value;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Double> values = new LinkedHashMap<>();
+            for (Sample sample : samples()) {
+                values.put(sample.key(), sample.value);
+            }
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<Sample> samples = samples();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[samples.size()];
+            for (int i = 0; i < attributes.length; i++) {
+                Sample sample = samples.get(i);
+                attributes[i] = new MBeanAttributeInfo(sample.key(), Double.class.getName(), sample.type,
+                        true, false, false);
+            }
+            return new MBeanInfo(ServerMetrics.class.getName(), "File server metrics", attributes, null, null, null);
+        }
+    }
+}
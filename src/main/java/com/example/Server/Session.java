@@ -0,0 +1,250 @@
+package com.example.Server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server side of a persistent, pipelined connection opened with the SESSION command. The client
+ * sends a stream of framed requests without waiting for replies; each request runs on its own
+ * virtual thread and its reply is written as soon as it is ready, so replies can come back in a
+ * different order than the requests went out.
+ * <p>
+ * Request frame: {@code int} request id, {@code UTF} command, {@code UTF} file name, {@code UTF}
+ * argument ("" if unused), {@code long} payload length, payload bytes.
+ * Reply frame: {@code int} request id, {@code byte} status, {@code long} payload length, payload bytes.
+ * <p>
+ * An UPLOAD may carry the CRC32C of its payload as hex in the argument; the file is only stored
+ * if the received bytes match it. The reply's payload is the CRC32C the server computed.
+ */
+final class Session {
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_NOT_FOUND = 1;
+    static final byte STATUS_ERROR = 2;
+
+    /** Requests that may be in progress at once before the session stops reading new ones. */
+    private static final int MAX_PENDING_REQUESTS = 64;
+
+    private final FileServerCore fileServer;
+    private final Socket socket;
+    private final DataInputStream inputStream;
+    private final WatchedChannel channel;
+    private final DataOutputStream outputStream;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Semaphore pendingRequests = new Semaphore(MAX_PENDING_REQUESTS);
+
+    Session(FileServerCore fileServer, Socket socket, DataInputStream inputStream, WatchedChannel channel) throws IOException {
+        this.fileServer = fileServer;
+        this.socket = socket;
+        this.inputStream = inputStream;
+        this.channel = channel;
+        // Each reply frame goes out in one write; pipelined replies must not wait for delayed ACKs
+        socket.setTcpNoDelay(true);
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Reads requests until the client closes the connection or stays silent for the idle
+     * timeout, then waits for the requests still in progress to finish.
+     *
+     * @throws IOException if the connection fails
+     */
+    void run() throws IOException {
+        int idleTimeout = ServerConfig.soTimeout(fileServer.config().idleTimeoutMillis());
+        int readTimeout = ServerConfig.soTimeout(fileServer.config().readTimeoutMillis());
+        try (ExecutorService requests = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (true) {
+                int requestId;
+                try {
+                    // Between frames the client may think for as long as the idle timeout allows,
+                    // but once a frame has started the rest of it must follow
+                    socket.setSoTimeout(idleTimeout);
+                    requestId = inputStream.readInt();
+                    socket.setSoTimeout(readTimeout);
+                } catch (EOFException e) {
+                    break;
+                }
+                String command = inputStream.readUTF();
+                String fileName = inputStream.readUTF();
+                String argument = inputStream.readUTF();
+                long payloadLength = inputStream.readLong();
+
+                pendingRequests.acquireUninterruptibly();
+                long started = System.nanoTime();
+                if ("UPLOAD".equals(command)) {
+                    // The payload has to come off the stream before the next request can be read
+                    Path temporaryFile = fileServer.partialUploads().newTemporaryFile();
+                    Checksum checksum = receivePayload(temporaryFile, payloadLength);
+                    fileServer.metrics().received(payloadLength);
+                    requests.execute(() -> complete(requestId, command, started, () -> {
+                        try {
+                            if (!argument.isEmpty() && Long.parseUnsignedLong(argument, 16) != checksum.crc32c()) {
+                                throw new IOException("Checksum mismatch for " + fileName);
+                            }
+                            fileServer.storeUpload(temporaryFile, fileName, checksum);
+                        } catch (IOException | NumberFormatException e) {
+                            Files.deleteIfExists(temporaryFile);
+                            throw e;
+                        }
+                        Log.info("File uploaded: " + fileName);
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        new DataOutputStream(bytes).writeLong(checksum.crc32c());
+                        reply(requestId, STATUS_OK, bytes.toByteArray());
+                    }));
+                } else {
+                    skipPayload(payloadLength);
+                    requests.execute(() -> complete(requestId, command, started, () -> execute(requestId, command, fileName, argument)));
+                }
+            }
+        }
+    }
+
+    private void execute(int requestId, String command, String fileName, String argument) throws IOException {
+        switch (command) {
+            case "DOWNLOAD" -> sendFile(requestId, fileName);
+            case "STAT" -> {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                fileServer.writeStat(new DataOutputStream(bytes), fileName, Boolean.parseBoolean(argument));
+                reply(requestId, STATUS_OK, bytes.toByteArray());
+            }
+            case "VERIFY" -> {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                fileServer.writeVerify(new DataOutputStream(bytes), fileName);
+                reply(requestId, STATUS_OK, bytes.toByteArray());
+            }
+            case "MOVE" -> reply(requestId, fileServer.handleFileMove(fileName, argument) ? STATUS_OK : STATUS_NOT_FOUND, new byte[0]);
+            case "LINK" -> reply(requestId, fileServer.linkExisting(fileName, argument) ? STATUS_OK : STATUS_NOT_FOUND, new byte[0]);
+            case "DELETE" -> reply(requestId, fileServer.handleFileDelete(fileName) ? STATUS_OK : STATUS_NOT_FOUND, new byte[0]);
+            case "LOCATE" -> {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                fileServer.writeLocate(new DataOutputStream(bytes), fileName);
+                reply(requestId, STATUS_OK, bytes.toByteArray());
+            }
+            default -> throw new IOException("Unknown command: " + command);
+        }
+    }
+
+    private void sendFile(int requestId, String fileName) throws IOException {
+        File file = fileServer.findFile(fileName);
+        if (file == null || !file.isFile()) {
+            reply(requestId, STATUS_NOT_FOUND, new byte[0]);
+            return;
+        }
+        DownloadCache cache = fileServer.downloadCache();
+        ByteBuffer cached = cache.get(file.toPath());
+        if (cached != null) {
+            writeLock.lock();
+            try {
+                outputStream.writeInt(requestId);
+                outputStream.writeByte(STATUS_OK);
+                outputStream.writeLong(cached.remaining());
+                outputStream.flush();
+                cache.served(cached.remaining());
+                fileServer.metrics().sent(cached.remaining());
+                Transfers.sendBuffer(cached, channel);
+            } finally {
+                writeLock.unlock();
+            }
+            Log.info("File downloaded: " + fileName);
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            writeLock.lock();
+            try {
+                outputStream.writeInt(requestId);
+                outputStream.writeByte(STATUS_OK);
+                outputStream.writeLong(fileSize);
+                outputStream.flush();
+                Transfers.sendFile(fileChannel, 0, fileSize, channel, fileServer.bufferPool());
+                fileServer.metrics().sent(fileSize);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        Log.info("File downloaded: " + fileName);
+    }
+
+    private void reply(int requestId, byte status, byte[] payload) throws IOException {
+        writeLock.lock();
+        try {
+            outputStream.writeInt(requestId);
+            outputStream.writeByte(status);
+            outputStream.writeLong(payload.length);
+            outputStream.write(payload);
+            outputStream.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Runs a request, turns a failure into an error reply carrying the message and records the
+     * request's latency from the moment its frame was read.
+     */
+    private void complete(int requestId, String command, long started, Request request) {
+        boolean failed = true;
+        try {
+            request.run();
+            failed = false;
+        } catch (IOException | RuntimeException e) {
+            try {
+                String message = String.valueOf(e.getMessage());
+                reply(requestId, STATUS_ERROR, message.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ignored) {
+                // The connection is gone, the reader will notice and end the session
+            }
+        } finally {
+            fileServer.metrics().command(command).record(System.nanoTime() - started, failed);
+            pendingRequests.release();
+        }
+    }
+
+    /**
+     * Receives an upload's payload into the temporary file.
+     *
+     * @return the payload's checksums, computed on the way in
+     */
+    private Checksum receivePayload(Path temporaryFile, long payloadLength) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+            Checksum.Accumulator checksums = fileServer.newChecksums();
+            fileServer.uploadPipeline().receive(channel, fileChannel, 0, payloadLength, checksums);
+            return checksums.finish();
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaryFile);
+            throw e;
+        }
+    }
+
+    private void skipPayload(long payloadLength) throws IOException {
+        long remaining = payloadLength;
+        while (remaining > 0) {
+            int skipped = inputStream.skipBytes((int) Math.min(remaining, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Request {
+        void run() throws IOException;
+    }
+}
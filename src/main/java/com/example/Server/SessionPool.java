@@ -0,0 +1,183 @@
+package com.example.Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client side connection manager for pipelined sessions. Keeps a few long-lived SESSION
+ * connections open and spreads requests over them round-robin; requests are written without
+ * waiting for earlier replies, and each reply completes the future of the request with the
+ * matching id, whatever order the server answers in. Broken connections are replaced on the
+ * next request.
+ */
+final class SessionPool implements AutoCloseable {
+
+    /**
+     * A reply to one request.
+     *
+     * @param status  one of the {@code Session.STATUS_*} codes
+     * @param payload the reply data
+     */
+    record Reply(byte status, byte[] payload) {
+    }
+
+    /**
+     * Opens the connection a new session runs on.
+     */
+    @FunctionalInterface
+    interface Connector {
+        Socket connect() throws IOException;
+    }
+
+    private final Connector connector;
+    private final ClientSession[] sessions;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param connector opens connections to the server
+     * @param size      the number of sessions kept open
+     */
+    SessionPool(Connector connector, int size) {
+        this.connector = connector;
+        this.sessions = new ClientSession[Math.max(1, size)];
+    }
+
+    /**
+     * Sends a request on one of the pooled sessions.
+     *
+     * @param command  the command, e.g. {@code DELETE}
+     * @param fileName the file the command applies to
+     * @param argument the command's extra argument, or "" if it has none
+     * @param payload  data sent with the request (an upload's content), or an empty array
+     * @return a future completed with the reply, or exceptionally if the connection fails
+     */
+    CompletableFuture<Reply> submit(String command, String fileName, String argument, byte[] payload) {
+        ClientSession session;
+        try {
+            session = acquire();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return session.submit(command, fileName, argument, payload);
+    }
+
+    private ClientSession acquire() throws IOException {
+        int slot = Math.floorMod(next.getAndIncrement(), sessions.length);
+        synchronized (sessions) {
+            ClientSession session = sessions[slot];
+            if (session == null || session.isClosed()) {
+                session = new ClientSession(connector.connect());
+                sessions[slot] = session;
+            }
+            return session;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (sessions) {
+            for (ClientSession session : sessions) {
+                if (session != null) {
+                    session.close(new IOException("Session pool closed"));
+                }
+            }
+        }
+    }
+
+    /**
+     * One SESSION connection with a reader thread that dispatches replies by request id.
+     */
+    private static final class ClientSession {
+
+        private final Socket socket;
+        private final DataOutputStream outputStream;
+        private final DataInputStream inputStream;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final Map<Integer, CompletableFuture<Reply>> pending = new ConcurrentHashMap<>();
+        private final AtomicInteger nextRequestId = new AtomicInteger();
+        private volatile boolean closed;
+
+        ClientSession(Socket socket) throws IOException {
+            this.socket = socket;
+            // Each request frame goes out in one write; pipelined requests must not wait for delayed ACKs
+            socket.setTcpNoDelay(true);
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            outputStream.writeUTF("SESSION");
+            outputStream.writeUTF(socket.getLocalSocketAddress().toString());
+            outputStream.flush();
+
+            Thread reader = Thread.ofVirtual().name("session-reader-" + socket.getLocalPort()).unstarted(this::readReplies);
+            reader.start();
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        CompletableFuture<Reply> submit(String command, String fileName, String argument, byte[] payload) {
+            int requestId = nextRequestId.incrementAndGet();
+            CompletableFuture<Reply> reply = new CompletableFuture<>();
+            pending.put(requestId, reply);
+            writeLock.lock();
+            try {
+                outputStream.writeInt(requestId);
+                outputStream.writeUTF(command);
+                outputStream.writeUTF(fileName);
+                outputStream.writeUTF(argument);
+                outputStream.writeLong(payload.length);
+                outputStream.write(payload);
+                outputStream.flush();
+            } catch (IOException e) {
+                close(e);
+            } finally {
+                writeLock.unlock();
+            }
+            return reply;
+        }
+
+        private void readReplies() {
+            try {
+                while (true) {
+                    int requestId = inputStream.readInt();
+                    byte status = inputStream.readByte();
+                    long length = inputStream.readLong();
+                    if (length > Integer.MAX_VALUE - 8) {
+                        throw new IOException("Reply of " + length + " bytes is too large for a session");
+                    }
+                    byte[] payload = new byte[(int) length];
+                    inputStream.readFully(payload);
+                    CompletableFuture<Reply> reply = pending.remove(requestId);
+                    if (reply != null) {
+                        reply.complete(new Reply(status, payload));
+                    }
+                }
+            } catch (EOFException e) {
+                close(new IOException("Server closed the session"));
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        void close(IOException cause) {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+            pending.values().forEach(reply -> reply.completeExceptionally(cause));
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,770 @@
+package com.example.Server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Client side of the transfer protocol used by the UI. Larger files go over a single connection
+ * and resume from the last acknowledged offset after a failure. Files of at least two segments
+ * are split and sent over several connections at once, which gets around the per-connection
+ * TCP window limit on high-latency links. Small files, lookups, moves and deletes are pipelined
+ * over a pool of persistent sessions instead of paying a connection setup each.
+ * <p>
+ * When the server is part of a cluster, uploads and downloads go to the nodes that hold the
+ * file, asked for with {@code LOCATE}: to the least loaded one first, and for downloads to the
+ * next one if it does not have the file (yet). Everything else stays with the server found by
+ * the locator, which passes it on where needed.
+ */
+final class TransferClient {
+
+    private static final String SERVER_HOSTNAME = "localhost"; // Server's hostname or IP
+    private static final int START_PORT = 5000;
+    private static final int MAX_PORT_ATTEMPTS = 100;
+    private static final int MAX_TRANSFER_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MILLIS = 500;
+
+    private static final int DEFAULT_STREAMS = 4;
+    private static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    /** Files up to this size travel as a single request on a pooled session. */
+    private static final long SMALL_FILE_SIZE = 1024 * 1024;
+    private static final int SESSION_POOL_SIZE = 2;
+
+    private final int streams;
+    private final long segmentSize;
+    private final boolean linkKnownContent;
+    private final byte codec;
+    private final ServerLocator locator;
+    private final BufferPool bufferPool;
+    private final SessionPool sessions = new SessionPool(this::openConnection, SESSION_POOL_SIZE);
+    /** Clients for the other cluster nodes, by address; null for a client of one given node. */
+    private final Map<InetSocketAddress, TransferClient> nodes;
+
+    /**
+     * @param streams          the number of connections used for one large file
+     * @param segmentSize      the number of bytes sent per segment
+     * @param linkKnownContent whether to offer the server a large file's hash before sending it
+     * @param codec            the {@link Compression} codec for single-connection transfers
+     */
+    TransferClient(int streams, long segmentSize, boolean linkKnownContent, byte codec) {
+        this(streams, segmentSize, linkKnownContent, codec,
+                new ServerLocator(SERVER_HOSTNAME, FileServerCore.ENDPOINT_FILE, START_PORT, MAX_PORT_ATTEMPTS),
+                BufferPool.withDefaults(), new ConcurrentHashMap<>());
+    }
+
+    private TransferClient(int streams, long segmentSize, boolean linkKnownContent, byte codec,
+                           ServerLocator locator, BufferPool bufferPool, Map<InetSocketAddress, TransferClient> nodes) {
+        this.streams = Math.max(1, streams);
+        this.segmentSize = Math.max(1, segmentSize);
+        this.linkKnownContent = linkKnownContent;
+        this.codec = codec;
+        this.locator = locator;
+        this.bufferPool = bufferPool;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Creates a client configured by the {@code fileserver.client.streams},
+     * {@code fileserver.client.segmentSize}, {@code fileserver.client.dedup} (defaults to the
+     * server's {@code fileserver.dedup}) and {@code fileserver.client.compression}
+     * ({@code none}, {@code fast} or {@code deflate}) system properties.
+     *
+     * @return the transfer client
+     */
+    static TransferClient fromSystemProperties() {
+        return new TransferClient(Integer.getInteger("fileserver.client.streams", DEFAULT_STREAMS),
+                Long.getLong("fileserver.client.segmentSize", DEFAULT_SEGMENT_SIZE),
+                Boolean.parseBoolean(System.getProperty("fileserver.client.dedup", System.getProperty("fileserver.dedup"))),
+                Compression.codecNamed(System.getProperty("fileserver.client.compression")));
+    }
+
+    /**
+     * Uploads a file under its own name.
+     *
+     * @param file the file to be sent
+     * @return true if the server stored the complete file
+     */
+    boolean upload(File file) {
+        List<TransferClient> owners = owners(file.getName());
+        // Any node takes an upload and passes it on to the owners, so this server is the fallback
+        return !owners.isEmpty() && owners.get(0).uploadHere(file) || uploadHere(file);
+    }
+
+    private boolean uploadHere(File file) {
+        long totalSize = file.length();
+        if (totalSize <= SMALL_FILE_SIZE) {
+            try {
+                // Small files skip the connection setup and the resume bookkeeping entirely
+                byte[] content = Files.readAllBytes(file.toPath());
+                Checksum.Accumulator checksums = Checksum.accumulate(false);
+                checksums.update(content, 0, content.length);
+                // The server only stores the file if what it received matches this checksum
+                SessionPool.Reply reply = await(sessions.submit("UPLOAD", file.getName(),
+                        Long.toHexString(checksums.crc32c()), content));
+                if (reply.status() != Session.STATUS_OK) {
+                    throw new IOException(new String(reply.payload(), StandardCharsets.UTF_8));
+                }
+                return true;
+            } catch (IOException e) {
+                Log.warn("Session upload of " + file.getName() + " failed, retrying on its own connection: " + e.getMessage());
+            }
+        }
+        if (linkKnownContent && linkExisting(file)) {
+            return true;
+        }
+        if (codec != Compression.NONE && !useSegments(totalSize) && uploadCompressed(file)) {
+            return true;
+        }
+        for (int attempt = 1; attempt <= MAX_TRANSFER_ATTEMPTS; attempt++) {
+            try {
+                // Ask how much of an earlier, interrupted upload the server already has
+                long offset = uploadedLength(file.getName(), totalSize);
+                boolean committed = useSegments(totalSize - offset)
+                        ? uploadSegments(file, offset, totalSize)
+                        : uploadRange(file, offset, totalSize - offset, totalSize);
+                if (committed) {
+                    return true;
+                }
+            } catch (IOException e) {
+                Log.warn("Upload of " + file.getName() + " interrupted (attempt " + attempt + "): " + e.getMessage());
+            }
+            waitBeforeRetry(attempt);
+        }
+        return false;
+    }
+
+    /**
+     * Offers the server the file's hash so content it already stores under another name does
+     * not have to be sent again.
+     *
+     * @return true if the server stored the file from its own copy
+     */
+    private boolean linkExisting(File file) {
+        try {
+            String sha256 = ContentStore.sha256(file.toPath(), bufferPool);
+            SessionPool.Reply reply = await(sessions.submit("LINK", file.getName(), sha256, new byte[0]));
+            if (reply.status() == Session.STATUS_OK) {
+                Log.info("Server already had the content of " + file.getName());
+                return true;
+            }
+        } catch (IOException e) {
+            Log.warn("Unable to offer the hash of " + file.getName() + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Sends a file compressed over a single connection. Compressed uploads cannot resume, so on
+     * any failure the caller falls back to the resumable upload.
+     *
+     * @return true if the server stored the complete file, false if the file does not look
+     * compressible or the upload failed
+     */
+    private boolean uploadCompressed(File file) {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (!Compression.isCompressible(fileChannel)) {
+                return false;
+            }
+            try (Socket socket = openConnection()) {
+                DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+                DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
+                dataOutputStream.writeUTF("UPLOAD_Z");
+                dataOutputStream.writeUTF(file.getName());
+                dataOutputStream.writeByte(codec);
+                try (Compression.Encoder encoder = Compression.encoder(codec, dataOutputStream)) {
+                    Compression.compressFile(fileChannel, encoder);
+                }
+                // End of stream tells the server the file is complete
+                socket.shutdownOutput();
+                return dataInputStream.readLong() == fileChannel.size();
+            }
+        } catch (IOException e) {
+            Log.warn("Compressed upload of " + file.getName() + " failed, sending it uncompressed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Receives a file compressed over a single connection into a temporary file next to the
+     * target, which replaces the target once the size matches.
+     *
+     * @return true if the complete file was saved, false if the caller should fall back to the
+     * resumable download
+     */
+    private boolean downloadCompressed(String fileName, File saveFile) {
+        Path partFile = Paths.get(saveFile.getPath() + ".z.part");
+        try (Socket socket = openConnection();
+             FileChannel fileChannel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+            DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
+            dataOutputStream.writeUTF("DOWNLOAD_Z");
+            dataOutputStream.writeUTF(fileName);
+            dataOutputStream.writeByte(codec);
+            dataOutputStream.flush();
+
+            long fileSize = dataInputStream.readLong();
+            if (fileSize < 0) {
+                return false;
+            }
+            byte used = Compression.checkCodec(dataInputStream.readByte());
+            long received;
+            if (used == Compression.NONE) {
+                // The server found the content incompressible and sends it as is
+                Transfers.receive(socket.getChannel(), fileChannel, 0, fileSize, bufferPool);
+                received = fileSize;
+            } else {
+                try (Compression.Decoder decoder = Compression.decoder(dataInputStream)) {
+                    received = Transfers.receiveToEnd(Channels.newChannel(decoder), fileChannel, 0, bufferPool);
+                    decoder.finish(used);
+                }
+            }
+            if (received != fileSize) {
+                throw new IOException("Received " + received + " of " + fileSize + " bytes");
+            }
+        } catch (IOException e) {
+            Log.warn("Compressed download of " + fileName + " failed: " + e.getMessage());
+            try {
+                Files.deleteIfExists(partFile);
+            } catch (IOException ignored) {
+                // Overwritten by the next attempt
+            }
+            return false;
+        }
+        try {
+            Files.move(partFile, saveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            Log.warn("Unable to save " + saveFile.getAbsolutePath() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Downloads a stored file.
+     *
+     * @param fileName the path of the file relative to the server directory
+     * @param saveFile the location to save the downloaded file
+     * @return true if the complete file was saved
+     */
+    boolean download(String fileName, File saveFile) {
+        for (TransferClient owner : owners(fileName)) {
+            // A replica may not have received a new file yet
+            if (owner.downloadHere(fileName, saveFile)) {
+                return true;
+            }
+        }
+        return downloadHere(fileName, saveFile);
+    }
+
+    private boolean downloadHere(String fileName, File saveFile) {
+        try {
+            long fileSize = stat(fileName)[0];
+            if (fileSize < 0) {
+                Log.info("File not found on server: " + fileName);
+                return false;
+            }
+            if (fileSize <= SMALL_FILE_SIZE) {
+                return downloadSmall(fileName, saveFile);
+            }
+            if (useSegments(fileSize)) {
+                return downloadSegments(fileName, saveFile, fileSize);
+            }
+            if (codec != Compression.NONE && downloadCompressed(fileName, saveFile)) {
+                return true;
+            }
+        } catch (IOException e) {
+            Log.warn("Unable to look up " + fileName + ": " + e.getMessage());
+        }
+        return downloadResumable(fileName, saveFile);
+    }
+
+    /**
+     * Moves a stored file into another directory of the server's tree.
+     *
+     * @param sourcePath      the file to move, relative to the server directory
+     * @param targetDirectory the directory to move it to, relative to the server directory, or
+     *                        empty for the server directory itself
+     * @return a future completed with true if the server moved the file
+     */
+    CompletableFuture<Boolean> move(String sourcePath, String targetDirectory) {
+        return sessions.submit("MOVE", sourcePath, targetDirectory, new byte[0])
+                .thenApply(reply -> reply.status() == Session.STATUS_OK);
+    }
+
+    /**
+     * Deletes a stored file.
+     *
+     * @param fileName the path of the file relative to the server directory
+     * @return a future completed with true if the server deleted the file
+     */
+    CompletableFuture<Boolean> delete(String fileName) {
+        return sessions.submit("DELETE", fileName, "", new byte[0])
+                .thenApply(reply -> reply.status() == Session.STATUS_OK);
+    }
+
+    /**
+     * Uploads every file below a directory as one batch on a single connection. The files are
+     * stored below a directory of the same name in the server directory.
+     *
+     * @param directory the local directory to send
+     * @return the number of files stored and the files that were not
+     * @throws IOException if the connection fails
+     */
+    BatchTransfers.Result uploadDirectory(File directory) throws IOException {
+        try (Socket socket = openConnection()) {
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            outputStream.writeUTF("BATCH_UPLOAD");
+            outputStream.writeUTF(directory.getName());
+            BatchTransfers.send(directory.toPath(), outputStream, socket.getChannel(), bufferPool);
+
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int stored = inputStream.readInt();
+            int failed = inputStream.readInt();
+            List<BatchTransfers.Failure> failures = new ArrayList<>(failed);
+            for (int i = 0; i < failed; i++) {
+                failures.add(new BatchTransfers.Failure(inputStream.readUTF(), inputStream.readUTF()));
+            }
+            return new BatchTransfers.Result(stored, failures);
+        }
+    }
+
+    /**
+     * Downloads a stored file, or every file below a stored directory, as one batch on a single
+     * connection. Each file is written to a temporary file in the target directory first and
+     * replaces an existing file of the same name once complete.
+     *
+     * @param path            the file or directory relative to the server directory
+     * @param targetDirectory the local directory the files are saved in, keeping their relative
+     *                        paths below the requested directory
+     * @return the number of files saved and the files that were not, or null if the path does not
+     * exist on the server
+     * @throws IOException if the connection fails
+     */
+    BatchTransfers.Result downloadDirectory(String path, File targetDirectory) throws IOException {
+        try (Socket socket = openConnection()) {
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            outputStream.writeUTF("BATCH_DOWNLOAD");
+            outputStream.writeUTF(path);
+            outputStream.flush();
+
+            BatchTransfers.EntryReader reader = new BatchTransfers.EntryReader(socket.getChannel(), bufferPool);
+            if (!reader.readBoolean()) {
+                return null;
+            }
+            Path target = targetDirectory.toPath();
+            Files.createDirectories(target);
+            return BatchTransfers.receive(reader, new BatchTransfers.EntryTarget() {
+                @Override
+                public Path newTemporaryFile() throws IOException {
+                    return Files.createTempFile(target, ".batch-", ".part");
+                }
+
+                @Override
+                public void commit(Path temporaryFile, String entryPath, Checksum checksum) throws IOException {
+                    Path file = target.resolve(entryPath);
+                    Files.createDirectories(file.getParent());
+                    Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+
+                @Override
+                public Checksum.Accumulator newChecksums() {
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Moves many stored files into one directory with a single request.
+     *
+     * @param sourcePaths     the files to move, relative to the server directory
+     * @param targetDirectory the directory to move them to, relative to the server directory
+     * @return whether each file was moved, in the order given
+     * @throws IOException if the connection fails
+     */
+    boolean[] moveAll(List<String> sourcePaths, String targetDirectory) throws IOException {
+        return applyToAll("BATCH_MOVE", targetDirectory, sourcePaths);
+    }
+
+    /**
+     * Deletes many stored files with a single request.
+     *
+     * @param fileNames the paths of the files relative to the server directory
+     * @return whether each file was deleted, in the order given
+     * @throws IOException if the connection fails
+     */
+    boolean[] deleteAll(List<String> fileNames) throws IOException {
+        return applyToAll("BATCH_DELETE", "", fileNames);
+    }
+
+    private boolean[] applyToAll(String command, String argument, List<String> paths) throws IOException {
+        try (Socket socket = openConnection()) {
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            outputStream.writeUTF(command);
+            outputStream.writeUTF(argument);
+            outputStream.writeInt(paths.size());
+            for (String path : paths) {
+                outputStream.writeUTF(path);
+            }
+            outputStream.flush();
+
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            boolean[] outcomes = new boolean[paths.size()];
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = inputStream.readBoolean();
+            }
+            return outcomes;
+        }
+    }
+
+    /**
+     * Starts listing a directory on its own connection; pages are fetched as the caller asks for
+     * them.
+     *
+     * @param directory the directory relative to the server directory, "" for the root
+     * @param pageSize  the number of entries per page
+     * @return the listing, to be closed by the caller
+     * @throws IOException if the server cannot be reached
+     */
+    DirectoryListing list(String directory, int pageSize) throws IOException {
+        return new DirectoryListing(openConnection(), directory, pageSize);
+    }
+
+    /**
+     * Connects to the server at the address the locator has cached.
+     *
+     * @return a connected socket backed by a channel
+     * @throws IOException if the server cannot be found
+     */
+    Socket openConnection() throws IOException {
+        return locator.connect();
+    }
+
+    /**
+     * Asks the server which cluster nodes hold a file.
+     *
+     * @return clients for the file's owners, least loaded first; empty if the server is not in a
+     * cluster or cannot say
+     */
+    private List<TransferClient> owners(String fileName) {
+        if (nodes == null) {
+            return List.of();
+        }
+        List<TransferClient> owners = new ArrayList<>();
+        try {
+            SessionPool.Reply reply = await(sessions.submit("LOCATE", fileName, "", new byte[0]));
+            if (reply.status() != Session.STATUS_OK) {
+                return owners;
+            }
+            DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(reply.payload()));
+            int count = inputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                InetSocketAddress address = new InetSocketAddress(inputStream.readUTF(), inputStream.readInt());
+                owners.add(nodes.computeIfAbsent(address, node -> new TransferClient(streams, segmentSize,
+                        linkKnownContent, codec, new ServerLocator(node), bufferPool, null)));
+            }
+        } catch (IOException e) {
+            Log.warn("Unable to locate " + fileName + ", staying with this server: " + e.getMessage());
+        }
+        return owners;
+    }
+
+    private boolean useSegments(long length) {
+        return streams > 1 && length >= 2 * segmentSize;
+    }
+
+    /**
+     * Runs STAT for a file.
+     *
+     * @return the stored size (-1 if missing), the pending upload total (-1 if none) and the
+     * pending upload's contiguous length
+     */
+    private long[] stat(String fileName) throws IOException {
+        SessionPool.Reply reply = await(sessions.submit("STAT", fileName, "false", new byte[0]));
+        if (reply.status() != Session.STATUS_OK) {
+            throw new IOException(new String(reply.payload(), StandardCharsets.UTF_8));
+        }
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(reply.payload()));
+        inputStream.readBoolean(); // exists
+        long size = inputStream.readLong();
+        inputStream.readLong(); // last modified
+        inputStream.readLong(); // checksum
+        long pendingTotal = inputStream.readLong();
+        long pendingLength = inputStream.readLong();
+        return new long[]{size, pendingTotal, pendingLength};
+    }
+
+    /**
+     * Asks the server how many bytes of an upload of the given size it already holds.
+     */
+    private long uploadedLength(String fileName, long totalSize) throws IOException {
+        long[] stat = stat(fileName);
+        return stat[1] == totalSize ? stat[2] : 0;
+    }
+
+    /**
+     * Uploads one byte range of a file, with the running CRC32C of the range after every
+     * {@link PartialUploads#PERSIST_INTERVAL} bytes and at its end. The checksums are computed
+     * while the data is sent rather than in a pass of their own.
+     *
+     * @return true if the server now has the whole file and committed it
+     */
+    private boolean uploadRange(File file, long offset, long length, long totalSize) throws IOException {
+        try (Socket socket = openConnection();
+             FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            outputStream.writeUTF("UPLOAD_RANGE");
+            outputStream.writeUTF(file.getName());
+            outputStream.writeLong(totalSize);
+            outputStream.writeLong(offset);
+            outputStream.writeLong(length);
+            outputStream.flush();
+
+            Checksum.Accumulator checksums = Checksum.accumulate(false);
+            for (long sent = 0; sent < length; ) {
+                long chunk = Math.min(length - sent, PartialUploads.PERSIST_INTERVAL);
+                Transfers.sendFile(fileChannel, offset + sent, chunk, socket.getChannel(), checksums, bufferPool);
+                outputStream.writeLong(checksums.crc32c());
+                outputStream.flush();
+                sent += chunk;
+            }
+
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            inputStream.readLong(); // bytes acknowledged
+            return inputStream.readBoolean();
+        }
+    }
+
+    /**
+     * Uploads everything from {@code offset} on as segments over parallel connections.
+     *
+     * @return true if the server committed the file once the last segment arrived
+     */
+    private boolean uploadSegments(File file, long offset, long totalSize) throws IOException {
+        List<Future<Boolean>> results = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(streams, Thread.ofVirtual().factory())) {
+            for (long start = offset; start < totalSize; start += segmentSize) {
+                long segmentStart = start;
+                long length = Math.min(segmentSize, totalSize - start);
+                results.add(executor.submit(() -> uploadSegmentWithRetries(file, segmentStart, length, totalSize)));
+            }
+        }
+        boolean committed = false;
+        for (Future<Boolean> result : results) {
+            committed |= await(result);
+        }
+        return committed;
+    }
+
+    private boolean uploadSegmentWithRetries(File file, long offset, long length, long totalSize) throws IOException {
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_TRANSFER_ATTEMPTS; attempt++) {
+            try (Socket socket = openConnection();
+                 FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+                outputStream.writeUTF("UPLOAD_SEGMENT");
+                outputStream.writeUTF(file.getName());
+                outputStream.writeLong(totalSize);
+                outputStream.writeLong(offset);
+                outputStream.writeLong(length);
+                outputStream.flush();
+
+                Checksum.Accumulator checksums = Checksum.accumulate(false);
+                Transfers.sendFile(fileChannel, offset, length, socket.getChannel(), checksums, bufferPool);
+                outputStream.writeLong(checksums.crc32c());
+                outputStream.flush();
+
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                boolean verified = inputStream.readBoolean();
+                inputStream.readLong(); // bytes acknowledged
+                boolean committed = inputStream.readBoolean();
+                if (verified) {
+                    return committed;
+                }
+                failure = new IOException("Checksum mismatch for segment at " + offset);
+            } catch (IOException e) {
+                failure = e;
+            }
+            Log.warn("Segment " + offset + " of " + file.getName() + " failed (attempt " + attempt + "): " + failure.getMessage());
+            waitBeforeRetry(attempt);
+        }
+        throw failure;
+    }
+
+    /**
+     * Downloads a small file as a single request on a pooled session.
+     */
+    private boolean downloadSmall(String fileName, File saveFile) throws IOException {
+        SessionPool.Reply reply = await(sessions.submit("DOWNLOAD", fileName, "", new byte[0]));
+        if (reply.status() != Session.STATUS_OK) {
+            Log.info("File not found on server: " + fileName);
+            return false;
+        }
+        Path partFile = Paths.get(saveFile.getPath() + ".part");
+        Files.write(partFile, reply.payload());
+        Files.move(partFile, saveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Downloads a file over a single connection into a ".part" file next to the target. After a
+     * dropped connection the download continues from the end of that file, and it only replaces
+     * the target once every byte has arrived. Each range is checked against the CRC32C the server
+     * sends after it; a range that does not match is discarded and fetched again.
+     */
+    private boolean downloadResumable(String fileName, File saveFile) {
+        Path partFile = Paths.get(saveFile.getPath() + ".part");
+        long expectedSize = -1;
+        for (int attempt = 1; attempt <= MAX_TRANSFER_ATTEMPTS; attempt++) {
+            try (Socket socket = openConnection();
+                 FileChannel fileChannel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long offset = fileChannel.size();
+                DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
+                DataInputStream dataInputStream = new DataInputStream(socket.getInputStream());
+                dataOutputStream.writeUTF("DOWNLOAD_RANGE");
+                dataOutputStream.writeUTF(fileName); // Ensure file name includes subdirectory if any
+                dataOutputStream.writeLong(offset);
+                dataOutputStream.writeLong(-1);
+                dataOutputStream.flush();
+
+                // Read file size sent by the server
+                long fileSize = dataInputStream.readLong();
+                if (fileSize < 0) {
+                    Log.info("File not found on server: " + fileName);
+                    Files.deleteIfExists(partFile);
+                    return false;
+                }
+                long count = dataInputStream.readLong();
+                if (offset > fileSize || (expectedSize >= 0 && fileSize != expectedSize)) {
+                    // The file changed on the server since the partial data was written, start over
+                    fileChannel.truncate(0);
+                    expectedSize = fileSize;
+                    continue;
+                }
+                expectedSize = fileSize;
+                Checksum.Accumulator checksums = Checksum.accumulate(false);
+                Transfers.receive(socket.getChannel(), fileChannel, offset, count, checksums, bufferPool);
+                if (dataInputStream.readLong() != checksums.crc32c()) {
+                    fileChannel.truncate(offset);
+                    throw new IOException("Checksum mismatch for bytes " + offset + "-" + (offset + count));
+                }
+            } catch (IOException e) {
+                Log.warn("Download of " + fileName + " interrupted (attempt " + attempt + "): " + e.getMessage());
+                waitBeforeRetry(attempt);
+                continue;
+            }
+
+            try {
+                if (Files.size(partFile) == expectedSize) {
+                    Files.move(partFile, saveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    return true;
+                }
+            } catch (IOException e) {
+                Log.warn("Unable to save " + saveFile.getAbsolutePath() + ": " + e.getMessage());
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Downloads a file as segments over parallel connections, each written at its own offset.
+     */
+    private boolean downloadSegments(String fileName, File saveFile, long fileSize) throws IOException {
+        Path partFile = Paths.get(saveFile.getPath() + ".parts");
+        List<Future<Boolean>> results = new ArrayList<>();
+        try (FileChannel fileChannel = FileChannel.open(partFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            try (ExecutorService executor = Executors.newFixedThreadPool(streams, Thread.ofVirtual().factory())) {
+                for (long start = 0; start < fileSize; start += segmentSize) {
+                    long segmentStart = start;
+                    long length = Math.min(segmentSize, fileSize - start);
+                    results.add(executor.submit(() -> downloadSegmentWithRetries(fileName, fileChannel, segmentStart, length, fileSize)));
+                }
+            }
+            for (Future<Boolean> result : results) {
+                await(result);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(partFile);
+            throw e;
+        }
+        Files.move(partFile, saveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    private boolean downloadSegmentWithRetries(String fileName, FileChannel target, long offset, long length,
+                                               long fileSize) throws IOException {
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_TRANSFER_ATTEMPTS; attempt++) {
+            try (Socket socket = openConnection()) {
+                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                outputStream.writeUTF("DOWNLOAD_RANGE");
+                outputStream.writeUTF(fileName);
+                outputStream.writeLong(offset);
+                outputStream.writeLong(length);
+                outputStream.flush();
+
+                if (inputStream.readLong() != fileSize) {
+                    throw new IOException(fileName + " changed on the server during the download");
+                }
+                long count = inputStream.readLong();
+                Checksum.Accumulator checksums = Checksum.accumulate(false);
+                Transfers.receive(socket.getChannel(), target, offset, count, checksums, bufferPool);
+                if (inputStream.readLong() != checksums.crc32c()) {
+                    throw new IOException("Checksum mismatch for segment at " + offset);
+                }
+                return true;
+            } catch (IOException e) {
+                failure = e;
+            }
+            Log.warn("Segment " + offset + " of " + fileName + " failed (attempt " + attempt + "): " + failure.getMessage());
+            waitBeforeRetry(attempt);
+        }
+        throw failure;
+    }
+
+    private static <T> T await(Future<T> result) throws IOException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    private static void waitBeforeRetry(int attempt) {
+        try {
+            Thread.sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
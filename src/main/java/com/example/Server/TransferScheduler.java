@@ -0,0 +1,572 @@
+package com.example.Server;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bandwidth shaping for the blocking handlers, so one client streaming a huge file cannot starve
+ * everyone else. Every connection is a {@link Flow}; its channel reports each read and write here
+ * and waits as long as the limits require before the next one.
+ * <ul>
+ *     <li>Each client address has a token bucket: its connections together get at most the
+ *     client rate, with bursts up to the bucket size.</li>
+ *     <li>All connections share a global bucket. When it runs dry, the connections waiting for it
+ *     are served in order of their virtual finish times (self-clocked fair queuing), so each gets
+ *     a share in proportion to its client's weight, and a short request that has barely sent
+ *     anything goes ahead of a bulk transfer that has been sending for minutes.</li>
+ * </ul>
+ * A rate of 0 means no limit. Without a global limit nobody waits for anybody: fairness only
+ * comes into play below a global rate, so set it just under what the disk or network can take.
+ * Limits, per-client overrides and weights can be changed while the server runs, through the
+ * {@code com.example.Server:type=Shaping} MBean. Traffic per client is counted whether or not
+ * any limit is set.
+ */
+final class TransferScheduler {
+
+    /** The fewest bytes a limited connection may move in one call, so slow limits do not mean tiny syscalls. */
+    private static final int MIN_QUANTUM = 16 * 1024;
+    /** A client with no connections and no overrides is forgotten after this long without traffic. */
+    private static final long CLIENT_EXPIRY_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition turnTaken = lock.newCondition();
+    // Waiters for the global bucket, the smallest finish time first
+    private final PriorityQueue<Turn> turns = new PriorityQueue<>();
+    private final TokenBucket global;
+    private volatile long clientRate;
+    private volatile long burst;
+    private double virtualTime;
+    private long turnSequence;
+    private ObjectName objectName;
+
+    /**
+     * @param globalRate bytes per second for all clients together, 0 for no limit
+     * @param clientRate bytes per second for each client address, 0 for no limit
+     * @param burst      bytes a bucket may hold, i.e. how far a transfer may run ahead of its rate
+     */
+    TransferScheduler(long globalRate, long clientRate, long burst) {
+        this.global = new TokenBucket(globalRate, burst);
+        this.clientRate = clientRate;
+        this.burst = burst;
+    }
+
+    /**
+     * Starts scheduling a connection.
+     *
+     * @param address the client's address
+     * @return the connection's flow, to be closed with the connection
+     */
+    Flow open(InetAddress address) {
+        Client client = clients.compute(address.getHostAddress(), (key, existing) -> {
+            Client result = existing != null ? existing : new Client(key);
+            result.flows.incrementAndGet();
+            return result;
+        });
+        return new Flow(client);
+    }
+
+    /**
+     * @return true if any limit is set, i.e. transfers may have to wait
+     */
+    boolean isShaping() {
+        if (global.rate > 0 || clientRate > 0) {
+            return true;
+        }
+        for (Client client : clients.values()) {
+            if (client.rateOverride >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param rate bytes per second for all clients together, 0 for no limit
+     */
+    void setGlobalRate(long rate) {
+        lock.lock();
+        try {
+            global.configure(Math.max(0, rate), burst);
+            // Waiters recompute how long to wait, or all go at once if the limit is gone
+            turnTaken.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param rate bytes per second for each client address without an override, 0 for no limit
+     */
+    void setClientRate(long rate) {
+        clientRate = Math.max(0, rate);
+    }
+
+    /**
+     * @param bytes how far a transfer may run ahead of its rate, for every bucket
+     */
+    void setBurst(long bytes) {
+        burst = Math.max(1, bytes);
+        setGlobalRate(global.rate);
+    }
+
+    /**
+     * Gives one client address a rate of its own, e.g. to throttle a known bulk uploader harder or
+     * to exempt a trusted host.
+     *
+     * @param address the client address as printed in the metrics
+     * @param rate    bytes per second, 0 for no limit, or -1 to use the client rate again
+     */
+    void setClientRate(String address, long rate) {
+        clients.computeIfAbsent(address, Client::new).rateOverride = Math.max(-1, rate);
+    }
+
+    /**
+     * Sets a client's weight, its share of the global rate relative to other clients while they
+     * compete for it.
+     *
+     * @param address the client address as printed in the metrics
+     * @param weight  the share, 1 by default
+     */
+    void setClientWeight(String address, double weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+        }
+        clients.computeIfAbsent(address, Client::new).weight = weight;
+    }
+
+    /**
+     * @return bytes received from each client address so far
+     */
+    Map<String, Long> bytesReceivedByClient() {
+        Map<String, Long> values = new TreeMap<>();
+        clients.forEach((address, client) -> values.put(address, client.received.sum()));
+        return values;
+    }
+
+    /**
+     * @return bytes sent to each client address so far
+     */
+    Map<String, Long> bytesSentByClient() {
+        Map<String, Long> values = new TreeMap<>();
+        clients.forEach((address, client) -> values.put(address, client.sent.sum()));
+        return values;
+    }
+
+    /**
+     * @return bytes per second received from each client address over the last second
+     */
+    Map<String, Double> receiveRateByClient() {
+        Map<String, Double> values = new TreeMap<>();
+        clients.forEach((address, client) -> values.put(address, client.receiveRate));
+        return values;
+    }
+
+    /**
+     * @return bytes per second sent to each client address over the last second
+     */
+    Map<String, Double> sendRateByClient() {
+        Map<String, Double> values = new TreeMap<>();
+        clients.forEach((address, client) -> values.put(address, client.sendRate));
+        return values;
+    }
+
+    /**
+     * @return seconds each client address's connections have spent waiting for the limits
+     */
+    Map<String, Double> throttledSecondsByClient() {
+        Map<String, Double> values = new TreeMap<>();
+        clients.forEach((address, client) -> values.put(address, client.throttledNanos.sum() / 1e9));
+        return values;
+    }
+
+    /**
+     * Turns the per-client byte counters into rates and forgets clients that have gone away.
+     * Called once a second.
+     */
+    void sample() {
+        long now = System.nanoTime();
+        for (Client client : clients.values()) {
+            client.sample(now);
+            if (client.flows.get() == 0 && client.rateOverride < 0 && client.weight == 1
+                    && now - client.lastActive > CLIENT_EXPIRY_NANOS) {
+                clients.remove(client.address, client);
+            }
+        }
+    }
+
+    /**
+     * Publishes the limits as a JMX MBean named {@code com.example.Server:type=Shaping,port=<port>}.
+     *
+     * @param port the server port, to tell several servers in one JVM apart
+     */
+    synchronized void registerMBean(int port) {
+        try {
+            objectName = new ObjectName("com.example.Server:type=Shaping,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ShapingMBean(), objectName);
+        } catch (JMException e) {
+            Log.warn("Unable to register the shaping MBean: " + e.getMessage());
+            objectName = null;
+        }
+    }
+
+    /**
+     * Unregisters the MBean.
+     */
+    synchronized void close() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ignored) {
+                // Already gone
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Waits for this flow's turn at the global bucket and takes the bytes from it.
+     *
+     * @return true if the flow had to wait
+     */
+    private boolean awaitGlobal(Flow flow, long bytes) throws InterruptedIOException {
+        if (global.rate == 0) {
+            return false;
+        }
+        lock.lock();
+        try {
+            double start = Math.max(virtualTime, flow.lastFinish);
+            Turn turn = new Turn(start + bytes / flow.client.weight, turnSequence++);
+            flow.lastFinish = turn.finish;
+            turns.add(turn);
+            boolean waited = false;
+            try {
+                while (true) {
+                    if (turns.peek() == turn) {
+                        long rate = global.rate;
+                        long wait = rate == 0 ? 0 : global.waitNanos(System.nanoTime());
+                        if (wait <= 0) {
+                            if (rate > 0) {
+                                global.take(bytes);
+                            }
+                            turns.poll();
+                            virtualTime = turn.finish;
+                            turnTaken.signalAll();
+                            return waited;
+                        }
+                        turnTaken.awaitNanos(wait);
+                    } else {
+                        turnTaken.await();
+                    }
+                    waited = true;
+                }
+            } catch (InterruptedException e) {
+                turns.remove(turn);
+                turnTaken.signalAll();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One connection's share of the scheduler. A session's reader and reply writers may use it at
+     * the same time; their waits then add up, as they share the connection's rate.
+     */
+    final class Flow implements AutoCloseable {
+
+        private final Client client;
+        private double lastFinish;
+        private boolean closed;
+
+        private Flow(Client client) {
+            this.client = client;
+        }
+
+        /**
+         * Counts bytes received from the client.
+         *
+         * @param bytes the number of bytes
+         */
+        void received(long bytes) {
+            client.received.add(bytes);
+            client.lastActive = System.nanoTime();
+        }
+
+        /**
+         * Counts bytes sent to the client.
+         *
+         * @param bytes the number of bytes
+         */
+        void sent(long bytes) {
+            client.sent.add(bytes);
+            client.lastActive = System.nanoTime();
+        }
+
+        /**
+         * @return the most bytes the connection should move in one call: a tenth of a second at
+         * its tightest limit, or no limit at all if it has none
+         */
+        int quantum() {
+            long rate = client.rateOverride >= 0 ? client.rateOverride : clientRate;
+            long globalRate = global.rate;
+            long limit = rate == 0 ? globalRate : globalRate == 0 ? rate : Math.min(rate, globalRate);
+            if (limit == 0) {
+                return Integer.MAX_VALUE;
+            }
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_QUANTUM, Math.min(limit / 10, burst)));
+        }
+
+        /**
+         * Waits until moving {@code bytes} more is within the client's and the global limits.
+         *
+         * @param bytes the number of bytes just moved
+         * @throws InterruptedIOException if the thread is interrupted while waiting
+         */
+        void pace(long bytes) throws InterruptedIOException {
+            long rate = client.rateOverride >= 0 ? client.rateOverride : clientRate;
+            if (rate == 0 && global.rate == 0) {
+                return;
+            }
+            long started = System.nanoTime();
+            boolean waited = false;
+            if (rate > 0) {
+                long wait;
+                synchronized (client.bucket) {
+                    client.bucket.configure(rate, burst);
+                    client.bucket.take(bytes);
+                    wait = client.bucket.waitNanos(started);
+                }
+                if (wait > 0) {
+                    waited = true;
+                    LockSupport.parkNanos(wait);
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                    }
+                }
+            }
+            waited |= awaitGlobal(this, bytes);
+            if (waited) {
+                client.throttledNanos.add(System.nanoTime() - started);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                client.flows.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Bytes that may be moved now, refilled at the rate up to the burst size. A take may overdraw
+     * it: a client's connections wait until their own debt is paid off, while a debt in the
+     * global bucket is paid off by whoever takes the next turn.
+     */
+    private static final class TokenBucket {
+
+        private volatile long rate;
+        private long burst;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        TokenBucket(long rate, long burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        void configure(long rate, long burst) {
+            if (rate != this.rate || burst != this.burst) {
+                refill(System.nanoTime());
+                // A bucket that was unlimited starts full
+                tokens = this.rate == 0 ? burst : Math.min(tokens, burst);
+                this.rate = rate;
+                this.burst = burst;
+            }
+        }
+
+        /**
+         * @return how long until the bucket is out of debt, 0 if it is
+         */
+        long waitNanos(long now) {
+            refill(now);
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+
+        void take(long bytes) {
+            tokens -= bytes;
+        }
+
+        private void refill(long now) {
+            if (rate > 0) {
+                tokens = Math.min(burst, tokens + (now - refilled) * (rate / 1e9));
+            }
+            refilled = now;
+        }
+    }
+
+    private record Turn(double finish, long sequence) implements Comparable<Turn> {
+
+        @Override
+        public int compareTo(Turn other) {
+            int byFinish = Double.compare(finish, other.finish);
+            return byFinish != 0 ? byFinish : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Everything known about one client address.
+     */
+    private static final class Client {
+
+        final String address;
+        final AtomicInteger flows = new AtomicInteger();
+        final LongAdder received = new LongAdder();
+        final LongAdder sent = new LongAdder();
+        final LongAdder throttledNanos = new LongAdder();
+        final TokenBucket bucket = new TokenBucket(0, 1);
+        volatile long rateOverride = -1;
+        volatile double weight = 1;
+        volatile long lastActive = System.nanoTime();
+        volatile double receiveRate;
+        volatile double sendRate;
+        private long lastReceived;
+        private long lastSent;
+        private long lastSampled = System.nanoTime();
+
+        Client(String address) {
+            this.address = address;
+        }
+
+        void sample(long now) {
+            long receivedNow = received.sum();
+            long sentNow = sent.sum();
+            double seconds = (now - lastSampled) / 1e9;
+            receiveRate = (receivedNow - lastReceived) / seconds;
+            sendRate = (sentNow - lastSent) / seconds;
+            lastReceived = receivedNow;
+            lastSent = sentNow;
+            lastSampled = now;
+        }
+    }
+
+    /**
+     * The limits as read-write attributes, plus operations for per-client overrides.
+     */
+    private final class ShapingMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            return switch (attribute) {
+                case "GlobalRate" -> global.rate;
+                case "ClientRate" -> clientRate;
+                case "Burst" -> burst;
+                default -> throw new AttributeNotFoundException(attribute);
+            };
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException {
+            if (!(attribute.getValue() instanceof Long value)) {
+                throw new InvalidAttributeValueException(attribute.getName() + " must be a long");
+            }
+            switch (attribute.getName()) {
+                case "GlobalRate" -> setGlobalRate(value);
+                case "ClientRate" -> setClientRate(value);
+                case "Burst" -> setBurst(value);
+                default -> throw new AttributeNotFoundException(attribute.getName());
+            }
+            Log.info("Shaping " + attribute.getName() + " set to " + value);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException ignored) {
+                    // Left out, as the interface asks
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            AttributeList set = new AttributeList();
+            for (Attribute attribute : attributes.asList()) {
+                try {
+                    setAttribute(attribute);
+                    set.add(attribute);
+                } catch (JMException ignored) {
+                    // Left out, as the interface asks
+                }
+            }
+            return set;
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            try {
+                switch (actionName) {
+                    case "setClientRate" -> setClientRate((String) params[0], (Long) params[1]);
+                    case "setClientWeight" -> setClientWeight((String) params[0], (Double) params[1]);
+                    default -> throw new ReflectionException(new NoSuchMethodException(actionName));
+                }
+            } catch (ClassCastException | ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new ReflectionException(e, "Invalid arguments for " + actionName);
+            }
+            Log.info("Shaping " + actionName + " " + params[0] + " " + params[1]);
+            return null;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = {
+                    new MBeanAttributeInfo("GlobalRate", "long", "Bytes per second for all clients, 0 for no limit", true, true, false),
+                    new MBeanAttributeInfo("ClientRate", "long", "Bytes per second per client address, 0 for no limit", true, true, false),
+                    new MBeanAttributeInfo("Burst", "long", "Bytes a transfer may run ahead of its rate", true, true, false),
+            };
+            MBeanParameterInfo address = new MBeanParameterInfo("address", String.class.getName(), "Client address");
+            MBeanOperationInfo[] operations = {
+                    new MBeanOperationInfo("setClientRate", "Bytes per second for one client, 0 for no limit, -1 for the default",
+                            new MBeanParameterInfo[]{address, new MBeanParameterInfo("rate", "long", "Bytes per second")},
+                            "void", MBeanOperationInfo.ACTION),
+                    new MBeanOperationInfo("setClientWeight", "One client's share of the global rate, 1 by default",
+                            new MBeanParameterInfo[]{address, new MBeanParameterInfo("weight", "double", "Relative share")},
+                            "void", MBeanOperationInfo.ACTION),
+            };
+            return new MBeanInfo(TransferScheduler.class.getName(), "File server bandwidth shaping", attributes, null,
+                    operations, null);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Channel-to-channel copy loops used by the transfer handlers. File to socket copies go through
+ * {@link FileChannel#transferTo}, which the kernel can serve with sendfile, so file data never
+ * passes through a Java buffer. Socket to file copies read into a pooled direct buffer and write
+ * it out: {@code transferFrom} cannot use a kernel shortcut for a socket source and copies through
+ * a temporary buffer of its own, which the benchmarks show to be about a quarter slower.
+ * <p>
+ * The receive loops, and a buffered variant of the send loop, can feed every byte they move to a
+ * {@link Checksum.Accumulator}, so a transfer is checksummed in the same pass that moves it.
+ */
+final class Transfers {
+
+    private Transfers() {
+    }
+
+    /**
+     * Sends {@code count} bytes of a file starting at {@code position} to the target channel, one
+     * I/O buffer's worth per {@code transferTo} call so that each call stays short enough for a
+     * write timeout to mean something.
+     *
+     * @param source   the file to read from
+     * @param position the file offset to start at
+     * @param count    the number of bytes to send
+     * @param target   the channel to write to, usually the client connection
+     * @param pool     the pool the chunk size comes from, and a buffer if the socket fills up
+     * @throws IOException if the file ends early or the target fails
+     */
+    static void sendFile(FileChannel source, long position, long count, WritableByteChannel target,
+                         BufferPool pool) throws IOException {
+        long chunk = pool.bufferSize();
+        long sent = 0;
+        while (sent < count) {
+            long length = Math.min(count - sent, chunk);
+            long transferred = target instanceof WatchedChannel watched
+                    ? watched.transferFrom(source, position + sent, length)
+                    : source.transferTo(position + sent, length, target);
+            if (transferred <= 0) {
+                if (position + sent >= source.size()) {
+                    throw new IOException("File truncated after " + sent + " of " + count + " bytes");
+                }
+                // The socket is full; on a virtual thread transferTo returns instead of waiting,
+                // so send this chunk with a write that parks until the client makes room
+                transferred = sendChunk(source, position + sent, length, target, pool);
+            }
+            sent += transferred;
+        }
+    }
+
+    /**
+     * Sends {@code count} bytes of a file like {@link #sendFile(FileChannel, long, long,
+     * WritableByteChannel, BufferPool)}, but through a pooled buffer so the bytes can be fed to an
+     * accumulator on their way out. This gives up sendfile for a single pass over the data,
+     * which is still cheaper than reading the file once to checksum it and again to send it.
+     *
+     * @param source    the file to read from
+     * @param position  the file offset to start at
+     * @param count     the number of bytes to send
+     * @param target    the channel to write to, usually the client connection
+     * @param checksums updated with every sent byte
+     * @param pool      the pool the buffer is taken from
+     * @throws IOException if the file ends early or the target fails
+     */
+    static void sendFile(FileChannel source, long position, long count, WritableByteChannel target,
+                         Checksum.Accumulator checksums, BufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            long sent = 0;
+            while (sent < count) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count - sent));
+                int bytesRead = source.read(buffer, position + sent);
+                if (bytesRead <= 0) {
+                    throw new IOException("File truncated after " + sent + " of " + count + " bytes");
+                }
+                buffer.flip();
+                checksums.update(buffer);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                sent += bytesRead;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private static long sendChunk(FileChannel source, long position, long count, WritableByteChannel target,
+                                  BufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            buffer.limit((int) Math.min(buffer.capacity(), count));
+            int bytesRead = source.read(buffer, position);
+            if (bytesRead <= 0) {
+                throw new IOException("File truncated at offset " + position);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            return bytesRead;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer, e.g. a file's cached contents, to the target channel.
+     *
+     * @param source the bytes to send; its position is advanced to the limit
+     * @param target the channel to write to, usually the client socket
+     * @throws IOException if the target fails
+     */
+    static void sendBuffer(ByteBuffer source, WritableByteChannel target) throws IOException {
+        while (source.hasRemaining()) {
+            target.write(source);
+        }
+    }
+
+    /**
+     * Writes everything the source channel delivers until end of stream into the file.
+     *
+     * @param source   a blocking channel, usually the client connection
+     * @param target   the file to write to
+     * @param position the file offset to start at
+     * @param pool     the pool the buffer is taken from
+     * @return the number of bytes received
+     * @throws IOException if reading or writing fails
+     */
+    static long receiveToEnd(ReadableByteChannel source, FileChannel target, long position,
+                             BufferPool pool) throws IOException {
+        return receiveToEnd(source, target, position, null, pool);
+    }
+
+    /**
+     * Writes everything the source channel delivers until end of stream into the file, feeding
+     * it to an accumulator on the way through.
+     *
+     * @param source    a blocking channel, usually the client connection
+     * @param target    the file to write to
+     * @param position  the file offset to start at
+     * @param checksums updated with every received byte, or null
+     * @param pool      the pool the buffer is taken from
+     * @return the number of bytes received
+     * @throws IOException if reading or writing fails
+     */
+    static long receiveToEnd(ReadableByteChannel source, FileChannel target, long position,
+                             Checksum.Accumulator checksums, BufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            long received = 0;
+            while (source.read(buffer.clear()) >= 0) {
+                buffer.flip();
+                if (checksums != null) {
+                    checksums.update(buffer);
+                }
+                while (buffer.hasRemaining()) {
+                    received += target.write(buffer, position + received);
+                }
+            }
+            return received;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Writes exactly {@code count} bytes from the source channel into the file.
+     *
+     * @param source   a blocking channel, usually the client connection
+     * @param target   the file to write to
+     * @param position the file offset to start at
+     * @param count    the number of bytes expected
+     * @param pool     the pool the buffer is taken from
+     * @throws IOException if the stream ends early or writing fails
+     */
+    static void receive(ReadableByteChannel source, FileChannel target, long position, long count,
+                        BufferPool pool) throws IOException {
+        receive(source, target, position, count, null, pool);
+    }
+
+    /**
+     * Writes exactly {@code count} bytes from the source channel into the file, feeding them to
+     * an accumulator on the way through.
+     *
+     * @param source    a blocking channel, usually the client connection
+     * @param target    the file to write to, written with positional writes only
+     * @param position  the file offset to start at
+     * @param count     the number of bytes expected
+     * @param checksums updated with every received byte, or null
+     * @param pool      the pool the buffer is taken from
+     * @throws IOException if the stream ends early or writing fails
+     */
+    static void receive(ReadableByteChannel source, FileChannel target, long position, long count,
+                        Checksum.Accumulator checksums, BufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            long received = 0;
+            while (received < count) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count - received));
+                if (source.read(buffer) < 0) {
+                    throw new IOException("Connection closed after " + received + " of " + count + " bytes");
+                }
+                buffer.flip();
+                if (checksums != null) {
+                    checksums.update(buffer);
+                }
+                while (buffer.hasRemaining()) {
+                    received += target.write(buffer, position + received);
+                }
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Feeds a whole file to a message digest.
+     *
+     * @param file   the file to read
+     * @param digest the digest to update
+     * @param pool   the pool the buffer is taken from
+     * @return the digest value
+     * @throws IOException if reading fails
+     */
+    static byte[] digest(FileChannel file, MessageDigest digest, BufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            long position = 0;
+            int bytesRead;
+            while ((bytesRead = file.read(buffer.clear(), position)) >= 0) {
+                digest.update(buffer.flip());
+                position += bytesRead;
+            }
+            return digest.digest();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Computes the checksums of a whole file, for when they were not recorded as it arrived.
+     *
+     * @param file       the file to read
+     * @param withSha256 whether to compute the SHA-256 as well
+     * @param pool       the pool the buffer is taken from
+     * @return the file's checksums
+     * @throws IOException if reading fails
+     */
+    static Checksum checksum(FileChannel file, boolean withSha256, BufferPool pool) throws IOException {
+        Checksum.Accumulator checksums = Checksum.accumulate(withSha256);
+        ByteBuffer buffer = pool.acquire();
+        try {
+            long position = 0;
+            int bytesRead;
+            while ((bytesRead = file.read(buffer.clear(), position)) >= 0) {
+                checksums.update(buffer.flip());
+                position += bytesRead;
+            }
+            return checksums.finish();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Receives uploads with the network and the disk working at the same time. The connection's
+ * thread only reads: it fills whole pooled buffers, however many socket reads that takes, and
+ * hands each one over. A small pool of writer threads writes the buffers to the file, one full
+ * buffer per write, while the next ones arrive. Each upload may have a few buffers waiting
+ * ({@code fileserver.upload.writeBehind}); when they are all taken, the reader waits for the disk,
+ * which in turn stops reading from the socket and slows the client down through TCP flow control.
+ * With a depth of 0, the reader writes each buffer itself, as before.
+ * <p>
+ * The fsync policy decides when received data is forced to disk: never ({@code none}, leaving it
+ * to the OS), once the upload is complete and before it is committed ({@code close}, so a
+ * committed file survives a power failure), or additionally every
+ * {@code fileserver.upload.fsyncInterval} milliseconds while it streams in ({@code periodic}, which
+ * also keeps a large upload from piling up gigabytes of dirty pages that the kernel then flushes
+ * all at once).
+ */
+final class UploadPipeline implements AutoCloseable {
+
+    /** When received data is forced to disk. */
+    enum Fsync {
+        /** Never; the OS writes the data back in its own time. */
+        NONE,
+        /** Once the upload is complete, before it is committed. */
+        CLOSE,
+        /** At regular intervals while the upload streams in, and once it is complete. */
+        PERIODIC;
+
+        /**
+         * @param name {@code none}, {@code close} or {@code periodic}, in any case
+         * @return the policy
+         * @throws IllegalArgumentException for any other name
+         */
+        static Fsync named(String name) {
+            return switch (name.toLowerCase()) {
+                case "none" -> NONE;
+                case "close" -> CLOSE;
+                case "periodic" -> PERIODIC;
+                default -> throw new IllegalArgumentException("Unknown fsync policy " + name);
+            };
+        }
+    }
+
+    private final int depth;
+    private final BufferPool pool;
+    private final ExecutorService writers;
+    private final Fsync fsync;
+    private final long fsyncIntervalNanos;
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+    private final LongAdder backpressureNanos = new LongAdder();
+    private final AtomicInteger queuedBuffers = new AtomicInteger();
+
+    /**
+     * @param depth               buffers an upload may have waiting for the disk, 0 to write them
+     *                            on the reading thread
+     * @param writerThreads       threads writing buffers to disk for all uploads
+     * @param fsync               when received data is forced to disk
+     * @param fsyncIntervalMillis time between forces with {@link Fsync#PERIODIC}
+     * @param pool                the pool buffers are taken from
+     */
+    UploadPipeline(int depth, int writerThreads, Fsync fsync, long fsyncIntervalMillis, BufferPool pool) {
+        this.depth = Math.max(0, depth);
+        this.pool = pool;
+        this.fsync = fsync;
+        this.fsyncIntervalNanos = Math.max(1, fsyncIntervalMillis) * 1_000_000;
+        if (this.depth == 0) {
+            writers = null;
+            return;
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        writers = Executors.newFixedThreadPool(Math.max(1, writerThreads), runnable -> {
+            Thread thread = new Thread(runnable, "upload-writer-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Writes everything the source channel delivers until end of stream into the file, feeding
+     * it to an accumulator on the way through. Returns once every byte has been written.
+     *
+     * @param source    a blocking channel, usually the client connection
+     * @param target    the file to write to, written with positional writes only
+     * @param position  the file offset to start at
+     * @param checksums updated with every received byte, or null
+     * @return the number of bytes received
+     * @throws IOException if reading or writing fails
+     */
+    long receiveToEnd(ReadableByteChannel source, FileChannel target, long position,
+                      Checksum.Accumulator checksums) throws IOException {
+        return pump(source, target, position, -1, checksums);
+    }
+
+    /**
+     * Writes exactly {@code count} bytes from the source channel into the file, feeding them to
+     * an accumulator on the way through. Returns once every byte has been written.
+     *
+     * @param source    a blocking channel, usually the client connection
+     * @param target    the file to write to, written with positional writes only
+     * @param position  the file offset to start at
+     * @param count     the number of bytes expected
+     * @param checksums updated with every received byte, or null
+     * @throws IOException if the stream ends early or reading or writing fails
+     */
+    void receive(ReadableByteChannel source, FileChannel target, long position, long count,
+                 Checksum.Accumulator checksums) throws IOException {
+        long received = pump(source, target, position, count, checksums);
+        if (received < count) {
+            throw new IOException("Connection closed after " + received + " of " + count + " bytes");
+        }
+    }
+
+    /**
+     * @return true if completed uploads are forced to disk before they are committed
+     */
+    boolean forcesOnClose() {
+        return fsync != Fsync.NONE;
+    }
+
+    /**
+     * @return the number of buffers written to disk
+     */
+    long writes() {
+        return writes.sum();
+    }
+
+    /**
+     * @return the number of bytes written to disk
+     */
+    long bytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * @return how often streaming uploads were forced to disk by the {@code periodic} policy
+     */
+    long forces() {
+        return forces.sum();
+    }
+
+    /**
+     * @return total seconds readers waited for the disk to catch up
+     */
+    double backpressureSeconds() {
+        return backpressureNanos.sum() / 1e9;
+    }
+
+    /**
+     * @return buffers received and waiting to be written, across all uploads
+     */
+    int queuedBuffers() {
+        return queuedBuffers.get();
+    }
+
+    @Override
+    public void close() {
+        if (writers != null) {
+            writers.shutdown();
+        }
+    }
+
+    /**
+     * Reads until {@code count} bytes or, with a negative count, end of stream, and passes full
+     * buffers to the writer.
+     */
+    private long pump(ReadableByteChannel source, FileChannel target, long position, long count,
+                      Checksum.Accumulator checksums) throws IOException {
+        Writer writer = new Writer(target, pool);
+        long received = 0;
+        boolean endOfStream = false;
+        try {
+            while (!endOfStream && (count < 0 || received < count)) {
+                ByteBuffer buffer = pool.acquire();
+                buffer.clear();
+                if (count >= 0) {
+                    buffer.limit((int) Math.min(buffer.capacity(), count - received));
+                }
+                try {
+                    // Fill the whole buffer so every disk write is a full one
+                    while (buffer.hasRemaining()) {
+                        if (source.read(buffer) < 0) {
+                            endOfStream = true;
+                            break;
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    pool.release(buffer);
+                    throw e;
+                }
+                buffer.flip();
+                if (!buffer.hasRemaining()) {
+                    pool.release(buffer);
+                    continue;
+                }
+                if (checksums != null) {
+                    checksums.update(buffer);
+                }
+                int length = buffer.remaining();
+                writer.submit(buffer, position + received);
+                received += length;
+            }
+        } catch (IOException | RuntimeException e) {
+            // The buffers still queued belong to the pool; wait for them before giving up
+            writer.drain();
+            throw e;
+        }
+        writer.finish();
+        return received;
+    }
+
+    private void write(FileChannel target, ByteBuffer buffer, long position) throws IOException {
+        int length = buffer.remaining();
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += target.write(buffer, position + written);
+        }
+        writes.increment();
+        bytesWritten.add(length);
+    }
+
+    /**
+     * One upload's writes. Buffers are queued in order and written by at most one writer thread
+     * at a time, which runs only while there is something to write, so an upload waiting on a
+     * slow client holds no thread.
+     */
+    private final class Writer implements Runnable {
+
+        private final FileChannel target;
+        private final BufferPool pool;
+        private final Queue<Write> queue = new ConcurrentLinkedQueue<>();
+        private final Semaphore slots = new Semaphore(depth);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile IOException failure;
+        private long lastForce = System.nanoTime();
+
+        Writer(FileChannel target, BufferPool pool) {
+            this.target = target;
+            this.pool = pool;
+        }
+
+        /**
+         * Writes a filled buffer, now or in the background, and releases it to the writer's pool,
+         * which it must have come from, in either case.
+         */
+        void submit(ByteBuffer buffer, long position) throws IOException {
+            if (writers == null) {
+                try {
+                    write(target, buffer, position);
+                    forcePeriodically();
+                } finally {
+                    pool.release(buffer);
+                }
+                return;
+            }
+            if (!slots.tryAcquire()) {
+                long waitStarted = System.nanoTime();
+                try {
+                    slots.acquire();
+                } catch (InterruptedException e) {
+                    pool.release(buffer);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the disk");
+                } finally {
+                    backpressureNanos.add(System.nanoTime() - waitStarted);
+                }
+            }
+            IOException failed = failure;
+            if (failed != null) {
+                slots.release();
+                pool.release(buffer);
+                throw new IOException("Unable to write the upload: " + failed.getMessage(), failed);
+            }
+            queue.add(new Write(buffer, pool, position));
+            queuedBuffers.incrementAndGet();
+            if (scheduled.compareAndSet(false, true)) {
+                writers.execute(this);
+            }
+        }
+
+        /**
+         * Waits until everything submitted has been written.
+         */
+        void finish() throws IOException {
+            drain();
+            IOException failed = failure;
+            if (failed != null) {
+                throw new IOException("Unable to write the upload: " + failed.getMessage(), failed);
+            }
+        }
+
+        /**
+         * Waits until the writer is done with every submitted buffer.
+         */
+        void drain() {
+            if (writers != null) {
+                slots.acquireUninterruptibly(depth);
+                slots.release(depth);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Write next;
+                while ((next = queue.poll()) != null) {
+                    try {
+                        if (failure == null) {
+                            write(target, next.buffer(), next.position());
+                            forcePeriodically();
+                        }
+                    } catch (IOException e) {
+                        // Reported to the reader, which stops submitting; queued buffers are dropped
+                        failure = e;
+                    } finally {
+                        next.pool().release(next.buffer());
+                        queuedBuffers.decrementAndGet();
+                        slots.release();
+                    }
+                }
+                scheduled.set(false);
+                // A buffer queued after the last poll but before the flag was cleared needs a writer
+                if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        private void forcePeriodically() throws IOException {
+            if (fsync == Fsync.PERIODIC && System.nanoTime() - lastForce > fsyncIntervalNanos) {
+                target.force(false);
+                forces.increment();
+                lastForce = System.nanoTime();
+            }
+        }
+    }
+
+    private record Write(ByteBuffer buffer, BufferPool pool, long position) {
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.Server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.function.Consumer;
+
+/**
+ * A blocking client connection as seen by the handlers: reads come from the connection's input,
+ * writes go to its socket, and every call records when it started so a
+ * {@link ConnectionWatchdog} can end one that blocks for too long. Holds no lock while blocked,
+ * so a virtual thread waiting on the client does not pin its carrier. Every byte moved is charged
+ * to the connection's {@link TransferScheduler.Flow}, which holds the next call back as long as the
+ * bandwidth limits require; that wait does not count towards the timeouts.
+ */
+final class WatchedChannel implements ByteChannel {
+
+    private final Socket socket;
+    private final ReadableByteChannel input;
+    private final TransferScheduler.Flow flow;
+    private final Consumer<WatchedChannel> onClose;
+    // When the current read and write started, 0 while none is in progress; a session reads the
+    // next request while replies are being written
+    private volatile long readingSince;
+    private volatile long writingSince;
+    private volatile boolean closed;
+
+    WatchedChannel(Socket socket, ReadableByteChannel input, TransferScheduler.Flow flow,
+                   Consumer<WatchedChannel> onClose) {
+        this.socket = socket;
+        this.input = input;
+        this.flow = flow;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+        int count;
+        int limit = target.limit();
+        // A limited connection moves at most a quantum per call, so a big buffer cannot run far ahead of its rate
+        target.limit(target.position() + Math.min(target.remaining(), flow.quantum()));
+        readingSince = System.nanoTime();
+        try {
+            count = input.read(target);
+        } finally {
+            readingSince = 0;
+            target.limit(limit);
+        }
+        if (count > 0) {
+            flow.received(count);
+            flow.pace(count);
+        }
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int count;
+        int limit = source.limit();
+        source.limit(source.position() + Math.min(source.remaining(), flow.quantum()));
+        writingSince = System.nanoTime();
+        try {
+            count = socket.getChannel().write(source);
+        } finally {
+            writingSince = 0;
+            source.limit(limit);
+        }
+        charge(count);
+        return count;
+    }
+
+    /**
+     * Sends part of a file straight from the page cache with {@code transferTo}, which needs the
+     * socket's own channel rather than this wrapper to use sendfile.
+     *
+     * @param file     the file to send from
+     * @param position the file offset to start at
+     * @param count    the most bytes to send in this call
+     * @return the number of bytes sent
+     * @throws IOException if the file or the socket fails
+     */
+    long transferFrom(FileChannel file, long position, long count) throws IOException {
+        long sent;
+        writingSince = System.nanoTime();
+        try {
+            sent = file.transferTo(position, Math.min(count, flow.quantum()), socket.getChannel());
+        } finally {
+            writingSince = 0;
+        }
+        charge(sent);
+        return sent;
+    }
+
+    /**
+     * Returns a stream that writes through this channel. Unlike {@code Channels.newOutputStream}
+     * it writes without holding a monitor, so a virtual thread waiting for the client does not
+     * pin its carrier, and every write is subject to the write timeout.
+     *
+     * @return the stream; closing it leaves the channel open
+     */
+    OutputStream newOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                ByteBuffer source = ByteBuffer.wrap(bytes, offset, length);
+                while (source.hasRemaining()) {
+                    WatchedChannel.this.write(source);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a stream that reads through this channel, so a body read by a stream-based decoder is
+     * shaped and watched like any other read.
+     *
+     * @return the stream; closing it leaves the channel open
+     */
+    InputStream newInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                int count;
+                do {
+                    count = WatchedChannel.this.read(ByteBuffer.wrap(bytes, offset, length));
+                } while (count == 0);
+                return count;
+            }
+        };
+    }
+
+    private void charge(long sent) throws IOException {
+        if (sent > 0) {
+            flow.sent(sent);
+            flow.pace(sent);
+        }
+    }
+
+    /**
+     * @return when the read in progress started, 0 if none is
+     */
+    long readingSince() {
+        return readingSince;
+    }
+
+    /**
+     * @return when the write in progress started, 0 if none is
+     */
+    long writingSince() {
+        return writingSince;
+    }
+
+    Socket socket() {
+        return socket;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && socket.getChannel().isOpen();
+    }
+
+    /**
+     * Stops watching the connection. The socket is left open for its owner to close.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flow.close();
+        onClose.accept(this);
+    }
+}
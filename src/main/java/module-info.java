@@ -1,6 +1,8 @@
 module com.example.client {
     requires javafx.controls;
     requires javafx.fxml;
+    requires java.management;
+    requires jdk.httpserver;
 
     requires org.kordamp.bootstrapfx.core;
 
@@ -0,0 +1,24 @@
+package com.example.Server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class BatchTransfersTest {
+
+    @Test
+    void acceptsPathsInsideTheBatchDirectory() {
+        for (String path : new String[]{"file.txt", "dir/file.txt", "dir/../file.txt", "./dir//file.txt", "..file", "dir/..file"}) {
+            assertNull(BatchTransfers.checkPath(path), path);
+        }
+    }
+
+    @Test
+    void refusesPathsLeavingTheBatchDirectory() {
+        for (String path : new String[]{"", ".", "dir/..", "..", "../file.txt", "dir/../../file.txt", "/etc/passwd",
+                "nul\u0000byte"}) {
+            assertNotNull(BatchTransfers.checkPath(path), path);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.Server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterRingTest {
+
+    private static final int KEYS = 20_000;
+
+    @Test
+    void parsesTheMemberList() {
+        ClusterRing ring = ClusterRing.parse(" a:1, b:2,,a:1 ,[::1]:3");
+        assertEquals(List.of(new ClusterRing.Node("a", 1), new ClusterRing.Node("b", 2), new ClusterRing.Node("[::1]", 3)),
+                ring.nodes());
+        assertEquals("b:2", ring.nodes().get(1).toString());
+        assertEquals(List.of(), ClusterRing.parse(" ").nodes());
+        assertThrows(IllegalArgumentException.class, () -> ClusterRing.parse("a"));
+        assertThrows(IllegalArgumentException.class, () -> ClusterRing.parse("a:port"));
+    }
+
+    @Test
+    void picksDistinctOwnersUpToTheClusterSize() {
+        ClusterRing ring = ClusterRing.parse("a:1,b:1,c:1");
+        for (int i = 0; i < 1000; i++) {
+            String key = "dir/file" + i;
+            assertEquals(2, new HashSet<>(ring.owners(key, 2)).size());
+            assertEquals(3, new HashSet<>(ring.owners(key, 5)).size());
+            assertEquals(1, ring.owners(key, 0).size());
+            assertEquals(ring.owners(key, 2), ring.owners(key, 3).subList(0, 2));
+        }
+        assertEquals(List.of(), ClusterRing.parse("").owners("file", 2));
+    }
+
+    @Test
+    void placesFilesTheSameWhateverTheMemberOrder() {
+        ClusterRing ring = ClusterRing.parse("a:1,b:1,c:1,d:1");
+        ClusterRing reordered = ClusterRing.parse("d:1,b:1,a:1,c:1");
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.owners("file" + i, 2), reordered.owners("file" + i, 2));
+        }
+    }
+
+    @Test
+    void sharesFilesOutEvenly() {
+        ClusterRing ring = ClusterRing.parse("a:1,b:1,c:1,d:1");
+        Map<ClusterRing.Node, Integer> primaries = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            primaries.merge(ring.owners("file" + i, 1).get(0), 1, Integer::sum);
+        }
+        for (int count : primaries.values()) {
+            assertTrue(count > KEYS / 4 * 0.75 && count < KEYS / 4 * 1.25, "share " + count + " of " + KEYS);
+        }
+    }
+
+    @Test
+    void movesOnlyFilesTakenByAnAddedNode() {
+        ClusterRing before = ClusterRing.parse("a:1,b:1,c:1");
+        ClusterRing after = ClusterRing.parse("a:1,b:1,c:1,d:1");
+        ClusterRing.Node added = ClusterRing.Node.parse("d:1");
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "file" + i;
+            List<ClusterRing.Node> old = before.owners(key, 2);
+            List<ClusterRing.Node> now = after.owners(key, 2);
+            if (!old.equals(now)) {
+                moved++;
+                assertTrue(now.contains(added), key + " moved between old nodes");
+                Set<ClusterRing.Node> kept = new HashSet<>(now);
+                kept.remove(added);
+                assertTrue(old.containsAll(kept), key + " moved between old nodes");
+            }
+        }
+        // Two replicas of four nodes: about half of the files get a copy on the new one
+        assertTrue(moved > KEYS * 0.4 && moved < KEYS * 0.6, moved + " of " + KEYS + " moved");
+    }
+
+    @Test
+    void keepsFilesOfTheRemainingNodesWhenOneIsRemoved() {
+        ClusterRing before = ClusterRing.parse("a:1,b:1,c:1,d:1");
+        ClusterRing after = ClusterRing.parse("a:1,b:1,d:1");
+        ClusterRing.Node removed = ClusterRing.Node.parse("c:1");
+        for (int i = 0; i < KEYS; i++) {
+            String key = "file" + i;
+            List<ClusterRing.Node> old = before.owners(key, 2);
+            List<ClusterRing.Node> now = after.owners(key, 2);
+            if (old.contains(removed)) {
+                List<ClusterRing.Node> remaining = new ArrayList<>(old);
+                remaining.remove(removed);
+                assertTrue(now.containsAll(remaining), key + " lost a surviving replica");
+            } else {
+                assertEquals(old, now, key + " moved although its nodes remain");
+            }
+        }
+    }
+}
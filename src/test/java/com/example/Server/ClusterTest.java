@@ -0,0 +1,102 @@
+package com.example.Server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterTest {
+
+    @TempDir
+    Path root;
+
+    private ServerSocket peer;
+    private final BlockingQueue<List<String>> requests = new LinkedBlockingQueue<>();
+    private Cluster cluster;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        peer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread.ofVirtual().start(this::answerRequests);
+        // This server's port is not in the list, so the peer owns every file
+        cluster = new Cluster(new FileServerCore(root, ServerConfig.fromSystemProperties()),
+                ClusterRing.parse("127.0.0.1:" + peer.getLocalPort()), 1, 1);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        cluster.close();
+        peer.close();
+    }
+
+    @Test
+    void forwardsADeleteByAbsolutePathRelativeToTheRoot() throws Exception {
+        assertTrue(cluster.delete(root.resolve("dir/gone.txt").toString(), true));
+        assertEquals(List.of("CLUSTER_DELETE", "dir/gone.txt"), nextRequest("CLUSTER_DELETE"));
+    }
+
+    @Test
+    void forwardsAMoveByAbsolutePathsRelativeToTheRoot() throws Exception {
+        Files.createDirectories(root.resolve("target"));
+        assertTrue(cluster.move(root.resolve("dir/moved.txt").toString(), root.resolve("target").toString(), true));
+        assertEquals(List.of("CLUSTER_MOVE", "dir/moved.txt", "target"), nextRequest("CLUSTER_MOVE"));
+    }
+
+    @Test
+    void knowsMembersByAddress() throws IOException {
+        assertTrue(cluster.isMember(InetAddress.getByName("127.0.0.1")));
+        assertFalse(cluster.isMember(InetAddress.getByName("192.0.2.1")));
+    }
+
+    private List<String> nextRequest(String command) throws InterruptedException {
+        List<String> request;
+        do {
+            // Heartbeats arrive in between
+            request = requests.poll(5, TimeUnit.SECONDS);
+        } while (request != null && !request.get(0).equals(command));
+        return request;
+    }
+
+    /**
+     * Stands in for the node owning every file, recording each request and saying yes to it.
+     */
+    private void answerRequests() {
+        while (!peer.isClosed()) {
+            try (Socket socket = peer.accept()) {
+                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+                String command = inputStream.readUTF();
+                String fileName = inputStream.readUTF();
+                if (command.equals("NODE_LOAD")) {
+                    outputStream.writeInt(0);
+                } else if (command.equals("CLUSTER_MOVE")) {
+                    requests.add(List.of(command, fileName, inputStream.readUTF()));
+                    outputStream.writeBoolean(true);
+                } else {
+                    requests.add(List.of(command, fileName));
+                    outputStream.writeBoolean(true);
+                }
+                outputStream.flush();
+            } catch (IOException e) {
+                // Closed at the end of the test
+            }
+        }
+    }
+}
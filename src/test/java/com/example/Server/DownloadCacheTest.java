@@ -0,0 +1,111 @@
+package com.example.Server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class DownloadCacheTest {
+
+    @TempDir
+    Path directory;
+
+    private final Queue<Runnable> loads = new ArrayDeque<>();
+
+    @Test
+    void peekLoadsAMissOnTheLoaderOnly() throws IOException {
+        Path file = Files.writeString(directory.resolve("hot.txt"), "hot");
+        DownloadCache cache = newCache();
+
+        assertNull(cache.peek(file));
+        assertEquals(0, cache.cachedFiles());
+        assertEquals(1, loads.size());
+
+        loads.remove().run();
+        assertEquals("hot", text(cache.peek(file)));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(0, loads.size());
+    }
+
+    @Test
+    void getLoadsAMissOnTheCallingThread() throws IOException {
+        Path file = Files.writeString(directory.resolve("hot.txt"), "hot");
+        DownloadCache cache = newCache();
+
+        assertEquals("hot", text(cache.get(file)));
+        assertEquals(0, loads.size());
+        assertNotNull(cache.peek(file));
+    }
+
+    @Test
+    void dropsEntriesOfChangedFiles() throws IOException {
+        Path file = Files.writeString(directory.resolve("hot.txt"), "hot");
+        DownloadCache cache = newCache();
+        cache.get(file);
+
+        Files.writeString(file, "changed");
+        assertNull(cache.peek(file));
+        loads.remove().run();
+        assertEquals("changed", text(cache.peek(file)));
+    }
+
+    @Test
+    void doesNotCacheALoadInvalidatedWhileInProgress() throws IOException {
+        Path file = Files.writeString(directory.resolve("hot.txt"), "old");
+        DownloadCache cache = newCache();
+        assertNull(cache.peek(file));
+
+        // Replaced and invalidated by the server before the load finishes
+        cache.invalidate(file);
+        loads.remove().run();
+        assertEquals(0, cache.cachedFiles());
+
+        assertNull(cache.peek(file));
+        loads.remove().run();
+        assertEquals(1, cache.cachedFiles());
+    }
+
+    @Test
+    void loadsAFileOnceForConcurrentMisses() throws IOException {
+        Path file = Files.writeString(directory.resolve("hot.txt"), "hot");
+        DownloadCache cache = newCache();
+        assertNull(cache.peek(file));
+        assertNull(cache.peek(file));
+        assertNull(cache.get(file));
+        assertEquals(1, loads.size());
+
+        loads.remove().run();
+        assertEquals("hot", text(cache.get(file)));
+    }
+
+    @Test
+    void forgetsALoadThatFailed() throws IOException {
+        Path file = Files.writeString(directory.resolve("hot.txt"), "hot");
+        DownloadCache cache = newCache();
+        assertNull(cache.peek(file));
+        Files.delete(file);
+        loads.remove().run();
+
+        Files.writeString(file, "back");
+        assertEquals("back", text(cache.get(file)));
+    }
+
+    private DownloadCache newCache() {
+        return new DownloadCache(1 << 20, 1 << 10, 1 << 20, loads::add);
+    }
+
+    private static String text(ByteBuffer content) {
+        return StandardCharsets.UTF_8.decode(content).toString();
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.Server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ModifiedUtf8Test {
+
+    @Test
+    void decodesWhatWriteUtfEncodes() throws IOException {
+        for (String value : new String[]{"", "plain.txt", "dir/sub dir/файл.bin", "nul\u0000byte", "€ and 日本語",
+                "emoji 😀 pair", "￿ࠀ߿\u0080\u007F"}) {
+            byte[] encoded = writeUtf(value);
+            assertEquals(value, ModifiedUtf8.decode(encoded, encoded.length));
+        }
+    }
+
+    @Test
+    void decodesOnlyTheGivenLength() throws IOException {
+        byte[] encoded = Arrays.copyOf(writeUtf("name"), 10);
+        assertEquals("name", ModifiedUtf8.decode(encoded, 4));
+    }
+
+    @Test
+    void rejectsACharacterCutShort() throws IOException {
+        byte[] encoded = writeUtf("日");
+        assertThrows(UTFDataFormatException.class, () -> ModifiedUtf8.decode(encoded, encoded.length - 1));
+    }
+
+    @Test
+    void rejectsMalformedBytes() {
+        assertThrows(UTFDataFormatException.class, () -> ModifiedUtf8.decode(new byte[]{(byte) 0xC3, 0x41}, 2));
+        assertThrows(UTFDataFormatException.class, () -> ModifiedUtf8.decode(new byte[]{(byte) 0xF0, (byte) 0x9F, (byte) 0x98, (byte) 0x80}, 4));
+        assertThrows(UTFDataFormatException.class, () -> ModifiedUtf8.decode(new byte[]{(byte) 0x80}, 1));
+    }
+
+    /**
+     * @return the bytes {@link DataOutputStream#writeUTF} produces, without the length prefix
+     */
+    private static byte[] writeUtf(String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(value);
+        }
+        byte[] encoded = bytes.toByteArray();
+        return Arrays.copyOfRange(encoded, 2, encoded.length);
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.Server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OperationJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void returnsOperationsNotMarkedDone() throws IOException {
+        Path root = directory.resolve("root");
+        Path logFile = directory.resolve("journal");
+        try (OperationJournal journal = new OperationJournal(logFile, true)) {
+            journal.recovered();
+            long first = journal.begin(delete(root.resolve("a")));
+            journal.begin(delete(root.resolve("b")));
+            journal.finish(first);
+        }
+        try (OperationJournal journal = new OperationJournal(logFile, true)) {
+            assertEquals(List.of(delete(root.resolve("b"))), journal.takeUnfinished(root));
+            journal.recovered();
+            assertEquals(0, Files.size(logFile));
+        }
+    }
+
+    @Test
+    void skipsOperationsSupersededByALaterOne() throws IOException {
+        Path root = directory.resolve("root");
+        Path logFile = directory.resolve("journal");
+        OperationJournal.Operation move = new OperationJournal.Operation(OperationJournal.Kind.MOVE,
+                root.resolve("a"), root.resolve("b"), null);
+        try (OperationJournal journal = new OperationJournal(logFile, false)) {
+            journal.recovered();
+            journal.begin(move);
+            journal.begin(delete(root.resolve("b")));
+            journal.begin(delete(root.resolve("c")));
+        }
+        try (OperationJournal journal = new OperationJournal(logFile, false)) {
+            assertEquals(List.of(delete(root.resolve("b")), delete(root.resolve("c"))), journal.takeUnfinished(root));
+        }
+    }
+
+    @Test
+    void rewritesALongLogWhileOperationsAreInFlight() throws IOException {
+        Path root = directory.resolve("root");
+        Path logFile = directory.resolve("journal");
+        String name = "n".repeat(200);
+        try (OperationJournal journal = new OperationJournal(logFile, false)) {
+            journal.recovered();
+            journal.begin(delete(root.resolve("held")));
+            long largest = 0;
+            for (int i = 0; ; i++) {
+                journal.finish(journal.begin(delete(root.resolve(name + i))));
+                long size = Files.size(logFile);
+                if (size < largest) {
+                    break;
+                }
+                largest = size;
+                assertTrue(i < 100_000, "the log was never rewritten");
+            }
+            assertTrue(largest >= OperationJournal.CHECKPOINT_BYTES - 1024);
+            assertTrue(Files.size(logFile) < 1024);
+            journal.begin(delete(root.resolve("later")));
+        }
+        try (OperationJournal journal = new OperationJournal(logFile, false)) {
+            assertEquals(List.of(delete(root.resolve("held")), delete(root.resolve("later"))), journal.takeUnfinished(root));
+        }
+    }
+
+    @Test
+    void staysConsistentWhenRewrittenUnderConcurrentLoad() throws Exception {
+        Path root = directory.resolve("root");
+        Path logFile = directory.resolve("journal");
+        String name = "n".repeat(200);
+        try (OperationJournal journal = new OperationJournal(logFile, false)) {
+            journal.recovered();
+            try (ExecutorService threads = Executors.newFixedThreadPool(8)) {
+                List<Future<?>> results = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    String prefix = name + t + "-";
+                    results.add(threads.submit(() -> {
+                        for (int i = 0; i < 5_000; i++) {
+                            journal.finish(journal.begin(delete(root.resolve(prefix + i))));
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            }
+            assertEquals(40_000, journal.operations());
+            assertTrue(Files.size(logFile) < OperationJournal.CHECKPOINT_BYTES);
+        }
+        try (OperationJournal journal = new OperationJournal(logFile, false)) {
+            assertEquals(List.of(), journal.takeUnfinished(root));
+        }
+    }
+
+    @Test
+    void ignoresTornAndMalformedLines() throws IOException {
+        Path root = directory.resolve("root");
+        Path logFile = directory.resolve("journal");
+        Files.writeString(logFile, "1 DELETE " + encode(root.resolve("a")) + " - -\n"
+                + "2 FORMAT " + encode(root) + " - -\n"
+                + "x DELETE " + encode(root.resolve("b")) + " - -\n"
+                + "3 DELETE " + encode(root.resolve("c")) + "\n"
+                + "4 DONE extra\n"
+                + "\n"
+                + "5 DELETE " + encode(root.resolve("d")) + " - -\n"
+                + "5 DO");
+        try (OperationJournal journal = new OperationJournal(logFile, false)) {
+            assertEquals(List.of(delete(root.resolve("a")), delete(root.resolve("d"))), journal.takeUnfinished(root));
+        }
+    }
+
+    @Test
+    void leavesOutOperationsOutsideTheGivenDirectories() throws IOException {
+        Path root = directory.resolve("root");
+        Path uploads = directory.resolve("uploads");
+        Path outside = directory.resolve("outside");
+        Path logFile = directory.resolve("journal");
+        Files.writeString(logFile, "1 DELETE " + encode(outside) + " - -\n"
+                + "2 DELETE " + URLEncoder.encode(root + "/../outside", StandardCharsets.UTF_8) + " - -\n"
+                + "3 DELETE relative - -\n"
+                + "4 MOVE " + encode(root.resolve("a")) + " " + encode(outside.resolve("a")) + " -\n"
+                + "5 STORE " + encode(uploads.resolve("x.tmp")) + " " + encode(root.resolve("x")) + " -\n");
+        try (OperationJournal journal = new OperationJournal(logFile, false)) {
+            assertEquals(List.of(new OperationJournal.Operation(OperationJournal.Kind.STORE, uploads.resolve("x.tmp"),
+                    root.resolve("x"), null)), journal.takeUnfinished(root, uploads));
+        }
+    }
+
+    @Test
+    void refusesFieldsThatWouldSplitTheLine() throws IOException {
+        Path root = directory.resolve("root");
+        Path logFile = directory.resolve("journal");
+        try (OperationJournal journal = new OperationJournal(logFile, false)) {
+            journal.recovered();
+            for (String hash : new String[]{"a b", "abc\n9 DELETE " + encode(directory) + " - -", "", "-", "tab\t"}) {
+                assertThrows(IOException.class, () -> journal.begin(new OperationJournal.Operation(
+                        OperationJournal.Kind.STORE, null, root.resolve("x"), hash)));
+            }
+            assertEquals(0, journal.operations());
+        }
+        assertTrue(Files.readString(logFile).isEmpty());
+    }
+
+    @Test
+    void refusesAMalformedHashBeforeJournalingALink() throws IOException {
+        Path root = Files.createDirectories(directory.resolve("root"));
+        Path logFile = directory.resolve("journal");
+        try (OperationJournal journal = new OperationJournal(logFile, false)) {
+            journal.recovered();
+            PartialUploads uploads = new PartialUploads(root, directory.resolve("uploads"),
+                    new ContentStore(directory.resolve("cas"), BufferPool.withDefaults()), journal, false);
+            assertThrows(IOException.class, () -> uploads.link("x", "0".repeat(64) + "\n9 DELETE " + encode(directory) + " - -"));
+            assertThrows(IOException.class, () -> uploads.link("x", "A".repeat(64)));
+            assertEquals(0, journal.operations());
+        }
+    }
+
+    private static OperationJournal.Operation delete(Path file) {
+        return new OperationJournal.Operation(OperationJournal.Kind.DELETE, file.toAbsolutePath().normalize(), null, null);
+    }
+
+    private static String encode(Path path) {
+        return URLEncoder.encode(path.toAbsolutePath().normalize().toString(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.Server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartialUploadsTest {
+
+    @TempDir
+    Path directory;
+
+    private Path root;
+    private Path uploadDirectory;
+    private OperationJournal journal;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        root = Files.createDirectories(directory.resolve("root"));
+        uploadDirectory = directory.resolve("uploads");
+        journal = new OperationJournal(directory.resolve("journal"), false, uploadDirectory);
+        journal.recovered();
+    }
+
+    @Test
+    void mergesOverlappingAndAdjacentRanges() throws IOException {
+        PartialUploads.Upload upload = newUploads().open("file.bin", 100);
+        upload.recordRange(20, 30);
+        upload.recordRange(0, 10);
+        assertEquals(10, upload.contiguousLength());
+        upload.recordRange(10, 20);
+        assertEquals(30, upload.contiguousLength());
+        upload.recordRange(50, 60);
+        upload.recordRange(40, 55);
+        upload.recordRange(5, 5);
+        assertEquals(30, upload.contiguousLength());
+        assertFalse(upload.isComplete());
+        upload.recordRange(25, 100);
+        assertEquals(100, upload.contiguousLength());
+        assertTrue(upload.isComplete());
+    }
+
+    @Test
+    void resumesFromTheRangesLeftOnDisk() throws IOException {
+        PartialUploads.Upload upload = newUploads().open("dir/file.bin", 10);
+        FileChannel channel = upload.acquire();
+        channel.write(ByteBuffer.wrap("0123".getBytes(StandardCharsets.US_ASCII)), 0);
+        upload.release();
+        upload.recordRange(0, 4);
+        upload.persist();
+        channel.close();
+
+        PartialUploads restarted = newUploads();
+        PartialUploads.Upload found = restarted.find("dir/file.bin");
+        assertEquals(10, found.totalSize());
+        assertEquals(4, found.contiguousLength());
+
+        PartialUploads.Upload resumed = restarted.open("dir/file.bin", 10);
+        assertEquals(4, resumed.contiguousLength());
+        resumed.acquire().write(ByteBuffer.wrap("456789".getBytes(StandardCharsets.US_ASCII)), 4);
+        resumed.release();
+        resumed.recordRange(4, 10);
+        assertTrue(resumed.isComplete());
+        Path stored = resumed.commit();
+        assertEquals(root.resolve("dir/file.bin").toAbsolutePath(), stored);
+        assertArrayEquals("0123456789".getBytes(StandardCharsets.US_ASCII), Files.readAllBytes(stored));
+        assertNull(restarted.find("dir/file.bin"));
+        assertNull(resumed.commit());
+    }
+
+    @Test
+    void startsOverWhenTheSizeChanges() throws IOException {
+        PartialUploads uploads = newUploads();
+        PartialUploads.Upload upload = uploads.open("file.bin", 10);
+        upload.recordRange(0, 4);
+        upload.persist();
+        assertEquals(0, uploads.open("file.bin", 20).contiguousLength());
+        assertEquals(20, uploads.find("file.bin").totalSize());
+    }
+
+    @Test
+    void sharesOneUploadBetweenSpellingsOfAName() throws IOException {
+        PartialUploads uploads = newUploads();
+        PartialUploads.Upload upload = uploads.open("a/b.bin", 10);
+        assertSame(upload, uploads.open("a//b.bin", 10));
+        assertSame(upload, uploads.open("./a/b.bin", 10));
+        assertSame(upload, uploads.open("a/c/../b.bin", 10));
+        assertEquals("a/b.bin", upload.fileName());
+    }
+
+    @Test
+    void acceptsPathsLongerThanAFileName() throws IOException {
+        String segment = "s".repeat(200);
+        PartialUploads.Upload upload = newUploads().open(segment + "/" + segment + "/" + segment, 1);
+        upload.recordRange(0, 1);
+        upload.persist();
+        assertTrue(upload.commit().endsWith(segment));
+    }
+
+    @Test
+    void commitWaitsForWritersStillHoldingTheChannel() throws Exception {
+        PartialUploads.Upload upload = newUploads().open("file.bin", 2);
+        FileChannel channel = upload.acquire();
+        channel.write(ByteBuffer.wrap(new byte[] {'a'}), 0);
+        upload.recordRange(0, 2);
+
+        CompletableFuture<Path> commit = CompletableFuture.supplyAsync(() -> {
+            try {
+                return upload.commit();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        assertThrows(TimeoutException.class, () -> commit.get(200, TimeUnit.MILLISECONDS));
+        // The late duplicate still lands in the file rather than on a closed channel
+        channel.write(ByteBuffer.wrap(new byte[] {'b'}), 1);
+        upload.release();
+
+        Path stored = commit.get(5, TimeUnit.SECONDS);
+        assertArrayEquals(new byte[] {'a', 'b'}, Files.readAllBytes(stored));
+        assertThrows(IOException.class, upload::acquire);
+    }
+
+    @Test
+    void refusesNamesOutsideTheRoot() throws IOException {
+        PartialUploads uploads = newUploads();
+        assertThrows(IOException.class, () -> uploads.open("../escape", 1));
+        assertThrows(IOException.class, () -> uploads.open(directory.resolve("escape").toString(), 1));
+        assertThrows(IOException.class, () -> uploads.find("a/../.."));
+    }
+
+    private PartialUploads newUploads() throws IOException {
+        return new PartialUploads(root, uploadDirectory, null, journal, false);
+    }
+}
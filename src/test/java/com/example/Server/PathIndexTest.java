@@ -0,0 +1,66 @@
+package com.example.Server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PathIndexTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void findsFilesByPathAndTheShallowestByName() throws IOException {
+        Files.createDirectories(root.resolve("a/b"));
+        Files.writeString(root.resolve("a/b/report.txt"), "deep");
+        Files.writeString(root.resolve("a/report.txt"), "shallow");
+        try (PathIndex index = PathIndex.build(root)) {
+            assertEquals(2, index.size());
+            assertEquals(root.resolve("a/report.txt"), index.lookup("report.txt"));
+            assertEquals(root.resolve("a/b/report.txt"), index.lookup("a/b/report.txt"));
+            assertNull(index.lookup("missing.txt"));
+        }
+    }
+
+    @Test
+    void rescanForgetsFilesDeletedWhileEventsWereLost() throws IOException {
+        Files.createDirectories(root.resolve("a/b"));
+        Files.writeString(root.resolve("a/b/gone.txt"), "");
+        Files.writeString(root.resolve("kept.txt"), "");
+        try (PathIndex index = PathIndex.build(root)) {
+            // No more watch events from here on, as if the kernel's queue had overflowed
+            index.close();
+            Files.delete(root.resolve("a/b/gone.txt"));
+            Files.writeString(root.resolve("a/new.txt"), "");
+            assertEquals(root.resolve("a/b/gone.txt"), index.lookup("gone.txt"));
+
+            index.rescan(root);
+            assertNull(index.lookup("gone.txt"));
+            assertEquals(root.resolve("a/new.txt"), index.lookup("new.txt"));
+            assertEquals(root.resolve("kept.txt"), index.lookup("kept.txt"));
+            assertEquals(2, index.size());
+        }
+    }
+
+    @Test
+    void rescanOfASubtreeLeavesTheRestAlone() throws IOException {
+        Files.createDirectories(root.resolve("a"));
+        Files.createDirectories(root.resolve("ab"));
+        Files.writeString(root.resolve("a/one.txt"), "");
+        Files.writeString(root.resolve("ab/two.txt"), "");
+        try (PathIndex index = PathIndex.build(root)) {
+            index.close();
+            Files.delete(root.resolve("a/one.txt"));
+            Files.delete(root.resolve("ab/two.txt"));
+            index.rescan(root.resolve("a"));
+            assertNull(index.lookup("one.txt"));
+            assertEquals(root.resolve("ab/two.txt"), index.lookup("two.txt"));
+        }
+    }
+}
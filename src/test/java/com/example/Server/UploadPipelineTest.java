@@ -0,0 +1,54 @@
+package com.example.Server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class UploadPipelineTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void returnsEveryBufferToThePipelinesOwnPool() throws IOException {
+        BufferPool small = new BufferPool(16, 1024);
+        BufferPool large = new BufferPool(64, 1024);
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+
+        try (UploadPipeline first = new UploadPipeline(2, 2, UploadPipeline.Fsync.NONE, 1000, small);
+             UploadPipeline second = new UploadPipeline(0, 1, UploadPipeline.Fsync.NONE, 1000, large)) {
+            assertArrayEquals(data, receive(first, data, "first.bin"));
+            assertArrayEquals(data, receive(second, data, "second.bin"));
+        }
+
+        assertEquals(small.allocations(), small.available());
+        assertEquals(large.allocations(), large.available());
+        for (int i = 0; i < small.available(); i++) {
+            assertEquals(16, small.acquire().capacity());
+        }
+        for (int i = 0; i < large.available(); i++) {
+            assertEquals(64, large.acquire().capacity());
+        }
+    }
+
+    private byte[] receive(UploadPipeline pipeline, byte[] data, String name) throws IOException {
+        Path file = directory.resolve(name);
+        try (FileChannel target = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long received = pipeline.receiveToEnd(Channels.newChannel(new ByteArrayInputStream(data)), target, 0, null);
+            assertEquals(data.length, received);
+        }
+        return Files.readAllBytes(file);
+    }
+}